@@ -0,0 +1,137 @@
+package ca.truxtrax.logbook;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.truxtrax.database.realm_dao.BaseDAO;
+import ca.truxtrax.database.realm_dao.EldAnnotationsDao;
+import ca.truxtrax.database.realm_mapping.eld.EldAnnotation;
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import io.realm.Realm;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * Annotations of the drivers by event id, so an annotated merge reads nothing inside its write transaction.
+ * <p>
+ * The annotation is resolved before the transaction: a hit updates the cached copy, a miss reads
+ * the database once outside of it. The merge puts the saved annotations after commit and drops
+ * annotations of removed events. Entries are detached copies, only changed under the driver's
+ * merge lock. Whatever writes annotations besides the merge must call {@link #invalidate(long)},
+ * {@link MergeOutboxDispatcher} does after the server saved them.
+ */
+public final class AnnotationIndex {
+
+    static final int CAPACITY = 512;
+
+    private static final AnnotationIndex instance = new AnnotationIndex();
+
+    private final ConcurrentMap<Long, Map<String, EldAnnotation>> drivers = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private AnnotationIndex() {
+    }
+
+    public static AnnotationIndex getInstance() {
+        return instance;
+    }
+
+    /**
+     * Annotation to save for {@code target}, call before the transaction.
+     * The cached copy is updated in place, if the transaction fails call {@link #invalidate(long)}.
+     *
+     * @return unmanaged annotation with the new comment, null if there is no target
+     */
+    EldAnnotation resolve(Realm realm, long user, EldEvent target, long time, String comment) {
+        if (target == null) {
+            return null;
+        }
+
+        Map<String, EldAnnotation> annotations = annotations(user);
+        EldAnnotation annotation;
+        synchronized (annotations) {
+            annotation = annotations.get(target.getId());
+        }
+
+        if (annotation != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            EldAnnotation saved = new EldAnnotationsDao(realm).getAnnotation(target.getId());
+            annotation = saved == null ? null : realm.copyFromRealm(saved);
+        }
+
+        if (annotation == null) {
+            return new EldAnnotation(BaseDAO.generateUuid(), target.getUser(), time, target.getId(), comment);
+        }
+        annotation.setComment(comment);
+        return annotation;
+    }
+
+    /**
+     * Called by the merge after commit, under the driver's merge lock.
+     *
+     * @param saved annotations written by the merge
+     * @param diff  detached merge result
+     */
+    void onMerged(long user, List<EldAnnotation> saved, List<EventMergeWrapper> diff) {
+        Map<String, EldAnnotation> annotations = annotations(user);
+        synchronized (annotations) {
+            for (int i = 0; i < diff.size(); i++) {
+                EventMergeWrapper it = diff.get(i);
+                switch (it.mergeResult) {
+                    case EventMergeWrapper.MERGE_RESULT_REMOVED:
+                    case EventMergeWrapper.MERGE_RESULT_REJECTED:
+                        annotations.remove(it.event.getId());
+                        break;
+                }
+            }
+            for (int i = 0; i < saved.size(); i++) {
+                EldAnnotation it = saved.get(i);
+                annotations.put(it.getEvent(), it);
+            }
+        }
+    }
+
+    /**
+     * Forgets the driver's annotations, the next merge reads them from the database again.
+     */
+    public void invalidate(long user) {
+        drivers.remove(user);
+    }
+
+    public void invalidateAll() {
+        drivers.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private Map<String, EldAnnotation> annotations(long user) {
+        Map<String, EldAnnotation> annotations = drivers.get(user);
+        if (annotations == null) {
+            Map<String, EldAnnotation> created = new LinkedHashMap<String, EldAnnotation>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, EldAnnotation> eldest) {
+                    return size() > CAPACITY;
+                }
+            };
+            annotations = drivers.putIfAbsent(user, created);
+            if (annotations == null) {
+                annotations = created;
+            }
+        }
+        return annotations;
+    }
+}
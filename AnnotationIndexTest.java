@@ -0,0 +1,202 @@
+package ca.truxtrax.test.activiries.logbook;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.reflect.internal.WhiteboxImpl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ca.truxtrax.database.realm_dao.BaseDAO;
+import ca.truxtrax.database.realm_dao.EldAnnotationsDao;
+import ca.truxtrax.database.realm_mapping.eld.EldAnnotation;
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import ca.truxtrax.logbook.AnnotationIndex;
+import ca.truxtrax.logbook.LogbookMergeUtils;
+import io.realm.Realm;
+import utils.BaseRealmRunner;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static utils.Utils.generateEvent;
+
+@PrepareForTest({AnnotationIndex.class, Realm.class, LogbookMergeUtils.class, EventMergeWrapper.class})
+public class AnnotationIndexTest extends BaseRealmRunner {
+
+    private static final long USER = 10;
+
+    private Realm realm;
+    private EldAnnotationsDao dao;
+    private AnnotationIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        realm = PowerMockito.mock(Realm.class);
+        when(realm.copyFromRealm(any(EldAnnotation.class))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                return invocation.getArguments()[0];
+            }
+        });
+        dao = mock(EldAnnotationsDao.class);
+        PowerMockito.whenNew(EldAnnotationsDao.class).withArguments(realm).thenReturn(dao);
+
+        index = AnnotationIndex.getInstance();
+        index.invalidateAll();
+    }
+
+    @Test
+    public void shouldReadDatabaseOncePerEvent() throws Exception {
+
+        // given
+        EldEvent event = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 10);
+        EldAnnotation saved = new EldAnnotation(BaseDAO.generateUuid(), USER, minutes(10), event.getId(), "first comment");
+        when(dao.getAnnotation(anyString())).thenReturn(saved);
+
+        // when
+        EldAnnotation first = resolve(event, "second comment");
+        merged(first);
+        EldAnnotation second = resolve(event, "third comment");
+
+        // then
+        // the existing annotation is updated, the database is read by the first merge only
+        assertEquals(saved.getId(), first.getId());
+        assertEquals(saved.getId(), second.getId());
+        assertEquals("third comment", second.getComment());
+        verify(dao, times(1)).getAnnotation(event.getId());
+    }
+
+    @Test
+    public void shouldCreateAnnotation() throws Exception {
+
+        // given
+        EldEvent event = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 10);
+        when(dao.getAnnotation(anyString())).thenReturn(null);
+
+        // when
+        EldAnnotation created = resolve(event, "first comment");
+        merged(created);
+        EldAnnotation updated = resolve(event, "second comment");
+
+        // then
+        // the created annotation is found in the index
+        assertEquals(event.getId(), created.getEvent());
+        assertEquals(created.getId(), updated.getId());
+        verify(dao, times(1)).getAnnotation(event.getId());
+    }
+
+    @Test
+    public void shouldForgetAnnotationOfRemovedEvent() throws Exception {
+
+        // given
+        EldEvent event = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 10);
+        when(dao.getAnnotation(anyString())).thenReturn(null);
+        EldAnnotation created = resolve(event, "first comment");
+        merged(created);
+
+        // when
+        WhiteboxImpl.invokeMethod(index, "onMerged", USER, Collections.<EldAnnotation>emptyList(),
+                Arrays.asList(new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_REMOVED, event)));
+        EldAnnotation again = resolve(event, "second comment");
+
+        // then
+        assertNotEquals(created.getId(), again.getId());
+        verify(dao, times(2)).getAnnotation(event.getId());
+    }
+
+    @Test
+    public void shouldReadAgainAfterInvalidate() throws Exception {
+
+        // given
+        EldEvent event = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 10);
+        when(dao.getAnnotation(anyString())).thenReturn(null);
+        merged(resolve(event, "first comment"));
+
+        // when
+        index.invalidate(USER);
+        resolve(event, "second comment");
+
+        // then
+        verify(dao, times(2)).getAnnotation(event.getId());
+    }
+
+    @Test
+    public void shouldResolveAnnotationOfFoundEvent() throws Exception {
+
+        // #1 should return null
+        // given
+        // no event at or before the annotation time
+        EldEvent event = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 10);
+        event.setUser(USER);
+        List<EventMergeWrapper> result = Arrays.asList(new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_NEW, event.copy()));
+        EldEvent noTarget = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "findEventToAnnotate", result, minutes(5));
+
+        // when
+        EldAnnotation res1 = WhiteboxImpl.invokeMethod(index, "resolve", realm, USER, noTarget, minutes(5), "first comment");
+
+        // then
+        assertNull(res1);
+        verify(dao, never()).getAnnotation(anyString());
+
+
+        // #2 should return with replaced annotation
+        // given
+        EldAnnotation annotation = new EldAnnotation(BaseDAO.generateUuid(), USER, minutes(10), event.getId(), "first comment");
+        when(dao.getAnnotation(anyString())).thenReturn(annotation);
+        EldEvent target = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "findEventToAnnotate", result, minutes(10));
+
+        // when
+        EldAnnotation res2 = resolve(target, "second comment");
+
+        // then
+        // comment changed
+        assertEquals("second comment", res2.getComment());
+        // return found annotation
+        assertEquals(annotation.getId(), res2.getId());
+
+
+        // #3 should return with new annotation
+        // given
+        index.invalidate(USER);
+        when(dao.getAnnotation(anyString())).thenReturn(null);
+
+        // when
+        EldAnnotation res3 = resolve(target, "third comment");
+
+        // then
+        // new annotation created for the event
+        assertNotNull(res3);
+        assertNotEquals(annotation.getId(), res3.getId());
+        assertEquals(event.getId(), res3.getEvent());
+        assertEquals("third comment", res3.getComment());
+    }
+
+    private EldAnnotation resolve(EldEvent event, String comment) throws Exception {
+        return WhiteboxImpl.invokeMethod(index, "resolve", realm, USER, event, event.getDatetime(), comment);
+    }
+
+    private void merged(EldAnnotation annotation) throws Exception {
+        WhiteboxImpl.invokeMethod(index, "onMerged", USER, Collections.singletonList(annotation),
+                Collections.<EventMergeWrapper>emptyList());
+    }
+
+    private static long minutes(int minutes) {
+        return TimeUnit.MINUTES.toMillis(minutes);
+    }
+}
@@ -0,0 +1,96 @@
+package ca.truxtrax.logbook;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import io.realm.Realm;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * Certification reset of one merge: the days taken from the merge result stay at about the same cost
+ * however long the log is, {@link #rescanAllDays} is the per-day scan it replaces.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CertificationInvalidationBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int events;
+
+    private List<EldEvent> history;
+    private DutyTimeline timeline;
+    private List<EventMergeWrapper> diff;
+    private DateTimeZone zone;
+    private long now;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        history = MergeBenchmarkData.history(events, 4, 0.3, 1);
+        long left = MergeBenchmarkData.middle(history);
+        long rightDate = left + TimeUnit.HOURS.toMillis(2);
+        EldEvent candidate = MergeBenchmarkData.candidate(EldEvent.STATUS_ON_DUTY, left);
+        now = rightDate + TimeUnit.HOURS.toMillis(1);
+        MergePlan plan = MergePlanner.plan(history, candidate, rightDate, now);
+        timeline = plan.events;
+        diff = MergeTimelineStore.detach(plan.results);
+        zone = DateTimeZone.forID("America/Toronto");
+
+        CertificationInvalidator.install(new CertificationInvalidator.Store() {
+            @Override
+            public int uncertify(Realm realm, long user, long firstDay, long lastDay) {
+                return (int) TimeUnit.MILLISECONDS.toDays(lastDay - firstDay) + 1;
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        CertificationInvalidator.install(null);
+    }
+
+    @Benchmark
+    public CertificationInvalidator.DayRange affectedDays() {
+        return CertificationInvalidator.affectedDays(timeline, diff, zone, now);
+    }
+
+    @Benchmark
+    public void invalidate() {
+        CertificationInvalidator.invalidate(null, MergeBenchmarkData.USER, CertificationInvalidator.affectedDays(timeline, diff, zone, now));
+    }
+
+    /**
+     * every day of the log, as a reset without the merge result would have to check them
+     */
+    @Benchmark
+    public Set<Long> rescanAllDays() {
+        Set<Long> days = new HashSet<>();
+        for (int i = 0; i < history.size(); i++) {
+            days.add(new DateTime(history.get(i).getDatetime(), zone).withTimeAtStartOfDay().getMillis());
+        }
+        return days;
+    }
+}
@@ -0,0 +1,171 @@
+package ca.truxtrax.logbook;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import io.realm.Realm;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * Un-certifies the log days changed by a merge.
+ * <p>
+ * The days are taken from the merge result only: written and removed events touch their day up
+ * to the end of their duration, so does a rejected event, which leaves the driver's log. An open event
+ * lasts until the next event of the timeline the merge was planned on, the last one until now.
+ * Nothing of the history is scanned, an open event costs one binary search, so the cost depends
+ * on the size of the diff, not on the length of the log. The certifications
+ * themselves are kept by the {@link Store}, merges don't un-certify anything until one is installed.
+ */
+public final class CertificationInvalidator {
+
+    /**
+     * Certifications of the drivers.
+     */
+    public interface Store {
+
+        /**
+         * Called inside the merge transaction, must not begin its own. Should only touch the
+         * certifications in range, e.g. by a query on an indexed day field.
+         *
+         * @param firstDay start of the first changed day
+         * @param lastDay  start of the last changed day, inclusive
+         * @return number of days which were certified
+         */
+        int uncertify(Realm realm, long user, long firstDay, long lastDay);
+    }
+
+    private static volatile Store installed;
+
+    private static final Stats stats = new Stats();
+
+    private CertificationInvalidator() {
+    }
+
+    public static void install(Store store) {
+        installed = store;
+    }
+
+    public static Stats getStats() {
+        return stats;
+    }
+
+    /**
+     * Log days changed by a merge, both ends are the start of a day in the zone of the log.
+     */
+    public static final class DayRange {
+        public final long firstDay;
+        public final long lastDay;
+
+        DayRange(long firstDay, long lastDay) {
+            this.firstDay = firstDay;
+            this.lastDay = lastDay;
+        }
+
+        @Override
+        public String toString() {
+            return "DayRange{" + firstDay + ".." + lastDay + '}';
+        }
+    }
+
+    /**
+     * Call before the result is written, removed Realm objects are gone after that.
+     *
+     * @param events timeline the result was planned on
+     * @param now    end of an open last event
+     * @return days touched by the merge result, null if nothing was changed
+     */
+    static DayRange affectedDays(DutyTimeline events, List<EventMergeWrapper> diff, DateTimeZone zone, long now) {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < diff.size(); i++) {
+            EventMergeWrapper it = diff.get(i);
+            long start;
+            long end;
+            switch (it.mergeResult) {
+                case EventMergeWrapper.MERGE_RESULT_EDITED:
+                case EventMergeWrapper.MERGE_RESULT_NEW:
+                case EventMergeWrapper.MERGE_RESULT_CLOSE_DRIVE:
+                case EventMergeWrapper.MERGE_RESULT_REMOVED:
+                case EventMergeWrapper.MERGE_RESULT_REJECTED:
+                    start = it.event.getDatetime();
+                    end = end(events, it.event, now);
+                    break;
+                default:
+                    // nothing written
+                    continue;
+            }
+            min = Math.min(min, start);
+            max = Math.max(max, end);
+        }
+
+        if (min > max) {
+            return null;
+        }
+        return new DayRange(startOfDay(min, zone), startOfDay(max, zone));
+    }
+
+    /**
+     * Un-certifies the days, call inside the merge transaction.
+     */
+    static void invalidate(Realm realm, long user, DayRange days) {
+        Store store = installed;
+        if (store == null || days == null) {
+            return;
+        }
+        long start = MergeMetrics.start();
+        int uncertified = store.uncertify(realm, user, days.firstDay, days.lastDay);
+        MergeMetrics.stop(MergeMetrics.Phase.CERTIFICATION, start);
+        stats.on(uncertified);
+    }
+
+    /**
+     * last changed instant, the end of a closed event is still part of it, an open event
+     * lasts until the next one, for a removed event the one before it covers the time now
+     */
+    private static long end(DutyTimeline events, EldEvent event, long now) {
+        Integer duration = event.getDuration();
+        if (duration != null && duration > 0) {
+            return event.getDatetime() + TimeUnit.MINUTES.toMillis(duration) - 1;
+        }
+        int next = events.higherIndex(event.getDatetime());
+        long end = next < events.size() ? events.datetimeAt(next) - 1 : now;
+        return Math.max(event.getDatetime(), end);
+    }
+
+    private static long startOfDay(long datetime, DateTimeZone zone) {
+        return new DateTime(datetime, zone).withTimeAtStartOfDay().getMillis();
+    }
+
+    /**
+     * invalidations since start
+     */
+    public static final class Stats {
+        private final AtomicLong invalidations = new AtomicLong();
+        private final AtomicLong uncertified = new AtomicLong();
+
+        void on(int days) {
+            invalidations.incrementAndGet();
+            uncertified.addAndGet(days);
+        }
+
+        /**
+         * merges which asked the store to un-certify
+         */
+        public long getInvalidations() {
+            return invalidations.get();
+        }
+
+        /**
+         * certified days which were reset
+         */
+        public long getUncertified() {
+            return uncertified.get();
+        }
+    }
+}
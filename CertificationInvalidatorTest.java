@@ -0,0 +1,215 @@
+package ca.truxtrax.test.activiries.logbook;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.After;
+import org.junit.Test;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.reflect.internal.WhiteboxImpl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import ca.truxtrax.logbook.CertificationInvalidator;
+import ca.truxtrax.logbook.DutyTimeline;
+import ca.truxtrax.logbook.LogbookMergeUtils;
+import io.realm.Realm;
+import utils.BaseRealmRunner;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static utils.Utils.generateEvent;
+
+@PrepareForTest({LogbookMergeUtils.class, EventMergeWrapper.class})
+public class CertificationInvalidatorTest extends BaseRealmRunner {
+
+    private static final int DAY = (int) TimeUnit.DAYS.toMinutes(1);
+    private static final long USER = 123L;
+
+    @After
+    public void tearDown() {
+        CertificationInvalidator.install(null);
+    }
+
+    @Test
+    public void shouldTakeDaysFromDiff() throws Exception {
+
+        // given
+        // day 1 [10](on) removed, day 2 [5](off) new, day 3 [0](sb) edited, now day 3 [60]
+        EldEvent onDuty = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, DAY + 10);
+        EldEvent sleeping = generateEvent(EldEvent.STATUS_SLEEPING, EldEvent.ORIGIN_DRIVER, 3 * DAY);
+        List<EventMergeWrapper> diff = Arrays.asList(
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_EDITED, sleeping),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_REMOVED, onDuty),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_NEW, generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 2 * DAY + 5)));
+
+        // when
+        CertificationInvalidator.DayRange days = affectedDays(Arrays.asList(onDuty, sleeping), diff, minutes(3 * DAY + 60));
+
+        // then
+        assertEquals(TimeUnit.DAYS.toMillis(1), days.firstDay);
+        assertEquals(TimeUnit.DAYS.toMillis(3), days.lastDay);
+    }
+
+    @Test
+    public void shouldIncludeDurationOfClosedEvent() throws Exception {
+
+        // given
+        // driving [day 1 23:00] closed for 2 hours
+        EldEvent driving = generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_AUTO, 2 * DAY - 60);
+        driving.setDuration(120);
+        List<EventMergeWrapper> diff = Arrays.asList(
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_CLOSE_DRIVE, driving));
+
+        // when
+        CertificationInvalidator.DayRange days = affectedDays(Collections.<EldEvent>emptyList(), diff, minutes(3 * DAY));
+
+        // then
+        // driving goes on after midnight
+        assertEquals(TimeUnit.DAYS.toMillis(1), days.firstDay);
+        assertEquals(TimeUnit.DAYS.toMillis(2), days.lastDay);
+    }
+
+    @Test
+    public void shouldIncludeDurationOfRemovedEvent() throws Exception {
+
+        // given
+        // on duty [day 1 23:00] for 2 hours removed
+        EldEvent onDuty = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 2 * DAY - 60);
+        onDuty.setDuration(120);
+        List<EventMergeWrapper> diff = Arrays.asList(
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_REMOVED, onDuty));
+
+        // when
+        CertificationInvalidator.DayRange days = affectedDays(Collections.<EldEvent>emptyList(), diff, minutes(3 * DAY));
+
+        // then
+        // the event before it covers the time after midnight now
+        assertEquals(TimeUnit.DAYS.toMillis(1), days.firstDay);
+        assertEquals(TimeUnit.DAYS.toMillis(2), days.lastDay);
+    }
+
+    @Test
+    public void shouldIncludeRejectedEvent() throws Exception {
+
+        // given
+        // driving [day 2 10:00] for 1 hour rejected, it leaves the driver's log
+        EldEvent driving = generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_AUTO, 2 * DAY + 600);
+        driving.setDuration(60);
+        List<EventMergeWrapper> diff = Arrays.asList(
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_REJECTED, driving));
+
+        // when
+        CertificationInvalidator.DayRange days = affectedDays(Collections.<EldEvent>emptyList(), diff, minutes(3 * DAY));
+
+        // then
+        assertEquals(TimeUnit.DAYS.toMillis(2), days.firstDay);
+        assertEquals(TimeUnit.DAYS.toMillis(2), days.lastDay);
+    }
+
+    @Test
+    public void shouldIncludeOpenEventUntilNextEvent() throws Exception {
+
+        // given
+        // on duty [day 1 10:00] open edited to sleeping, off duty [day 4 08:00] next
+        EldEvent onDuty = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, DAY + 600);
+        EldEvent offDuty = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 4 * DAY + 480);
+        EldEvent sleeping = generateEvent(EldEvent.STATUS_SLEEPING, EldEvent.ORIGIN_DRIVER, DAY + 600);
+        sleeping.setId(onDuty.getId());
+        List<EventMergeWrapper> diff = Arrays.asList(
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_EDITED, sleeping));
+
+        // when
+        CertificationInvalidator.DayRange days = affectedDays(Arrays.asList(onDuty, offDuty), diff, minutes(5 * DAY));
+
+        // then
+        // the status is changed until the next event
+        assertEquals(TimeUnit.DAYS.toMillis(1), days.firstDay);
+        assertEquals(TimeUnit.DAYS.toMillis(4), days.lastDay);
+    }
+
+    @Test
+    public void shouldIncludeOpenLastEventUntilNow() throws Exception {
+
+        // given
+        // off duty [day 1 10:00] open removed, now day 3 [12:00]
+        EldEvent offDuty = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, DAY + 600);
+        List<EventMergeWrapper> diff = Arrays.asList(
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_REMOVED, offDuty));
+
+        // when
+        CertificationInvalidator.DayRange days = affectedDays(Arrays.asList(offDuty), diff, minutes(3 * DAY + 720));
+
+        // then
+        // the event before it covers the time until now
+        assertEquals(TimeUnit.DAYS.toMillis(1), days.firstDay);
+        assertEquals(TimeUnit.DAYS.toMillis(3), days.lastDay);
+    }
+
+    @Test
+    public void shouldIgnoreUnchangedEvents() throws Exception {
+
+        // given
+        List<EventMergeWrapper> diff = Arrays.asList(
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_NO_CHANGES, generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0)),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_NO_CHANGES, generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, DAY)));
+
+        // when
+        CertificationInvalidator.DayRange days = affectedDays(Collections.<EldEvent>emptyList(), diff, minutes(3 * DAY));
+
+        // then
+        assertNull(days);
+    }
+
+    @Test
+    public void shouldInvalidateDaysOfRejectedEvent() throws Exception {
+
+        // given
+        // driving [day 1 23:00] for 2 hours
+        EldEvent driving = generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_AUTO, 2 * DAY - 60);
+        driving.setDuration(120);
+        final List<long[]> calls = new ArrayList<>();
+        CertificationInvalidator.install(new CertificationInvalidator.Store() {
+            @Override
+            public int uncertify(Realm realm, long user, long firstDay, long lastDay) {
+                calls.add(new long[]{user, firstDay, lastDay});
+                return 1;
+            }
+        });
+
+        PowerMockito.spy(LogbookMergeUtils.class);
+        PowerMockito.doNothing().when(LogbookMergeUtils.class, "saveAndPush", any(Realm.class), anyLong(), anyListOf(EventMergeWrapper.class));
+
+        // when
+        WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "rejectEvent0",
+                mockRealm, USER, Arrays.asList(driving), driving.copy());
+
+        // then
+        // both days of the event are reset in the driver's log
+        assertEquals(1, calls.size());
+        assertEquals(USER, calls.get(0)[0]);
+        assertEquals(startOfDay(driving.getDatetime()), calls.get(0)[1]);
+        assertEquals(startOfDay(driving.getDatetime() + TimeUnit.MINUTES.toMillis(119)), calls.get(0)[2]);
+    }
+
+    private static long startOfDay(long datetime) {
+        return new DateTime(datetime, DateTimeZone.getDefault()).withTimeAtStartOfDay().getMillis();
+    }
+
+    private static long minutes(int minutes) {
+        return TimeUnit.MINUTES.toMillis(minutes);
+    }
+
+    private static CertificationInvalidator.DayRange affectedDays(List<EldEvent> events, List<EventMergeWrapper> diff, long now) throws Exception {
+        return WhiteboxImpl.invokeMethod(CertificationInvalidator.class, "affectedDays", DutyTimeline.of(events), diff, DateTimeZone.UTC, now);
+    }
+}
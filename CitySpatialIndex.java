@@ -0,0 +1,291 @@
+package ca.truxtrax.logbook;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Reference cities in a 3-d tree for the nearest city of a location.
+ * <p>
+ * Cities are points on the unit sphere, so the nearest point of the tree is the nearest city
+ * on the earth at any latitude, no projection. The tree is implicit: cities are ordered in
+ * primitive arrays, the median of a range is the node, its halves are the subtrees.
+ * Immutable after load, lookups from any thread.
+ * <p>
+ * Asset: magic, version, number of cities, then latitude, longitude (floats, degrees)
+ * and the UTF name of every city, e.g. "Ottawa". {@link CitySpatialIndexGenerator} writes it.
+ */
+public final class CitySpatialIndex {
+
+    public static final String ASSET = "cities.bin";
+
+    static final int MAGIC = 0x43495459;
+    static final int VERSION = 1;
+
+    private static final double EARTH_RADIUS_MILES = 3958.8;
+
+    private static final String[] DIRECTIONS = {"N", "NE", "E", "SE", "S", "SW", "W", "NW"};
+
+    // x, y, z of city i at 3 * i
+    private final double[] points;
+    private final float[] lats;
+    private final float[] lons;
+    private final String[] names;
+
+    private CitySpatialIndex(float[] lats, float[] lons, String[] names) {
+        int size = names.length;
+        this.lats = lats;
+        this.lons = lons;
+        this.names = names;
+        this.points = new double[size * 3];
+        for (int i = 0; i < size; i++) {
+            toPoint(lats[i], lons[i], points, i * 3);
+        }
+        build(0, size, 0);
+    }
+
+    /**
+     * @param lats  degrees
+     * @param lons  degrees
+     * @param names formatted names, same order, the arrays are taken over
+     */
+    public static CitySpatialIndex of(float[] lats, float[] lons, String[] names) {
+        if (lats.length != names.length || lons.length != names.length) {
+            throw new IllegalArgumentException("lats, lons and names differ in size");
+        }
+        return new CitySpatialIndex(lats, lons, names);
+    }
+
+    public static CitySpatialIndex read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a city index");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("unknown version " + version);
+        }
+        int size = in.readInt();
+        float[] lats = new float[size];
+        float[] lons = new float[size];
+        String[] names = new String[size];
+        for (int i = 0; i < size; i++) {
+            lats[i] = in.readFloat();
+            lons[i] = in.readFloat();
+            names[i] = in.readUTF();
+        }
+        return new CitySpatialIndex(lats, lons, names);
+    }
+
+    /**
+     * writes the asset, for the build tool and tests
+     */
+    public void write(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(names.length);
+        for (int i = 0; i < names.length; i++) {
+            out.writeFloat(lats[i]);
+            out.writeFloat(lons[i]);
+            out.writeUTF(names[i]);
+        }
+        out.flush();
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * @return nearest city, null if the index is empty
+     */
+    public Nearest nearest(double lat, double lon) {
+        if (names.length == 0) {
+            return null;
+        }
+        double[] query = new double[3];
+        toPoint(lat, lon, query, 0);
+        Search search = new Search(query);
+        search(search, 0, names.length, 0);
+
+        int city = search.best;
+        double distance = distanceMiles(lats[city], lons[city], lat, lon);
+        return new Nearest(names[city], distance, direction(lats[city], lons[city], lat, lon));
+    }
+
+    /**
+     * nearest city, its distance and the direction from the city to the location
+     */
+    public static final class Nearest {
+        public final String city;
+        public final double distanceMiles;
+
+        /**
+         * N, NE, E, SE, S, SW, W or NW
+         */
+        public final String direction;
+
+        Nearest(String city, double distanceMiles, String direction) {
+            this.city = city;
+            this.distanceMiles = distanceMiles;
+            this.direction = direction;
+        }
+
+        /**
+         * e.g. "5 mi NE Ottawa", the city only within a mile, the string of
+         * {@code LocationUtils.getNearestCityDirectionFormattedString}
+         */
+        public String format() {
+            long miles = Math.round(distanceMiles);
+            if (miles < 1) {
+                return city;
+            }
+            return miles + " mi " + direction + " " + city;
+        }
+
+        @Override
+        public String toString() {
+            return format();
+        }
+    }
+
+    private static final class Search {
+        final double[] query;
+        int best = -1;
+        double bestDistance = Double.MAX_VALUE;
+
+        Search(double[] query) {
+            this.query = query;
+        }
+    }
+
+    private void search(Search search, int from, int to, int depth) {
+        if (from >= to) {
+            return;
+        }
+        int node = (from + to) >>> 1;
+        int axis = depth % 3;
+
+        double distance = squaredDistance(points, node * 3, search.query);
+        if (distance < search.bestDistance) {
+            search.bestDistance = distance;
+            search.best = node;
+        }
+
+        double delta = search.query[axis] - points[node * 3 + axis];
+        if (delta < 0) {
+            search(search, from, node, depth + 1);
+            if (delta * delta < search.bestDistance) {
+                search(search, node + 1, to, depth + 1);
+            }
+        } else {
+            search(search, node + 1, to, depth + 1);
+            if (delta * delta < search.bestDistance) {
+                search(search, from, node, depth + 1);
+            }
+        }
+    }
+
+    /**
+     * orders [from, to) so the median on the axis of the depth is in the middle, then the halves
+     */
+    private void build(int from, int to, int depth) {
+        if (to - from <= 1) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        select(from, to - 1, middle, depth % 3);
+        build(from, middle, depth + 1);
+        build(middle + 1, to, depth + 1);
+    }
+
+    private void select(int left, int right, int k, int axis) {
+        while (right > left) {
+            int pivot = partition(left, right, (left + right) >>> 1, axis);
+            if (pivot == k) {
+                return;
+            } else if (k < pivot) {
+                right = pivot - 1;
+            } else {
+                left = pivot + 1;
+            }
+        }
+    }
+
+    private int partition(int left, int right, int pivotIndex, int axis) {
+        double pivot = points[pivotIndex * 3 + axis];
+        swap(pivotIndex, right);
+        int store = left;
+        for (int i = left; i < right; i++) {
+            if (points[i * 3 + axis] < pivot) {
+                swap(i, store);
+                store++;
+            }
+        }
+        swap(store, right);
+        return store;
+    }
+
+    private void swap(int i, int j) {
+        if (i == j) {
+            return;
+        }
+        for (int axis = 0; axis < 3; axis++) {
+            double point = points[i * 3 + axis];
+            points[i * 3 + axis] = points[j * 3 + axis];
+            points[j * 3 + axis] = point;
+        }
+        float lat = lats[i];
+        lats[i] = lats[j];
+        lats[j] = lat;
+        float lon = lons[i];
+        lons[i] = lons[j];
+        lons[j] = lon;
+        String name = names[i];
+        names[i] = names[j];
+        names[j] = name;
+    }
+
+    private static void toPoint(double lat, double lon, double[] to, int offset) {
+        double phi = Math.toRadians(lat);
+        double lambda = Math.toRadians(lon);
+        double cosPhi = Math.cos(phi);
+        to[offset] = cosPhi * Math.cos(lambda);
+        to[offset + 1] = cosPhi * Math.sin(lambda);
+        to[offset + 2] = Math.sin(phi);
+    }
+
+    private static double squaredDistance(double[] points, int offset, double[] query) {
+        double dx = points[offset] - query[0];
+        double dy = points[offset + 1] - query[1];
+        double dz = points[offset + 2] - query[2];
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    static double distanceMiles(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double sinPhi = Math.sin((phi2 - phi1) / 2);
+        double sinLambda = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double a = sinPhi * sinPhi + Math.cos(phi1) * Math.cos(phi2) * sinLambda * sinLambda;
+        return 2 * EARTH_RADIUS_MILES * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * compass direction of the initial bearing from the first point to the second one
+     */
+    static String direction(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double deltaLambda = Math.toRadians(lon2 - lon1);
+        double y = Math.sin(deltaLambda) * Math.cos(phi2);
+        double x = Math.cos(phi1) * Math.sin(phi2) - Math.sin(phi1) * Math.cos(phi2) * Math.cos(deltaLambda);
+        double bearing = (Math.toDegrees(Math.atan2(y, x)) + 360) % 360;
+        return DIRECTIONS[(int) Math.round(bearing / 45) % DIRECTIONS.length];
+    }
+}
@@ -0,0 +1,105 @@
+package ca.truxtrax.logbook;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes {@link CitySpatialIndex#ASSET} from a GeoNames dump, run it before assembling the app,
+ * the index is not checked in.
+ * <p>
+ * Usage: {@code CitySpatialIndexGenerator <cities file> [asset file] [countries] [min population]},
+ * e.g. {@code CitySpatialIndexGenerator cities1000.txt src/main/assets/cities.bin CA,US 1000}.
+ * The cities file is tab separated, the columns of https://download.geonames.org/export/dump/.
+ * Names are the ascii names alone, the way LocationUtils prints them.
+ */
+public final class CitySpatialIndexGenerator {
+
+    private static final String DEFAULT_ASSET = "src/main/assets/" + CitySpatialIndex.ASSET;
+    private static final String DEFAULT_COUNTRIES = "CA,US";
+    private static final long DEFAULT_MIN_POPULATION = 1000;
+
+    private static final int COLUMN_ASCII_NAME = 2;
+    private static final int COLUMN_LATITUDE = 4;
+    private static final int COLUMN_LONGITUDE = 5;
+    private static final int COLUMN_FEATURE_CLASS = 6;
+    private static final int COLUMN_COUNTRY = 8;
+    private static final int COLUMN_POPULATION = 14;
+
+    // populated place
+    private static final String FEATURE_CLASS_CITY = "P";
+
+    private CitySpatialIndexGenerator() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: CitySpatialIndexGenerator <cities file> [asset file] [countries] [min population]");
+            System.exit(1);
+        }
+        File cities = new File(args[0]);
+        File asset = new File(args.length > 1 ? args[1] : DEFAULT_ASSET);
+        Set<String> countries = new HashSet<>(Arrays.asList((args.length > 2 ? args[2] : DEFAULT_COUNTRIES).split(",")));
+        long minPopulation = args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_MIN_POPULATION;
+
+        CitySpatialIndex index = read(cities, countries, minPopulation);
+        File parent = asset.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("can't create " + parent);
+        }
+        OutputStream out = new FileOutputStream(asset);
+        try {
+            index.write(out);
+        } finally {
+            out.close();
+        }
+        System.out.println(index.size() + " cities written to " + asset);
+    }
+
+    static CitySpatialIndex read(File cities, Set<String> countries, long minPopulation) throws IOException {
+        List<String> names = new ArrayList<>();
+        List<float[]> points = new ArrayList<>();
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(cities), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] columns = line.split("\t", -1);
+                if (columns.length <= COLUMN_POPULATION
+                        || !FEATURE_CLASS_CITY.equals(columns[COLUMN_FEATURE_CLASS])
+                        || !countries.contains(columns[COLUMN_COUNTRY])
+                        || population(columns[COLUMN_POPULATION]) < minPopulation) {
+                    continue;
+                }
+                names.add(columns[COLUMN_ASCII_NAME]);
+                points.add(new float[]{
+                        Float.parseFloat(columns[COLUMN_LATITUDE]),
+                        Float.parseFloat(columns[COLUMN_LONGITUDE])});
+            }
+        } finally {
+            in.close();
+        }
+
+        int size = names.size();
+        float[] lats = new float[size];
+        float[] lons = new float[size];
+        for (int i = 0; i < size; i++) {
+            lats[i] = points.get(i)[0];
+            lons[i] = points.get(i)[1];
+        }
+        return CitySpatialIndex.of(lats, lons, names.toArray(new String[size]));
+    }
+
+    private static long population(String column) {
+        return column.isEmpty() ? 0 : Long.parseLong(column);
+    }
+}
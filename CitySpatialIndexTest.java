@@ -0,0 +1,144 @@
+package ca.truxtrax.test.activiries.logbook;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import ca.truxtrax.logbook.CitySpatialIndex;
+import ca.truxtrax.logbook.NearestCityCache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Nearest city of the 3-d tree against a scan of all cities.
+ */
+public class CitySpatialIndexTest {
+
+    @After
+    public void tearDown() {
+        NearestCityCache.getInstance().install(null);
+    }
+
+    @Test
+    public void shouldFindSameCityAsScan() {
+
+        // given
+        Random random = new Random(1);
+        int size = 2000;
+        float[] lats = new float[size];
+        float[] lons = new float[size];
+        String[] names = new String[size];
+        for (int i = 0; i < size; i++) {
+            lats[i] = 25 + random.nextFloat() * 45;
+            lons[i] = -170 + random.nextFloat() * 120;
+            names[i] = "City " + i;
+        }
+        // the index takes the arrays over
+        float[] scanLats = lats.clone();
+        float[] scanLons = lons.clone();
+        String[] scanNames = names.clone();
+        CitySpatialIndex index = CitySpatialIndex.of(lats, lons, names);
+
+        for (int q = 0; q < 500; q++) {
+            double lat = 20 + random.nextDouble() * 55;
+            double lon = -175 + random.nextDouble() * 130;
+
+            // when
+            CitySpatialIndex.Nearest nearest = index.nearest(lat, lon);
+
+            // then
+            assertEquals(scanNames[scan(scanLats, scanLons, lat, lon)], nearest.city);
+        }
+    }
+
+    @Test
+    public void shouldFormatDistanceAndDirection() {
+
+        // given
+        CitySpatialIndex index = CitySpatialIndex.of(
+                new float[]{45.4215f, 43.6532f},
+                new float[]{-75.6972f, -79.3832f},
+                new String[]{"Ottawa", "Toronto"});
+
+        // when
+        // about 7 miles north-east of Ottawa
+        CitySpatialIndex.Nearest nearest = index.nearest(45.495, -75.585);
+
+        // then
+        assertEquals("Ottawa", nearest.city);
+        assertEquals("NE", nearest.direction);
+        assertEquals(7, Math.round(nearest.distanceMiles));
+        assertEquals("7 mi NE Ottawa", nearest.format());
+
+        // in the city
+        assertEquals("Toronto", index.nearest(43.6532, -79.3832).format());
+    }
+
+    @Test
+    public void shouldReadWrittenAsset() throws Exception {
+
+        // given
+        CitySpatialIndex index = CitySpatialIndex.of(
+                new float[]{45.4215f, 43.6532f, 49.2827f},
+                new float[]{-75.6972f, -79.3832f, -123.1207f},
+                new String[]{"Ottawa", "Toronto", "Vancouver"});
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // when
+        index.write(out);
+        CitySpatialIndex read = CitySpatialIndex.read(new ByteArrayInputStream(out.toByteArray()));
+
+        // then
+        assertEquals(3, read.size());
+        assertEquals("Vancouver", read.nearest(49.3, -123.1).city);
+        assertNull(CitySpatialIndex.of(new float[0], new float[0], new String[0]).nearest(45, -75));
+    }
+
+    @Test
+    public void shouldReuseStringOfParkedTruck() {
+
+        // given
+        NearestCityCache cache = NearestCityCache.getInstance();
+        cache.install(CitySpatialIndex.of(
+                new float[]{45.4215f},
+                new float[]{-75.6972f},
+                new String[]{"Ottawa"}));
+        long misses = cache.getMisses();
+
+        // when
+        // GPS noise of a few meters
+        String first = cache.format(45.50001, -75.60002);
+        String second = cache.format(45.50003, -75.59998);
+
+        // then
+        assertSame(first, second);
+        assertEquals(misses + 1, cache.getMisses());
+    }
+
+    private static int scan(float[] lats, float[] lons, double lat, double lon) {
+        int best = -1;
+        double bestDistance = Double.MAX_VALUE;
+        for (int i = 0; i < lats.length; i++) {
+            double distance = haversine(lats[i], lons[i], lat, lon);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private static double haversine(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double sinPhi = Math.sin((phi2 - phi1) / 2);
+        double sinLambda = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double a = sinPhi * sinPhi + Math.cos(phi1) * Math.cos(phi2) * sinLambda * sinLambda;
+        return 2 * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
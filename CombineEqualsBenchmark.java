@@ -0,0 +1,107 @@
+package ca.truxtrax.logbook;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * combineEquals against the previous implementation, which looked up every status by scanning the result list.
+ * <p>
+ * One tenth of the history is removed between the draggers, so the result list grows with the history.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CombineEqualsBenchmark {
+
+    @Param({"100", "1000", "10000", "50000"})
+    public int events;
+
+    private List<EldEvent> history;
+    private List<EventMergeWrapper> result;
+
+    @Setup
+    public void setUp() {
+        history = DutyTimeline.of(MergeBenchmarkData.history(events, 6, 0.3, 1));
+        result = new ArrayList<>();
+        int from = history.size() / 2;
+        int to = from + Math.max(1, history.size() / 10);
+        for (int i = from; i < to && i < history.size(); i++) {
+            EventMergeWrapper.removeEvent(result, history.get(i));
+        }
+    }
+
+    @Benchmark
+    public List<EventMergeWrapper> combineEquals() {
+        List<EventMergeWrapper> copy = new ArrayList<>(result);
+        LogbookMergeUtils.EventsMerger.combineEquals(copy, history);
+        return copy;
+    }
+
+    @Benchmark
+    public List<EventMergeWrapper> combineEqualsLegacy() {
+        List<EventMergeWrapper> copy = new ArrayList<>(result);
+        legacyCombineEquals(copy, history);
+        return copy;
+    }
+
+    /**
+     * implementation before the status map, O(n^2 * m)
+     */
+    static void legacyCombineEquals(List<EventMergeWrapper> result, List<EldEvent> events) {
+        for (int i = 0; i < events.size(); i++) {
+            EldEvent it = events.get(i);
+            if (legacyFind(it, result).mergeResult == EventMergeWrapper.MERGE_RESULT_REMOVED) {
+                continue;
+            }
+            for (int y = i + 1; y < events.size(); y++) {
+                EldEvent nextIt = events.get(y);
+                EventMergeWrapper mergeResult = legacyFind(nextIt, result);
+                if (mergeResult.mergeResult == EventMergeWrapper.MERGE_RESULT_REMOVED) {
+                    continue;
+                }
+                if (LogbookMergeUtils.canBeMergedInOne(it, nextIt)) {
+                    switch (mergeResult.mergeResult) {
+                        case EventMergeWrapper.MERGE_RESULT_NEW:
+                            EventMergeWrapper.cancelEventResult(result, mergeResult);
+                            break;
+                        default:
+                            EventMergeWrapper.changeEventResult(result, mergeResult, EventMergeWrapper.MERGE_RESULT_REMOVED);
+                            break;
+                    }
+                    i = y + 1;
+                    continue;
+                }
+                break;
+            }
+        }
+    }
+
+    private static EventMergeWrapper legacyFind(EldEvent event, List<EventMergeWrapper> result) {
+        for (EventMergeWrapper it : result) {
+            if (it.event == event) {
+                return it;
+            }
+        }
+        return new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_NO_CHANGES, event);
+    }
+}
@@ -0,0 +1,144 @@
+package ca.truxtrax.logbook;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.RandomAccess;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+
+/**
+ * Duty events of a driver sorted by {@link EldEvent#getDatetime()}.
+ * <p>
+ * Datetimes are kept in a primitive array, so the merge finds the covering event,
+ * the nearest left event and the events between the draggers by binary search
+ * instead of scanning the whole history. Read only, equal datetimes keep the input order.
+ */
+public final class DutyTimeline extends AbstractList<EldEvent> implements RandomAccess {
+
+    private static final DutyTimeline EMPTY = new DutyTimeline(new EldEvent[0], new long[0]);
+
+    private static final Comparator<EldEvent> BY_DATETIME = new Comparator<EldEvent>() {
+        @Override
+        public int compare(EldEvent o1, EldEvent o2) {
+            return o1.getDatetime() < o2.getDatetime() ? -1 : (o1.getDatetime() == o2.getDatetime() ? 0 : 1);
+        }
+    };
+
+    private final EldEvent[] events;
+    private final long[] datetimes;
+
+    private DutyTimeline(EldEvent[] events, long[] datetimes) {
+        this.events = events;
+        this.datetimes = datetimes;
+    }
+
+    /**
+     * @param events usually already sorted, as returned by the dao
+     */
+    public static DutyTimeline of(List<EldEvent> events) {
+        if (events instanceof DutyTimeline) {
+            return (DutyTimeline) events;
+        }
+        if (events == null || events.isEmpty()) {
+            return EMPTY;
+        }
+
+        int size = events.size();
+        EldEvent[] array = new EldEvent[size];
+        long[] datetimes = new long[size];
+        boolean sorted = true;
+        for (int i = 0; i < size; i++) {
+            array[i] = events.get(i);
+            datetimes[i] = array[i].getDatetime();
+            if (i > 0 && datetimes[i] < datetimes[i - 1]) {
+                sorted = false;
+            }
+        }
+
+        if (!sorted) {
+            // stable, equal datetimes keep their order
+            Arrays.sort(array, BY_DATETIME);
+            for (int i = 0; i < size; i++) {
+                datetimes[i] = array[i].getDatetime();
+            }
+        }
+        return new DutyTimeline(array, datetimes);
+    }
+
+    @Override
+    public EldEvent get(int index) {
+        return events[index];
+    }
+
+    @Override
+    public int size() {
+        return events.length;
+    }
+
+    public long datetimeAt(int index) {
+        return datetimes[index];
+    }
+
+    /**
+     * @return index of the last event strictly before {@code time}, -1 if none
+     */
+    public int lowerIndex(long time) {
+        return firstNotBefore(time) - 1;
+    }
+
+    /**
+     * @return index of the last event at or before {@code time}, -1 if none
+     */
+    public int floorIndex(long time) {
+        return firstAfter(time) - 1;
+    }
+
+    /**
+     * @return index of the first event at or after {@code time}, size() if none
+     */
+    public int ceilingIndex(long time) {
+        return firstNotBefore(time);
+    }
+
+    /**
+     * @return index of the first event strictly after {@code time}, size() if none
+     */
+    public int higherIndex(long time) {
+        return firstAfter(time);
+    }
+
+    public boolean containsDatetime(long time) {
+        int index = firstNotBefore(time);
+        return index < datetimes.length && datetimes[index] == time;
+    }
+
+    private int firstNotBefore(long time) {
+        int low = 0;
+        int high = datetimes.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (datetimes[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int firstAfter(long time) {
+        int low = 0;
+        int high = datetimes.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (datetimes[mid] <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,213 @@
+package ca.truxtrax.test.activiries.logbook;
+
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.reflect.internal.WhiteboxImpl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import ca.truxtrax.logbook.DutyTimeline;
+import ca.truxtrax.logbook.EventUtils;
+import ca.truxtrax.logbook.LogbookMergeUtils;
+import utils.BaseRealmRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static utils.Utils.generateEvent;
+
+/**
+ * Indexed lookups must give the same answers as the list scans they replaced.
+ */
+@PrepareForTest({LogbookMergeUtils.class})
+public class DutyTimelineTest extends BaseRealmRunner {
+
+    private static final int[] STATUSES = {
+            EldEvent.STATUS_OFF_DUTY,
+            EldEvent.STATUS_SLEEPING,
+            EldEvent.STATUS_DRIVING,
+            EldEvent.STATUS_ON_DUTY
+    };
+
+    @Test
+    public void shouldFindNeighbours() {
+
+        // given
+        // in [2](off), [5](dr), [5](on), [9](sb)
+        List<EldEvent> events = Arrays.asList(
+                generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 2),
+                generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_DRIVER, 5),
+                generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 5),
+                generateEvent(EldEvent.STATUS_SLEEPING, EldEvent.ORIGIN_DRIVER, 9));
+
+        // when
+        DutyTimeline timeline = DutyTimeline.of(events);
+
+        // then
+        assertEquals(-1, timeline.lowerIndex(minutes(2)));
+        assertEquals(0, timeline.floorIndex(minutes(2)));
+        assertEquals(0, timeline.lowerIndex(minutes(5)));
+        assertEquals(2, timeline.floorIndex(minutes(5)));
+        assertEquals(1, timeline.ceilingIndex(minutes(5)));
+        assertEquals(3, timeline.higherIndex(minutes(5)));
+        assertEquals(4, timeline.higherIndex(minutes(9)));
+        assertEquals(-1, timeline.floorIndex(minutes(1)));
+        assertSame(timeline, DutyTimeline.of(timeline));
+    }
+
+    @Test
+    public void shouldSortUnsortedEvents() {
+
+        // given
+        EldEvent e1 = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 10);
+        EldEvent e2 = generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_DRIVER, 1);
+
+        // when
+        DutyTimeline timeline = DutyTimeline.of(Arrays.asList(e1, e2));
+
+        // then
+        assertSame(e2, timeline.get(0));
+        assertSame(e1, timeline.get(1));
+    }
+
+    @Test
+    public void shouldMatchLinearLookups() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+
+            // given
+            List<EldEvent> events = randomTimeline(random, 1 + random.nextInt(40));
+            DutyTimeline timeline = DutyTimeline.of(events);
+
+            for (int minute = -1; minute < 200; minute++) {
+                long time = minutes(minute);
+
+                // then
+                assertEquals(linearLower(events, time), timeline.lowerIndex(time));
+                assertEquals(linearFloor(events, time), timeline.floorIndex(time));
+            }
+        }
+    }
+
+    @Test
+    public void shouldMatchLinearCheckNeedToMerge() throws Exception {
+        Random random = new Random(7);
+        for (int round = 0; round < 500; round++) {
+
+            // given
+            List<EldEvent> events = randomTimeline(random, 1 + random.nextInt(30));
+            int left = random.nextInt(120);
+            EldEvent candidate = generateEvent(STATUSES[random.nextInt(STATUSES.length)], EldEvent.ORIGIN_DRIVER, left);
+            long rightDate = minutes(left + 1 + random.nextInt(60));
+
+            EldEvent[] expectedCovered = new EldEvent[1];
+            EldEvent[] actualCovered = new EldEvent[1];
+
+            // when
+            boolean expected = linearCheckNeedToMerge(expectedCovered, events, candidate, rightDate);
+            boolean actual = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "checkNeedToMerge",
+                    actualCovered, DutyTimeline.of(events), candidate, rightDate);
+
+            // then
+            assertEquals("round " + round, expected, actual);
+            assertSame("round " + round, expectedCovered[0], actualCovered[0]);
+        }
+    }
+
+    private static List<EldEvent> randomTimeline(Random random, int size) {
+        List<EldEvent> events = new ArrayList<>();
+        int minute = random.nextInt(3);
+        for (int i = 0; i < size; i++) {
+            int status = STATUSES[random.nextInt(STATUSES.length)];
+            boolean auto = status == EldEvent.STATUS_DRIVING && random.nextBoolean();
+            EldEvent event = generateEvent(status, auto ? EldEvent.ORIGIN_AUTO : EldEvent.ORIGIN_DRIVER, minute);
+            if (auto && random.nextBoolean()) {
+                // closed driving
+                event.setDuration(1 + random.nextInt(10));
+            }
+            events.add(event);
+            // equal datetimes are allowed
+            minute += random.nextInt(6);
+        }
+        return events;
+    }
+
+    private static long minutes(int minutes) {
+        return TimeUnit.MINUTES.toMillis(minutes);
+    }
+
+    private static int linearLower(List<EldEvent> events, long time) {
+        for (int i = events.size() - 1; i >= 0; i--) {
+            if (events.get(i).getDatetime() < time) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int linearFloor(List<EldEvent> events, long time) {
+        for (int i = events.size() - 1; i >= 0; i--) {
+            if (events.get(i).getDatetime() <= time) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * list based implementation before DutyTimeline
+     */
+    private static boolean linearCheckNeedToMerge(EldEvent[] coveredEventResult, List<EldEvent> allEvents, EldEvent mergeCandidate, long rightDate) {
+        for (int i = 0; i < allEvents.size(); i++) {
+
+            EldEvent st = allEvents.get(i);
+            EldEvent nextSt = null;
+            if (i != allEvents.size() - 1) {
+                nextSt = allEvents.get(i + 1);
+            }
+
+            boolean covered;
+            if (nextSt == null) {
+                covered = st.getDatetime() <= mergeCandidate.getDatetime();
+            } else {
+                covered = st.getDatetime() <= mergeCandidate.getDatetime() && rightDate <= nextSt.getDatetime();
+            }
+
+            if (covered) {
+                if (!canBeEdited(st)) {
+                    coveredEventResult[0] = st;
+                    return false;
+                }
+                if (!LogbookMergeUtils.equalsEventsByTypeCode(st, mergeCandidate)) {
+                    return true;
+                }
+                coveredEventResult[0] = st;
+                return false;
+            } else {
+                if (nextSt == null) {
+                    if (st.getDatetime() > mergeCandidate.getDatetime() && !canBeEdited(st)) {
+                        return false;
+                    }
+                } else {
+                    boolean coveredPart = st.getDatetime() < mergeCandidate.getDatetime()
+                            && nextSt.getDatetime() > mergeCandidate.getDatetime()
+                            && rightDate > nextSt.getDatetime();
+                    boolean coverAnother = st.getDatetime() >= mergeCandidate.getDatetime() && rightDate >= nextSt.getDatetime();
+                    if ((coveredPart || coverAnother) && !canBeEdited(st)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean canBeEdited(EldEvent event) {
+        boolean driveAuto = event.getOrigin() == EldEvent.ORIGIN_AUTO && event.getLogbookStatus() == EldEvent.STATUS_DRIVING;
+        return !(driveAuto && EventUtils.isDrivingClosed(event));
+    }
+}
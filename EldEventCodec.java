@@ -0,0 +1,185 @@
+package ca.truxtrax.logbook;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+
+/**
+ * Binary form of events for files written by the merge, big endian.
+ * <p>
+ * {@link #write} keeps the fields a merge candidate is built from, {@link #writeLogEvent} adds
+ * what the merge sets on log events, the rest get their defaults on read.
+ * A nullable value is written as a presence byte and the value.
+ */
+final class EldEventCodec {
+
+    /**
+     * smallest record of {@link #writeLogEvent}, null strings and null values
+     */
+    static final int MIN_LOG_EVENT_BYTES = 39;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private EldEventCodec() {
+    }
+
+    static void write(Output out, EldEvent event) {
+        out.string(event.getId());
+        out.nullableLong(event.getUser());
+        out.buffer(8).putLong(event.getDatetime());
+        out.buffer(4).putInt(event.getOrigin());
+        out.buffer(4).putInt(event.getType());
+        out.buffer(4).putInt(event.getLogbookStatus());
+        out.string(event.getLocation());
+        out.nullableFloat(event.getLat());
+        out.nullableFloat(event.getLon());
+        out.nullableDouble(event.getMiles());
+        out.nullableFloat(event.getHours());
+        out.nullableDouble(event.getMilesOriginal());
+        out.nullableFloat(event.getHoursOriginal());
+        out.nullableLong(event.getEld());
+    }
+
+    /**
+     * @throws BufferUnderflowException if the record is cut
+     */
+    static EldEvent read(ByteBuffer in) {
+        EldEvent event = new EldEvent();
+        event.setId(readString(in));
+        event.setUser(readNullableLong(in));
+        event.setDatetime(in.getLong());
+        event.setOrigin(in.getInt());
+        event.setType(in.getInt());
+        event.setLogbookStatus(in.getInt());
+        event.setLocation(readString(in));
+        event.setLat(readNullableFloat(in));
+        event.setLon(readNullableFloat(in));
+        event.setMiles(readNullableDouble(in));
+        event.setHours(readNullableFloat(in));
+        event.setMilesOriginal(readNullableDouble(in));
+        event.setHoursOriginal(readNullableFloat(in));
+        event.setEld(readNullableLong(in));
+        return event;
+    }
+
+    /**
+     * candidate fields, duration and accumulated values of driving
+     */
+    static void writeLogEvent(Output out, EldEvent event) {
+        write(out, event);
+        Integer duration = event.getDuration();
+        if (duration == null) {
+            out.buffer(1).put((byte) 0);
+        } else {
+            out.buffer(5).put((byte) 1).putInt(duration);
+        }
+        out.nullableDouble(event.getMilesAccumulated());
+        out.nullableFloat(event.getHoursAccumulated());
+    }
+
+    static EldEvent readLogEvent(ByteBuffer in) {
+        EldEvent event = read(in);
+        if (in.get() != 0) {
+            event.setDuration(in.getInt());
+        }
+        event.setMilesAccumulated(readNullableDouble(in));
+        event.setHoursAccumulated(readNullableFloat(in));
+        return event;
+    }
+
+    static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static Long readNullableLong(ByteBuffer in) {
+        return in.get() == 0 ? null : in.getLong();
+    }
+
+    private static Float readNullableFloat(ByteBuffer in) {
+        return in.get() == 0 ? null : in.getFloat();
+    }
+
+    private static Double readNullableDouble(ByteBuffer in) {
+        return in.get() == 0 ? null : in.getDouble();
+    }
+
+    /**
+     * growing buffer, reused between records
+     */
+    static final class Output {
+        private ByteBuffer buffer;
+
+        Output(int capacity) {
+            buffer = ByteBuffer.allocate(capacity);
+        }
+
+        /**
+         * @return the buffer with at least {@code bytes} remaining
+         */
+        ByteBuffer buffer(int bytes) {
+            if (buffer.remaining() < bytes) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+            return buffer;
+        }
+
+        void clear() {
+            buffer.clear();
+        }
+
+        int size() {
+            return buffer.position();
+        }
+
+        byte[] array() {
+            return buffer.array();
+        }
+
+        void string(String value) {
+            if (value == null) {
+                buffer(4).putInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(UTF_8);
+            buffer(4 + bytes.length).putInt(bytes.length).put(bytes);
+        }
+
+        void nullableLong(Long value) {
+            if (value == null) {
+                buffer(1).put((byte) 0);
+            } else {
+                buffer(9).put((byte) 1).putLong(value);
+            }
+        }
+
+        void nullableFloat(Float value) {
+            if (value == null) {
+                buffer(1).put((byte) 0);
+            } else {
+                buffer(5).put((byte) 1).putFloat(value);
+            }
+        }
+
+        void nullableDouble(Double value) {
+            if (value == null) {
+                buffer(1).put((byte) 0);
+            } else {
+                buffer(9).put((byte) 1).putDouble(value);
+            }
+        }
+    }
+}
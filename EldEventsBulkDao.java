@@ -0,0 +1,61 @@
+package ca.truxtrax.database.realm_dao.eld;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import io.realm.Realm;
+import io.realm.RealmResults;
+
+/**
+ * Set based writes of eld events, one Realm call for the whole set instead of one per event.
+ * Writes must be called inside a transaction.
+ */
+public class EldEventsBulkDao {
+
+    private static final String FIELD_ID = "id";
+
+    private final Realm realm;
+
+    public EldEventsBulkDao(Realm realm) {
+        this.realm = realm;
+    }
+
+    /**
+     * @return events with the ids, unknown ids are skipped
+     */
+    public List<EldEvent> selectByIds(Collection<String> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return realm.where(EldEvent.class)
+                .in(FIELD_ID, ids.toArray(new String[ids.size()]))
+                .findAll();
+    }
+
+    /**
+     * @return number of removed events, unknown ids are ignored
+     */
+    public int deleteByIds(Collection<String> ids) {
+        if (ids == null || ids.isEmpty()) {
+            return 0;
+        }
+        RealmResults<EldEvent> events = realm.where(EldEvent.class)
+                .in(FIELD_ID, ids.toArray(new String[ids.size()]))
+                .findAll();
+        int size = events.size();
+        events.deleteAllFromRealm();
+        return size;
+    }
+
+    /**
+     * inserts new events and overwrites existing ones with the same id, managed or not
+     */
+    public void insertOrUpdate(Collection<EldEvent> events) {
+        if (events == null || events.isEmpty()) {
+            return;
+        }
+        realm.insertOrUpdate(events);
+    }
+}
@@ -0,0 +1,117 @@
+package ca.truxtrax.database.realm_mapping.eld;
+
+import io.realm.RealmObject;
+import io.realm.annotations.PrimaryKey;
+
+/**
+ * Pending server push of a merge result.
+ * <p>
+ * Written in the same transaction as the merge result, removed after the server
+ * accepted it. Event ids are stored comma separated.
+ */
+public class EldMergeOutboxItem extends RealmObject {
+
+    public static final int KIND_EVENTS = 1;
+    public static final int KIND_ANNOTATION = 2;
+
+    public static final String FIELD_ID = "id";
+
+    @PrimaryKey
+    private String id;
+    private long user;
+    private int kind;
+    private long created;
+
+    private String newIds;
+    private String updateIds;
+    private String removeIds;
+    private String annotationId;
+
+    private int attempts;
+    private long nextAttempt;
+
+    public EldMergeOutboxItem() {
+    }
+
+    public EldMergeOutboxItem(String id, long user, int kind, long created) {
+        this.id = id;
+        this.user = user;
+        this.kind = kind;
+        this.created = created;
+        this.nextAttempt = created;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getUser() {
+        return user;
+    }
+
+    public int getKind() {
+        return kind;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public String getNewIds() {
+        return newIds;
+    }
+
+    public void setNewIds(String newIds) {
+        this.newIds = newIds;
+    }
+
+    public String getUpdateIds() {
+        return updateIds;
+    }
+
+    public void setUpdateIds(String updateIds) {
+        this.updateIds = updateIds;
+    }
+
+    public String getRemoveIds() {
+        return removeIds;
+    }
+
+    public void setRemoveIds(String removeIds) {
+        this.removeIds = removeIds;
+    }
+
+    public String getAnnotationId() {
+        return annotationId;
+    }
+
+    public void setAnnotationId(String annotationId) {
+        this.annotationId = annotationId;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public long getNextAttempt() {
+        return nextAttempt;
+    }
+
+    public void setNextAttempt(long nextAttempt) {
+        this.nextAttempt = nextAttempt;
+    }
+
+    @Override
+    public String toString() {
+        return "EldMergeOutboxItem{" +
+                "id='" + id + '\'' +
+                ", user=" + user +
+                ", kind=" + kind +
+                ", attempts=" + attempts +
+                '}';
+    }
+}
@@ -15,6 +15,7 @@ import utils.BaseRealmRunner;
 import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static utils.Utils.generateEvent;
 
 /**
@@ -54,8 +55,9 @@ public class EventMergeWrapperTest extends BaseRealmRunner {
         // added one event
         assertEquals("results size", 1, results.size());
         EventMergeWrapper resultEvent = results.get(0);
-        // same events
-        assertEquals(event, resultEvent.event);
+        // edited copy of the event
+        assertNotSame(event, resultEvent.event);
+        assertEquals(event.getId(), resultEvent.event.getId());
         assertEquals("merge status", EventMergeWrapper.MERGE_RESULT_EDITED, resultEvent.mergeResult);
     }
 
@@ -120,15 +122,22 @@ public class EventMergeWrapperTest extends BaseRealmRunner {
         EldEvent offDutyEvent = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 25);
         offDutyEvent.setMilesOriginal(3D);
         offDutyEvent.setHoursOriginal(7F);
+        Double milesAccumulated = drivingEvent.getMilesAccumulated();
+        Float hoursAccumulated = drivingEvent.getHoursAccumulated();
 
         // when
         WhiteboxImpl.invokeMethod(EventMergeWrapper.class, "closeIfNeedDrivingEvent", results, drivingEvent, offDutyEvent);
 
         // then
         assertEquals("results size", 1, results.size());
-        assertEquals(20, drivingEvent.getDuration(), 0);
-        assertEquals(2d, drivingEvent.getMilesAccumulated(), 0);
-        assertEquals(5f, drivingEvent.getHoursAccumulated(), 0);
+        EldEvent closed = results.get(0).event;
+        assertEquals(20, closed.getDuration(), 0);
+        assertEquals(2d, closed.getMilesAccumulated(), 0);
+        assertEquals(5f, closed.getHoursAccumulated(), 0);
+        // driving event is not changed
+        assertNotSame(drivingEvent, closed);
+        assertEquals(milesAccumulated, drivingEvent.getMilesAccumulated());
+        assertEquals(hoursAccumulated, drivingEvent.getHoursAccumulated());
 
     }
 
@@ -147,9 +156,10 @@ public class EventMergeWrapperTest extends BaseRealmRunner {
         // then
         assertEquals("results size", 1, results.size());
         EventMergeWrapper eventRes1 = results.get(0);
-        assertEquals(eventRes1.event, eventDriving);
+        assertEquals(eventRes1.event.getId(), eventDriving.getId());
         assertEquals(eventRes1.event.getLogbookStatus(), EldEvent.STATUS_SLEEPING);
         assertEquals(eventRes1.mergeResult, EventMergeWrapper.MERGE_RESULT_EDITED);
+        assertEquals(EldEvent.STATUS_DRIVING, eventDriving.getLogbookStatus());
 
 
         // case #2, different Event.type
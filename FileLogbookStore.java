@@ -0,0 +1,115 @@
+package ca.truxtrax.logbook;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+
+/**
+ * {@link ReprocessStore} with one file per driver in a directory, {@code <driver>.log}.
+ * <p>
+ * File: format version, number of events, events as {@link EldEventCodec#writeLogEvent}.
+ * A log is written to a temporary file which replaces the old one, a crash leaves either log.
+ */
+public final class FileLogbookStore implements ReprocessStore {
+
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".log";
+
+    private final File directory;
+
+    public FileLogbookStore(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public List<Long> drivers() throws IOException {
+        String[] names = directory.list();
+        if (names == null) {
+            throw new IOException("not a directory " + directory);
+        }
+        List<Long> drivers = new ArrayList<>();
+        for (String name : names) {
+            if (!name.endsWith(SUFFIX)) {
+                continue;
+            }
+            try {
+                drivers.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                // not a log
+            }
+        }
+        Collections.sort(drivers);
+        return drivers;
+    }
+
+    @Override
+    public List<EldEvent> load(long driver) throws IOException {
+        File file = file(driver);
+        if (!file.exists()) {
+            return new ArrayList<>();
+        }
+
+        byte[] bytes;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("unknown version " + version + " of " + file);
+            }
+            int size = buffer.getInt();
+            // a damaged header must not allocate the list, a whole fleet run would fail on it
+            if (size < 0 || size > buffer.remaining() / EldEventCodec.MIN_LOG_EVENT_BYTES) {
+                throw new IOException("not valid size " + size + " of " + file);
+            }
+            List<EldEvent> events = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                events.add(EldEventCodec.readLogEvent(buffer));
+            }
+            return events;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("cut log " + file, e);
+        }
+    }
+
+    @Override
+    public void save(long driver, List<EldEvent> events) throws IOException {
+        EldEventCodec.Output output = new EldEventCodec.Output(256 * Math.max(1, events.size()));
+        output.buffer(8).putInt(VERSION).putInt(events.size());
+        for (EldEvent it : events) {
+            EldEventCodec.writeLogEvent(output, it);
+        }
+
+        File file = file(driver);
+        File tmp = new File(directory, driver + SUFFIX + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(output.array(), 0, output.size());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("can't replace " + file);
+        }
+    }
+
+    private File file(long driver) {
+        return new File(directory, driver + SUFFIX);
+    }
+}
@@ -0,0 +1,117 @@
+package ca.truxtrax.test.activiries.logbook;
+
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import ca.truxtrax.logbook.DutyTimeline;
+import ca.truxtrax.logbook.LogbookMergeUtils;
+import utils.BaseRealmRunner;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+import static org.junit.Assert.assertEquals;
+import static utils.Utils.generateEvent;
+
+/**
+ * The incremental merge must give the same results as the full scan on a combined log.
+ */
+@PrepareForTest({LogbookMergeUtils.class, EventMergeWrapper.class})
+public class IncrementalMergeTest extends BaseRealmRunner {
+
+    private static final int[] STATUSES = {
+            EldEvent.STATUS_OFF_DUTY,
+            EldEvent.STATUS_SLEEPING,
+            EldEvent.STATUS_DRIVING,
+            EldEvent.STATUS_ON_DUTY
+    };
+
+    @Test
+    public void shouldMatchFullScan() {
+        Random random = new Random(5);
+        for (int round = 0; round < 1000; round++) {
+
+            // given
+            DutyTimeline events = DutyTimeline.of(randomLog(random, 1 + random.nextInt(40)));
+            int left = random.nextInt(200);
+            EldEvent candidate = generateEvent(STATUSES[random.nextInt(STATUSES.length)], EldEvent.ORIGIN_DRIVER, left);
+            // draggers may be swapped
+            long rightDate = minutes(left - 20 + random.nextInt(80));
+            long theTime = random.nextBoolean() ? rightDate : rightDate + minutes(15);
+
+            // when
+            List<EventMergeWrapper> full = new LogbookMergeUtils.EventsMerger(events, candidate, rightDate, theTime, false).execute();
+            List<EventMergeWrapper> incremental = new LogbookMergeUtils.EventsMerger(events, candidate, rightDate, theTime, true).execute();
+
+            // then
+            assertSameResults("round " + round, full, incremental);
+        }
+    }
+
+    @Test
+    public void shouldMatchFullScanOnAutoDriving() {
+        Random random = new Random(9);
+        for (int round = 0; round < 500; round++) {
+
+            // given
+            DutyTimeline events = DutyTimeline.of(randomLog(random, 1 + random.nextInt(20)));
+            int left = random.nextInt(120);
+            EldEvent candidate = generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_DRIVER, left);
+            long rightDate = minutes(left + 1 + random.nextInt(40));
+
+            // when
+            List<EventMergeWrapper> full = new LogbookMergeUtils.EventsMerger(events, candidate, rightDate, rightDate, false).execute();
+            List<EventMergeWrapper> incremental = new LogbookMergeUtils.EventsMerger(events, candidate, rightDate, rightDate, true).execute();
+
+            // then
+            assertSameResults("round " + round, full, incremental);
+        }
+    }
+
+    private static void assertSameResults(String message, List<EventMergeWrapper> expected, List<EventMergeWrapper> actual) {
+        assertEquals(message, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            EventMergeWrapper e = expected.get(i);
+            EventMergeWrapper a = actual.get(i);
+            assertEquals(message, e.mergeResult, a.mergeResult);
+            assertEquals(message, e.event.getDatetime(), a.event.getDatetime());
+            assertEquals(message, e.event.getLogbookStatus(), a.event.getLogbookStatus());
+            if (e.mergeResult != EventMergeWrapper.MERGE_RESULT_NEW) {
+                assertEquals(message, e.event.getId(), a.event.getId());
+            }
+        }
+    }
+
+    /**
+     * combined log, no equal neighbours, auto driving events are closed or open
+     */
+    private static List<EldEvent> randomLog(Random random, int size) {
+        List<EldEvent> events = new ArrayList<>();
+        int minute = random.nextInt(3);
+        int previous = -1;
+        for (int i = 0; i < size; i++) {
+            int status;
+            do {
+                status = STATUSES[random.nextInt(STATUSES.length)];
+            } while (status == previous);
+            previous = status;
+
+            boolean auto = status == EldEvent.STATUS_DRIVING && random.nextBoolean();
+            EldEvent event = generateEvent(status, auto ? EldEvent.ORIGIN_AUTO : EldEvent.ORIGIN_DRIVER, minute);
+            if (auto && random.nextBoolean()) {
+                event.setDuration(1 + random.nextInt(10));
+            }
+            events.add(event);
+            minute += 1 + random.nextInt(10);
+        }
+        return events;
+    }
+
+    private static long minutes(int minutes) {
+        return TimeUnit.MINUTES.toMillis(minutes);
+    }
+}
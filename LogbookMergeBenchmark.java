@@ -0,0 +1,142 @@
+package ca.truxtrax.logbook;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * Merge engine benchmarks, one method per phase plus the whole merge0 path.
+ * <p>
+ * The candidate is placed in the middle of the history, {@code windowMinutes} wide.
+ * Run through {@link MergeBenchmarkRunner} to get JSON results.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogbookMergeBenchmark {
+
+    @Param({"500", "5000", "50000"})
+    public int historySize;
+
+    /**
+     * events per hour
+     */
+    @Param({"2", "12"})
+    public int density;
+
+    /**
+     * share of ORIGIN_AUTO driving events
+     */
+    @Param({"0.1", "0.5"})
+    public double autoDriving;
+
+    @Param({"15", "240"})
+    public int windowMinutes;
+
+    private DutyTimeline timeline;
+    private EldEvent candidate;
+    private long rightDate;
+    private long theTime;
+    private List<EventMergeWrapper> mergeResult;
+    private InMemoryEventStore store;
+
+    @Setup
+    public void setUp() {
+        timeline = DutyTimeline.of(MergeBenchmarkData.history(historySize, density, autoDriving, 1));
+        long left = MergeBenchmarkData.middle(timeline);
+        candidate = MergeBenchmarkData.candidate(EldEvent.STATUS_ON_DUTY, left);
+        rightDate = left + TimeUnit.MINUTES.toMillis(windowMinutes);
+        theTime = rightDate + TimeUnit.HOURS.toMillis(1);
+        mergeResult = LogbookMergeUtils.mergeEvents(timeline, candidate, rightDate, theTime);
+        store = new InMemoryEventStore(timeline);
+    }
+
+    @Benchmark
+    public boolean checkNeedToMerge() {
+        return LogbookMergeUtils.checkNeedToMerge(new EldEvent[1], timeline, candidate, rightDate);
+    }
+
+    @Benchmark
+    public List<EventMergeWrapper> execute() {
+        return new LogbookMergeUtils.EventsMerger(timeline, candidate, rightDate, theTime).execute();
+    }
+
+    @Benchmark
+    public List<EventMergeWrapper> executeIncremental() {
+        return new LogbookMergeUtils.EventsMerger(timeline, candidate, rightDate, theTime, true).execute();
+    }
+
+    @Benchmark
+    public List<EventMergeWrapper> combineEquals() {
+        List<EventMergeWrapper> result = new ArrayList<>(mergeResult);
+        LogbookMergeUtils.EventsMerger.combineEquals(result, timeline);
+        return result;
+    }
+
+    @Benchmark
+    public EldEvent findEventToAnnotate() {
+        return LogbookMergeUtils.findEventToAnnotate(mergeResult, candidate.getDatetime());
+    }
+
+    /**
+     * merge0 without Realm, results are applied to an in-memory store, applying is idempotent
+     */
+    @Benchmark
+    public Map<String, EldEvent> merge0() {
+        MergePlan plan = MergePlanner.plan(timeline, candidate, rightDate, theTime);
+        store.apply(plan.results);
+        return store.events;
+    }
+
+    /**
+     * stand-in for EldEventsDao, same switch as saveMergeResultToDatabase
+     */
+    static final class InMemoryEventStore {
+        final Map<String, EldEvent> events;
+
+        InMemoryEventStore(List<EldEvent> initial) {
+            events = new LinkedHashMap<>(initial.size() * 2);
+            for (int i = 0; i < initial.size(); i++) {
+                EldEvent it = initial.get(i);
+                events.put(it.getId(), it);
+            }
+        }
+
+        void apply(List<EventMergeWrapper> result) {
+            for (EventMergeWrapper it : result) {
+                switch (it.mergeResult) {
+                    case EventMergeWrapper.MERGE_RESULT_REMOVED:
+                        events.remove(it.event.getId());
+                        break;
+                    case EventMergeWrapper.MERGE_RESULT_NEW:
+                    case EventMergeWrapper.MERGE_RESULT_EDITED:
+                    case EventMergeWrapper.MERGE_RESULT_CLOSE_DRIVE:
+                    case EventMergeWrapper.MERGE_RESULT_REJECTED:
+                        events.put(it.event.getId(), it.event);
+                        break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package ca.truxtrax.logbook;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import com.truxtrax.utils.DatabaseUtils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.truxtrax.database.realm_dao.eld.EldDutyEventsDao;
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import io.realm.Realm;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * Runs merges off the calling thread, one writer thread per driver.
+ * <p>
+ * Merges of a driver run one after another in submit order, drivers don't wait for each other.
+ * A thread opens its own Realm for every merge, takes the driver's merge lock before it reads
+ * the events and dies after a while without work. Writers of drivers without work are removed.
+ * Merges submitted with a key are latest-wins: a newer merge with the same driver and key
+ * cancels the queued one before it opens Realm, e.g. merges sent while the slider is dragged.
+ * A merge which already runs is finished.
+ */
+public final class LogbookMergeExecutor {
+
+    public static final String KEY_DRAG = "drag";
+
+    private static final long IDLE_SECONDS = 30;
+
+    private static final LogbookMergeExecutor instance = new LogbookMergeExecutor();
+
+    // guarded by itself
+    private final Map<Long, Writer> writers = new HashMap<>();
+    private volatile long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(IDLE_SECONDS);
+    private final ConcurrentMap<String, LatestTask<?>> latest = new ConcurrentHashMap<>();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong superseded = new AtomicLong();
+
+    private LogbookMergeExecutor() {
+    }
+
+    public static LogbookMergeExecutor getInstance() {
+        return instance;
+    }
+
+    public interface Callback<T> {
+
+        /**
+         * called on the driver's merge thread, post to the UI thread if needed
+         */
+        void onResult(T result);
+
+        /**
+         * Called when the merge threw, on the driver's merge thread, or was cancelled,
+         * then with a {@link CancellationException} on the thread which cancelled it.
+         */
+        void onFailure(Throwable error);
+    }
+
+    /**
+     * @param mergeEvent unmanaged, it's read on the merge thread
+     * @see LogbookMergeUtils#merge
+     */
+    public Future<List<EventMergeWrapper>> merge(long user, EldEvent mergeEvent, long rightDate, long theTime,
+                                                 String annotationStr, Callback<List<EventMergeWrapper>> callback) {
+        return submit(user, new RealmMerge(user, mergeEvent, rightDate, theTime, annotationStr), callback);
+    }
+
+    /**
+     * merge which is dropped if a newer one with the same {@code key} is submitted before it starts
+     */
+    public Future<List<EventMergeWrapper>> mergeLatest(long user, String key, EldEvent mergeEvent, long rightDate, long theTime,
+                                                       String annotationStr, Callback<List<EventMergeWrapper>> callback) {
+        return submitLatest(user, key, new RealmMerge(user, mergeEvent, rightDate, theTime, annotationStr), callback);
+    }
+
+    /**
+     * @see LogbookMergeUtils#mergeLastEvent
+     */
+    public Future<List<EventMergeWrapper>> mergeLastEvent(final Context context, final long user, final int logbookStatus,
+                                                          Callback<List<EventMergeWrapper>> callback) {
+        final Context appContext = context.getApplicationContext();
+        return submit(user, new Callable<List<EventMergeWrapper>>() {
+            @Override
+            public List<EventMergeWrapper> call() {
+                return LogbookMergeUtils.mergeLastEvent(appContext, user, logbookStatus);
+            }
+        }, callback);
+    }
+
+    public <T> Future<T> submit(long user, Callable<T> task, Callback<T> callback) {
+        FutureTask<T> future = new CallbackTask<>(task, callback);
+        submitted.incrementAndGet();
+        execute(user, future);
+        return future;
+    }
+
+    public <T> Future<T> submitLatest(long user, String key, Callable<T> task, Callback<T> callback) {
+        String ticket = user + "/" + key;
+        LatestTask<T> future = new LatestTask<>(ticket, task, callback);
+        LatestTask<?> previous = latest.put(ticket, future);
+        if (previous != null && previous.cancel(false)) {
+            superseded.incrementAndGet();
+        }
+        submitted.incrementAndGet();
+        execute(user, future);
+        return future;
+    }
+
+    public long getSubmitted() {
+        return submitted.get();
+    }
+
+    /**
+     * merges dropped before they started
+     */
+    public long getSuperseded() {
+        return superseded.get();
+    }
+
+    /**
+     * how long a writer without work is kept, 30 seconds by default
+     */
+    public void setIdleTimeout(long millis) {
+        idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * drivers which have a writer
+     */
+    public int getWriters() {
+        synchronized (writers) {
+            return writers.size();
+        }
+    }
+
+    private void execute(long user, Runnable task) {
+        synchronized (writers) {
+            removeIdle(System.nanoTime());
+            Writer writer = writers.get(user);
+            if (writer == null) {
+                writer = new Writer(user);
+                writers.put(user, writer);
+            }
+            writer.pending++;
+            writer.executor.execute(new Tracked(writer, task));
+        }
+    }
+
+    /**
+     * a writer is removed only with nothing queued, so a driver's merges never run on two threads
+     */
+    private void removeIdle(long now) {
+        long timeout = idleTimeoutNanos;
+        for (Iterator<Writer> it = writers.values().iterator(); it.hasNext(); ) {
+            Writer writer = it.next();
+            if (writer.pending == 0 && now - writer.idleSince >= timeout) {
+                writer.executor.shutdown();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * single thread of a driver, the counters are guarded by {@link #writers}
+     */
+    private static final class Writer {
+        final ThreadPoolExecutor executor;
+        int pending;
+        long idleSince;
+
+        Writer(final long user) {
+            executor = new ThreadPoolExecutor(1, 1, IDLE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread thread = new Thread(r, "merge-" + user);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    private final class Tracked implements Runnable {
+        private final Writer writer;
+        private final Runnable task;
+
+        Tracked(Writer writer, Runnable task) {
+            this.writer = writer;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                synchronized (writers) {
+                    if (--writer.pending == 0) {
+                        writer.idleSince = System.nanoTime();
+                    }
+                }
+            }
+        }
+    }
+
+    private static class CallbackTask<T> extends FutureTask<T> {
+        private final Callback<T> callback;
+
+        CallbackTask(Callable<T> callable, Callback<T> callback) {
+            super(callable);
+            this.callback = callback;
+        }
+
+        @Override
+        protected void done() {
+            if (callback == null) {
+                return;
+            }
+            T result;
+            try {
+                result = get();
+            } catch (CancellationException e) {
+                callback.onFailure(e);
+                return;
+            } catch (ExecutionException e) {
+                callback.onFailure(e.getCause());
+                return;
+            } catch (InterruptedException e) {
+                // not waiting, the task is done
+                Thread.currentThread().interrupt();
+                callback.onFailure(e);
+                return;
+            }
+            callback.onResult(result);
+        }
+    }
+
+    private final class LatestTask<T> extends CallbackTask<T> {
+        private final String ticket;
+
+        LatestTask(String ticket, Callable<T> callable, Callback<T> callback) {
+            super(callable, callback);
+            this.ticket = ticket;
+        }
+
+        @Override
+        public void run() {
+            if (latest.get(ticket) != this) {
+                // a newer merge is queued
+                if (cancel(false)) {
+                    superseded.incrementAndGet();
+                }
+                return;
+            }
+            try {
+                super.run();
+            } finally {
+                latest.remove(ticket, this);
+            }
+        }
+    }
+
+    /**
+     * merge with a Realm of the driver's thread, events are read on that thread
+     */
+    private static final class RealmMerge implements Callable<List<EventMergeWrapper>> {
+        private final long user;
+        private final EldEvent mergeEvent;
+        private final long rightDate;
+        private final long theTime;
+        private final String annotationStr;
+
+        RealmMerge(long user, EldEvent mergeEvent, long rightDate, long theTime, String annotationStr) {
+            this.user = user;
+            this.mergeEvent = mergeEvent;
+            this.rightDate = rightDate;
+            this.theTime = theTime;
+            this.annotationStr = annotationStr;
+        }
+
+        @Override
+        public List<EventMergeWrapper> call() {
+            // events are read under the driver lock, so they can't be changed by another merge of the same driver
+            LogbookMergeUtils.lock(user);
+            try {
+                Realm realm = Realm.getDefaultInstance();
+                try {
+                    List<EldEvent> events = new EldDutyEventsDao(realm).selectForDriverId(user);
+                    return LogbookMergeUtils.merge(realm, user, events, mergeEvent, rightDate, theTime, annotationStr);
+                } finally {
+                    DatabaseUtils.closeQuietly(realm);
+                }
+            } finally {
+                LogbookMergeUtils.unlock(user);
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package ca.truxtrax.test.activiries.logbook;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import ca.truxtrax.logbook.LogbookMergeExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Ordering and latest-wins of the merge executor, tasks stand in for merges.
+ */
+public class LogbookMergeExecutorTest {
+
+    private static final long WAIT_SECONDS = 5;
+
+    private final LogbookMergeExecutor executor = LogbookMergeExecutor.getInstance();
+
+    @Test
+    public void shouldRunSameDriverInOrder() throws Exception {
+
+        // given
+        final long user = 1001;
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+        List<Future<Integer>> futures = new ArrayList<>();
+
+        // when
+        for (int i = 0; i < 10; i++) {
+            futures.add(executor.submit(user, new Recorder(i, order, threads), null));
+        }
+        for (Future<Integer> future : futures) {
+            future.get(WAIT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        // then
+        // one writer thread, submit order
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Integer.valueOf(i), order.get(i));
+            assertEquals("merge-" + user, threads.get(i));
+        }
+    }
+
+    @Test
+    public void shouldRunDifferentDriversInParallel() throws Exception {
+
+        // given
+        final CountDownLatch bothInside = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        // when
+        Future<Void> driver1 = executor.submit(1002, new Blocker(bothInside, release), null);
+        Future<Void> driver2 = executor.submit(1003, new Blocker(bothInside, release), null);
+
+        // then
+        // both merges run at the same time
+        assertTrue(bothInside.await(WAIT_SECONDS, TimeUnit.SECONDS));
+
+        release.countDown();
+        driver1.get(WAIT_SECONDS, TimeUnit.SECONDS);
+        driver2.get(WAIT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void shouldDropSupersededMerges() throws Exception {
+
+        // given
+        // writer is busy, drag merges queue up behind it
+        final long user = 1004;
+        final CountDownLatch inside = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+        final List<Integer> callbacks = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        long superseded = executor.getSuperseded();
+
+        Future<Void> busy = executor.submit(user, new Blocker(inside, release), null);
+        assertTrue(inside.await(WAIT_SECONDS, TimeUnit.SECONDS));
+
+        // when
+        List<Future<Integer>> drags = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            drags.add(executor.submitLatest(user, LogbookMergeExecutor.KEY_DRAG, new Recorder(i, order, threads),
+                    new LogbookMergeExecutor.Callback<Integer>() {
+                        @Override
+                        public void onResult(Integer result) {
+                            callbacks.add(result);
+                        }
+
+                        @Override
+                        public void onFailure(Throwable error) {
+                            failures.add(error);
+                        }
+                    }));
+        }
+        release.countDown();
+        busy.get(WAIT_SECONDS, TimeUnit.SECONDS);
+
+        // then
+        // only the last drag merge runs
+        assertEquals(Integer.valueOf(4), drags.get(4).get(WAIT_SECONDS, TimeUnit.SECONDS));
+        for (int i = 0; i < 4; i++) {
+            assertTrue(drags.get(i).isCancelled());
+        }
+        assertEquals(Collections.singletonList(4), order);
+        assertEquals(Collections.singletonList(4), callbacks);
+        // the dropped ones are reported
+        assertEquals(4, failures.size());
+        for (Throwable it : failures) {
+            assertTrue(it instanceof CancellationException);
+        }
+        assertEquals(superseded + 4, executor.getSuperseded());
+    }
+
+    @Test
+    public void shouldReportFailedMerge() throws Exception {
+
+        // given
+        final CountDownLatch reported = new CountDownLatch(1);
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        final IllegalStateException error = new IllegalStateException("realm closed");
+
+        // when
+        executor.submit(1006, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                throw error;
+            }
+        }, new LogbookMergeExecutor.Callback<Integer>() {
+            @Override
+            public void onResult(Integer result) {
+                reported.countDown();
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                failures.add(error);
+                reported.countDown();
+            }
+        });
+
+        // then
+        assertTrue(reported.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(Collections.<Throwable>singletonList(error), failures);
+    }
+
+    @Test
+    public void shouldRemoveIdleWriters() throws Exception {
+
+        // given
+        // drivers which merged once
+        for (long user = 1007; user < 1010; user++) {
+            executor.submit(user, new Recorder(0, new ArrayList<Integer>(), new ArrayList<String>()), null)
+                    .get(WAIT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        // when
+        executor.setIdleTimeout(0);
+        try {
+            // a writer counts as busy until its task returned, submit until the others are idle
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT_SECONDS);
+            do {
+                executor.submit(1010, new Recorder(0, new ArrayList<Integer>(), new ArrayList<String>()), null)
+                        .get(WAIT_SECONDS, TimeUnit.SECONDS);
+            } while (executor.getWriters() > 1 && System.nanoTime() < deadline);
+
+            // then
+            // only the writer of the last merge is left
+            assertEquals(1, executor.getWriters());
+        } finally {
+            executor.setIdleTimeout(TimeUnit.SECONDS.toMillis(30));
+        }
+    }
+
+    @Test
+    public void shouldRunLatestAfterPreviousFinished() throws Exception {
+
+        // given
+        final long user = 1005;
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+
+        // when
+        Future<Integer> first = executor.submitLatest(user, LogbookMergeExecutor.KEY_DRAG, new Recorder(0, order, threads), null);
+        first.get(WAIT_SECONDS, TimeUnit.SECONDS);
+        Future<Integer> second = executor.submitLatest(user, LogbookMergeExecutor.KEY_DRAG, new Recorder(1, order, threads), null);
+        second.get(WAIT_SECONDS, TimeUnit.SECONDS);
+
+        // then
+        // a finished merge is never cancelled
+        assertFalse(first.isCancelled());
+        assertEquals(2, order.size());
+    }
+
+    private static final class Recorder implements Callable<Integer> {
+        private final int id;
+        private final List<Integer> order;
+        private final List<String> threads;
+
+        Recorder(int id, List<Integer> order, List<String> threads) {
+            this.id = id;
+            this.order = order;
+            this.threads = threads;
+        }
+
+        @Override
+        public Integer call() {
+            order.add(id);
+            threads.add(Thread.currentThread().getName());
+            return id;
+        }
+    }
+
+    private static final class Blocker implements Callable<Void> {
+        private final CountDownLatch inside;
+        private final CountDownLatch release;
+
+        Blocker(CountDownLatch inside, CountDownLatch release) {
+            this.inside = inside;
+            this.release = release;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            inside.countDown();
+            release.await(WAIT_SECONDS, TimeUnit.SECONDS);
+            return null;
+        }
+    }
+}
@@ -4,36 +4,34 @@ import android.content.Context;
 import android.location.Location;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
+import android.util.Log;
 
 import com.crashlytics.android.Crashlytics;
 import com.truxtrax.utils.CollectionUtils;
 import com.truxtrax.utils.DatabaseUtils;
 
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import ca.truxtrax.activities.logbook.LogbookUtils;
 import ca.truxtrax.database.realm_dao.BaseDAO;
 import ca.truxtrax.database.realm_dao.EldAnnotationsDao;
 import ca.truxtrax.database.realm_dao.eld.EldDutyEventsDao;
-import ca.truxtrax.database.realm_dao.eld.EldEventsDao;
+import ca.truxtrax.database.realm_dao.eld.EldEventsBulkDao;
 import ca.truxtrax.database.realm_mapping.eld.EldAnnotation;
 import ca.truxtrax.database.realm_mapping.eld.EldEvent;
-import ca.truxtrax.server.ServerOperations;
 import ca.truxtrax.services.eld_events.EldEventsUtils;
-import ca.truxtrax.settings.AppSettings;
-import ca.truxtrax.settings.SettingsEditor;
 import ca.truxtrax.utils.AndroidLog;
 import ca.truxtrax.utils.CalendarUtils;
-import ca.truxtrax.utils.EldUtils;
-import ca.truxtrax.utils.LocationUtils;
-import ca.truxtrax.utils.MapperUtils;
 import io.realm.Realm;
-import server.mapping_socket.eld_mapping.EldEventItem;
-import server.mapping_socket.eld_mapping.EldRemoveEventItem;
 
 import static ca.truxtrax.logbook.LogbookMergeUtils.EventsMerger.combineEquals;
 
@@ -45,62 +43,146 @@ public class LogbookMergeUtils {
 
     private static final String tag = LogbookMergeUtils.class.getSimpleName();
 
-    public synchronized static List<EventMergeWrapper> merge(final Realm realm,
-                                                             final long user,
-                                                             final List<EldEvent> events,
-                                                             final EldEvent mergeEvent,
-                                                             final long rightDate,
-                                                             final long theTime,
-                                                             final String annotationStr) {
+    // merges of one driver are serialized, different drivers merge in parallel
+    private static final MergeLocks mergeLocks = new MergeLocks();
 
-        if (!LogbookUtils.isValidUser(user)) {
-            AndroidLog.e(tag, "not valid user, user==" + user);
-            return null;
-        }
+    // a merge planned from events another writer changed meanwhile is planned again
+    private static final int MAX_MERGE_ATTEMPTS = 3;
 
-        if (!DatabaseUtils.valid(realm)) {
-            AndroidLog.e(tag, "realm not valid");
-            return null;
+    /**
+     * Takes the driver's merge lock, the wait is recorded to {@link MergeMetrics}.
+     * Reentrant, callers which read the events before the merge take it first.
+     */
+    static void lock(long user) {
+        if (mergeLocks.isHeldByCurrentThread(user)) {
+            // taken by the caller, the wait was recorded then
+            mergeLocks.lock(user);
+            return;
         }
+        long start = MergeMetrics.start();
+        mergeLocks.lock(user);
+        MergeMetrics.stop(MergeMetrics.Phase.LOCK_WAIT, start);
+    }
 
-        if (!EldEventsUtils.isValidEvent(mergeEvent)) {
-            AndroidLog.e(tag, "event not valid");
-            return null;
-        }
+    static void unlock(long user) {
+        mergeLocks.unlock(user);
+    }
 
-        if (!isValidDutyEvent(mergeEvent)) {
-            return null;
-        }
+    /**
+     * @return merge result, null if the request is not valid
+     * @see #mergeWithOutcome
+     */
+    public static List<EventMergeWrapper> merge(final Realm realm,
+                                                final long user,
+                                                final List<EldEvent> events,
+                                                final EldEvent mergeEvent,
+                                                final long rightDate,
+                                                final long theTime,
+                                                final String annotationStr) {
+        return mergeWithOutcome(realm, user, events, mergeEvent, rightDate, theTime, annotationStr).getResult();
+    }
 
-        if (CalendarUtils.timeEquals(mergeEvent.getDatetime(), rightDate)) {
-            AndroidLog.e(tag, "mergeEvent.datetime==" + rightDate + ", " + rightDate);
-            return null;
+    /**
+     * {@link #merge} which tells why the request was rejected
+     */
+    public static MergeOutcome mergeWithOutcome(final Realm realm,
+                                                final long user,
+                                                final List<EldEvent> events,
+                                                final EldEvent mergeEvent,
+                                                final long rightDate,
+                                                final long theTime,
+                                                final String annotationStr) {
+        lock(user);
+        try {
+            return mergeLocked(realm, user, events, mergeEvent, rightDate, theTime, annotationStr);
+        } finally {
+            mergeLocks.unlock(user);
         }
+    }
 
-        if (!CalendarUtils.isTimeNotContainsSecondsAndMillis(rightDate)) {
-            AndroidLog.e(tag, "not valid rightDate==" + rightDate);
-            return null;
+    private static MergeOutcome mergeLocked(final Realm realm,
+                                            final long user,
+                                            final List<EldEvent> events,
+                                            final EldEvent mergeEvent,
+                                            final long rightDate,
+                                            final long theTime,
+                                            final String annotationStr) {
+
+        long validation = MergeMetrics.start();
+        if (!LogbookUtils.isValidUser(user)) {
+            return reject(MergeOutcome.Reason.NOT_VALID_USER, validation, user, mergeEvent, rightDate, theTime);
         }
 
-        if (!CalendarUtils.isTimeNotContainsSecondsAndMillis(theTime)) {
-            AndroidLog.e(tag, "not valid theTime==" + theTime);
-            return null;
+        if (!DatabaseUtils.valid(realm)) {
+            return reject(MergeOutcome.Reason.NOT_VALID_REALM, validation);
         }
-        if (theTime < rightDate) {
-            AndroidLog.e(tag, "theTime < rightDate, ("
-                    + CalendarUtils.getFormattedDate(new DateTime(theTime), CalendarUtils.FORMATT_eee_mmm_dd_hh_mm)
-                    + " < "
-                    + CalendarUtils.getFormattedDate(new DateTime(rightDate), CalendarUtils.FORMATT_eee_mmm_dd_hh_mm)
-                    + ")"
-            );
-            return null;
+
+        MergeOutcome.Reason reason = checkMergeRequest(mergeEvent, rightDate, theTime);
+        if (reason != MergeOutcome.Reason.OK) {
+            return reject(reason, validation, user, mergeEvent, rightDate, theTime);
         }
 
         if (CollectionUtils.isEmpty(events)) {
-            return null;
+            return reject(MergeOutcome.Reason.EMPTY_EVENTS, validation);
         }
+        MergeMetrics.stop(MergeMetrics.Phase.VALIDATION, validation);
+        MergeMetrics.inputSize(events);
+
+        return MergeOutcome.ok(merge0(realm, user, events, mergeEvent, rightDate, theTime, annotationStr));
+    }
 
-        return merge0(realm, user, events, mergeEvent, rightDate, theTime, annotationStr);
+    /**
+     * @param validation start of the validation, a rejected request is timed as well
+     */
+    private static MergeOutcome reject(MergeOutcome.Reason reason, long validation) {
+        return reject(reason, validation, 0, null, 0, 0);
+    }
+
+    /**
+     * The constant message of the reason is logged, nothing is allocated. The values of the
+     * request are formatted only if debug logging is enabled for the tag, it is off by default,
+     * e.g. {@code adb shell setprop log.tag.LogbookMergeUtils DEBUG}.
+     */
+    private static MergeOutcome reject(MergeOutcome.Reason reason, long validation,
+                                       long user, EldEvent event, long rightDate, long theTime) {
+        MergeMetrics.stop(MergeMetrics.Phase.VALIDATION, validation);
+        if (Log.isLoggable(tag, Log.DEBUG)) {
+            AndroidLog.e(tag, describe(reason, user, event, rightDate, theTime));
+        } else {
+            AndroidLog.e(tag, reason.getMessage());
+        }
+        return MergeOutcome.rejected(reason);
+    }
+
+    private static String describe(MergeOutcome.Reason reason, long user, EldEvent event, long rightDate, long theTime) {
+        switch (reason) {
+            case NOT_VALID_USER:
+                return "not valid user, user==" + user;
+            case NOT_VALID_EVENT:
+                return "event not valid, " + event;
+            case WRONG_EVENT_TYPE:
+                return "wrong event.type==" + event.getType();
+            case EMPTY_INTERVAL:
+                return "mergeEvent.datetime==" + event.getDatetime() + ", rightDate==" + rightDate;
+            case NOT_VALID_RIGHT_DATE:
+                return "not valid rightDate==" + rightDate;
+            case NOT_VALID_THE_TIME:
+                return "not valid theTime==" + theTime;
+            case THE_TIME_BEFORE_RIGHT_DATE:
+                return "theTime < rightDate, ("
+                        + CalendarUtils.getFormattedDate(new DateTime(theTime), CalendarUtils.FORMATT_eee_mmm_dd_hh_mm)
+                        + " < "
+                        + CalendarUtils.getFormattedDate(new DateTime(rightDate), CalendarUtils.FORMATT_eee_mmm_dd_hh_mm)
+                        + ")";
+            case NOT_DRIVING:
+                return "wrong logbookStatus, expected(" + EldEvent.STATUS_DRIVING + "), logbookStatus==" + event.getLogbookStatus();
+            case NOT_AUTO_ORIGIN:
+                return "wrong origin, expected(" + EldEvent.ORIGIN_AUTO + "), origin==" + event.getOrigin();
+            case DRIVING_NOT_CLOSED:
+                return "driving event not closed, " + event;
+            default:
+                return reason.getMessage();
+        }
     }
 
     private static List<EventMergeWrapper> merge0(final Realm realm,
@@ -111,200 +193,475 @@ public class LogbookMergeUtils {
                                                   final long theTime,
                                                   final String annotationStr) {
 
+        List<EldEvent> current = events;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return mergeAttempt(realm, user, current, mergeEvent, rightDate, theTime, annotationStr);
+            } catch (MergeConflictCheck.ConflictException e) {
+                if (attempt == MAX_MERGE_ATTEMPTS) {
+                    AndroidLog.e(tag, "merge given up, events keep changing");
+                    Crashlytics.logException(e);
+                    return new ArrayList<>();
+                }
+                // the cancelled transaction left the Realm at the latest version, the whole log
+                // as the callers pass it, a slice would re-combine fewer events than the first attempt
+                current = new EldDutyEventsDao(realm).selectForDriverId(user);
+            }
+        }
+    }
+
+    /**
+     * @throws MergeConflictCheck.ConflictException if the events were changed by another writer since they were read
+     */
+    private static List<EventMergeWrapper> mergeAttempt(final Realm realm,
+                                                        final long user,
+                                                        final List<EldEvent> events,
+                                                        final EldEvent mergeEvent,
+                                                        final long rightDate,
+                                                        final long theTime,
+                                                        final String annotationStr) {
+
         final List<EventMergeWrapper> result = new ArrayList<>();
+        List<EventMergeWrapper> diff;
+        long seq = MergeJournal.NO_SEQ;
 
         try {
+            // planning only reads the events, the transaction just applies the plan
+            final MergePlan plan = MergePlanner.plan(events, mergeEvent, rightDate, theTime);
+            if (plan.isEmpty()) {
+                return result;
+            }
+            diff = MergeTimelineStore.detach(plan.results);
+            final MergeConflictCheck check = MergeConflictCheck.of(plan.events, plan.results, user, mergeEvent.getDatetime(), rightDate);
+
+            // no reads inside the transaction but the check
+            final List<EldAnnotation> annotations = new ArrayList<>(1);
+            if (isValidAnnotation(annotationStr)) {
+                long start = MergeMetrics.start();
+                EldAnnotation annotation = AnnotationIndex.getInstance()
+                        .resolve(realm, user, plan.annotationTarget, mergeEvent.getDatetime(), annotationStr);
+                if (annotation != null) {
+                    annotations.add(annotation);
+                }
+                MergeMetrics.stop(MergeMetrics.Phase.ANNOTATION, start);
+            }
+            final CertificationInvalidator.DayRange days = CertificationInvalidator.affectedDays(plan.events, diff, DateTimeZone.getDefault(), theTime);
+            seq = journalBegin(user, diff, mergeEvent, rightDate, theTime, annotationStr);
+
+            long transaction = MergeMetrics.start();
             DatabaseUtils.executeTransaction(realm, new Realm.Transaction() {
                 @Override
                 public void execute(@NonNull Realm realm) {
 
-                    EldEvent[] coveredEventResult = new EldEvent[1];
-                    boolean shouldMerge = checkNeedToMerge(coveredEventResult, events, mergeEvent, rightDate);
-                    List<EventMergeWrapper> mergeResult = null;
-                    if (shouldMerge) {
-                        mergeResult = mergeEvents(events, mergeEvent, rightDate, theTime);
-                    } else {
-                        if (coveredEventResult[0] != null) {
-                            // merge to covered status
-                            mergeResult = new ArrayList<>();
-                            LogbookMergeUtils.EventMergeWrapper.editEvent(mergeResult, coveredEventResult[0], mergeEvent);
-                        }
-                    }
-
-                    if (!CollectionUtils.isEmpty(mergeResult)) {
+                    // the plan was made from events read before, they must be as they were read
+                    checkNotChanged(realm, check);
 
-                        // save and push events
-                        saveAndPush(realm, user, mergeResult);
+                    List<EventMergeWrapper> mergeResult = plan.results;
 
-                        // save and push annotation
-                        if (!TextUtils.isEmpty(annotationStr) && annotationStr.trim().length() >= EldAnnotation.MIN_COMMENT_LENGTH) {
-                            EldAnnotation annotation = mergeAnnotation(new EldAnnotationsDao(realm), mergeResult, mergeEvent.getDatetime(), annotationStr);
-                            if (annotation != null) {
-                                saveAndPushAnnotation(realm, user, annotation);
-                            }
-                        }
+                    // save and push events
+                    saveAndPush(realm, user, mergeResult);
 
-                        // reset certification
-                        //TODO
+                    // save and push annotation
+                    saveAndPushAnnotations(realm, user, annotations);
 
-                        // copy result from transaction
-                        result.addAll(mergeResult);
-                    }
+                    // reset certification of the changed days
+                    CertificationInvalidator.invalidate(realm, user, days);
 
+                    // copy result from transaction
+                    result.addAll(mergeResult);
                 }
             });
+            MergeMetrics.stop(MergeMetrics.Phase.TRANSACTION, transaction);
+            journalEnd(seq, true);
+            AnnotationIndex.getInstance().onMerged(user, annotations, diff);
+        } catch (MergeConflictCheck.ConflictException e) {
+            journalEnd(seq, false);
+            AnnotationIndex.getInstance().invalidate(user);
+            throw e;
         } catch (IllegalStateException e) {
+            journalEnd(seq, false);
+            // cached annotations may hold comments which were never saved
+            AnnotationIndex.getInstance().invalidate(user);
             e.printStackTrace();
             Crashlytics.logException(e);
             return result;
         }
 
+        if (!result.isEmpty()) {
+            MergeMetrics.results(result);
+            MergeTimelineStore.getInstance().publish(user, diff);
+            MergeOutboxDispatcher.getInstance().schedule();
+        }
+
         return result;
     }
 
-    private static EldAnnotation mergeAnnotation(EldAnnotationsDao dao, List<EventMergeWrapper> result, long time, String annotationStr) {
+    /**
+     * Applies several edits of one driver with one transaction and one push, for tools which fix
+     * a whole day or swap co-drivers. Every request is merged into the result of the previous
+     * ones in memory, the database gets the net change of every event.
+     *
+     * @return net merge result, null if one of the requests is not valid, then nothing is merged
+     * @see #mergeBatchWithOutcome
+     */
+    public static List<EventMergeWrapper> mergeBatch(final Realm realm,
+                                                     final long user,
+                                                     final List<EldEvent> events,
+                                                     final List<MergeRequest> requests) {
+        return mergeBatchWithOutcome(realm, user, events, requests).getResult();
+    }
 
-        EldEvent eventToAnnotate = findEventToAnnotate(result, time);
-        if (eventToAnnotate == null) {
-            return null;
+    /**
+     * {@link #mergeBatch} which tells why the batch was rejected, the reason of the first invalid request
+     */
+    public static MergeOutcome mergeBatchWithOutcome(final Realm realm,
+                                                     final long user,
+                                                     final List<EldEvent> events,
+                                                     final List<MergeRequest> requests) {
+        lock(user);
+        try {
+            return mergeBatchLocked(realm, user, events, requests);
+        } finally {
+            mergeLocks.unlock(user);
         }
+    }
 
-        EldAnnotation annotation = dao.getAnnotation(eventToAnnotate.getId());
-        if (annotation == null) {
-            return new EldAnnotation(BaseDAO.generateUuid(), eventToAnnotate.getUser(), time, eventToAnnotate.getId(), annotationStr);
-        } else {
-            annotation.setComment(annotationStr);
-            return annotation;
+    private static MergeOutcome mergeBatchLocked(final Realm realm,
+                                                 final long user,
+                                                 final List<EldEvent> events,
+                                                 final List<MergeRequest> requests) {
+
+        long validation = MergeMetrics.start();
+        if (!LogbookUtils.isValidUser(user)) {
+            return reject(MergeOutcome.Reason.NOT_VALID_USER, validation, user, null, 0, 0);
         }
-    }
 
-    private static EldEvent findEventToAnnotate(List<EventMergeWrapper> result, long time) {
-        // finding appropriate event
-        // event with equal date or nearest left event
-        EldEvent theEvent = null;
-        for (int i = 0; i < result.size(); i++) {
-            EventMergeWrapper it = result.get(i);
-            switch (it.mergeResult) {
-                case EventMergeWrapper.MERGE_RESULT_EDITED:
-                case EventMergeWrapper.MERGE_RESULT_NEW:
+        if (!DatabaseUtils.valid(realm)) {
+            return reject(MergeOutcome.Reason.NOT_VALID_REALM, validation);
+        }
 
-                    // assign by default
-                    if (theEvent == null) {
-                        if (it.event.getDatetime() <= time) {
-                            theEvent = it.event;
-                        }
-                    } else if (it.event.getDatetime() == time) {
+        if (CollectionUtils.isEmpty(requests)) {
+            return reject(MergeOutcome.Reason.EMPTY_REQUESTS, validation);
+        }
 
-                        // event found
-                        return it.event;
-                    } else if (it.event.getDatetime() > theEvent.getDatetime()
-                            && it.event.getDatetime() < time) {
-                        theEvent = it.event;
-                    }
-                    break;
+        for (int i = 0; i < requests.size(); i++) {
+            MergeRequest it = requests.get(i);
+            if (it == null) {
+                return reject(MergeOutcome.Reason.NOT_VALID_EVENT, validation);
+            }
+            MergeOutcome.Reason reason = checkMergeRequest(it.mergeEvent, it.rightDate, it.theTime);
+            if (reason != MergeOutcome.Reason.OK) {
+                return reject(reason, validation, user, it.mergeEvent, it.rightDate, it.theTime);
             }
         }
-        return theEvent;
+
+        if (CollectionUtils.isEmpty(events)) {
+            return reject(MergeOutcome.Reason.EMPTY_EVENTS, validation);
+        }
+        MergeMetrics.stop(MergeMetrics.Phase.VALIDATION, validation);
+        MergeMetrics.inputSize(events);
+
+        return MergeOutcome.ok(mergeBatch0(realm, user, events, requests));
     }
 
-    private static void saveAndPushAnnotation(Realm realm, Long user, EldAnnotation annotation) {
-        pushAnnotationServer(realm, user, annotation);
-        saveAnnotationToDatabase(realm, annotation);
+    private static List<EventMergeWrapper> mergeBatch0(final Realm realm,
+                                                       final long user,
+                                                       final List<EldEvent> events,
+                                                       final List<MergeRequest> requests) {
+
+        List<EldEvent> current = events;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return mergeBatchAttempt(realm, user, current, requests);
+            } catch (MergeConflictCheck.ConflictException e) {
+                if (attempt == MAX_MERGE_ATTEMPTS) {
+                    AndroidLog.e(tag, "batch merge given up, events keep changing");
+                    Crashlytics.logException(e);
+                    return new ArrayList<>();
+                }
+                current = new EldDutyEventsDao(realm).selectForDriverId(user);
+            }
+        }
     }
 
-    private static void pushAnnotationServer(Realm realm, Long user, EldAnnotation annotation) {
-        if (annotation.getEvent().startsWith(EldEvent.EVENT_STUB_CLIENT_ID)) {
-            return;
+    /**
+     * @throws MergeConflictCheck.ConflictException if the events were changed by another writer since they were read
+     */
+    private static List<EventMergeWrapper> mergeBatchAttempt(final Realm realm,
+                                                             final long user,
+                                                             final List<EldEvent> events,
+                                                             final List<MergeRequest> requests) {
+
+        final List<EventMergeWrapper> result = new ArrayList<>();
+        List<EventMergeWrapper> diff;
+        long seq = MergeJournal.NO_SEQ;
+
+        try {
+            final MergeBatch batch = MergeBatch.plan(events, requests);
+            if (batch.isEmpty()) {
+                return result;
+            }
+            diff = MergeTimelineStore.detach(batch.results);
+            final MergeConflictCheck check = MergeConflictCheck.of(batch.events, batch.results, user, leftDate(requests), rightDate(requests));
+
+            // no reads inside the transaction but the check
+            final List<EldAnnotation> annotations = resolveAnnotations(realm, user, batch.annotations);
+            final CertificationInvalidator.DayRange days = CertificationInvalidator.affectedDays(batch.events, diff, DateTimeZone.getDefault(), System.currentTimeMillis());
+            seq = journalBegin(user, requests, diff);
+
+            long transaction = MergeMetrics.start();
+            DatabaseUtils.executeTransaction(realm, new Realm.Transaction() {
+                @Override
+                public void execute(@NonNull Realm realm) {
+
+                    // the batch was made from events read before, they must be as they were read
+                    checkNotChanged(realm, check);
+
+                    // save and push events
+                    saveAndPush(realm, user, batch.results);
+
+                    // save and push annotations
+                    saveAndPushAnnotations(realm, user, annotations);
+
+                    // reset certification of the changed days
+                    CertificationInvalidator.invalidate(realm, user, days);
+
+                    result.addAll(batch.results);
+                }
+            });
+            MergeMetrics.stop(MergeMetrics.Phase.TRANSACTION, transaction);
+            journalEnd(seq, true);
+            AnnotationIndex.getInstance().onMerged(user, annotations, diff);
+        } catch (MergeConflictCheck.ConflictException e) {
+            journalEnd(seq, false);
+            AnnotationIndex.getInstance().invalidate(user);
+            throw e;
+        } catch (IllegalStateException e) {
+            journalEnd(seq, false);
+            // cached annotations may hold comments which were never saved
+            AnnotationIndex.getInstance().invalidate(user);
+            e.printStackTrace();
+            Crashlytics.logException(e);
+            return result;
         }
-        ServerOperations.saveAnnotation(realm, user, annotation);
+
+        if (!result.isEmpty()) {
+            MergeMetrics.results(result);
+            MergeTimelineStore.getInstance().publish(user, diff);
+            MergeOutboxDispatcher.getInstance().schedule();
+        }
+
+        return result;
     }
 
-    private static void saveAnnotationToDatabase(Realm realm, EldAnnotation annotation) {
-        EldAnnotationsDao annotationsDao = new EldAnnotationsDao(realm);
-        annotationsDao.copyToRealmOrUpdate(annotation);
+    /**
+     * left end of the requests' windows
+     */
+    private static long leftDate(List<MergeRequest> requests) {
+        long left = Long.MAX_VALUE;
+        for (int i = 0; i < requests.size(); i++) {
+            left = Math.min(left, requests.get(i).mergeEvent.getDatetime());
+        }
+        return left;
     }
 
-    private static void saveAndPush(Realm realm, Long user, List<EventMergeWrapper> mergeEvent) {
-        pushMergeResultToServer(realm, user, mergeEvent);
-        saveMergeResultToDatabase(realm, mergeEvent);
+    /**
+     * right end of the requests' windows
+     */
+    private static long rightDate(List<MergeRequest> requests) {
+        long right = Long.MIN_VALUE;
+        for (int i = 0; i < requests.size(); i++) {
+            right = Math.max(right, requests.get(i).rightDate);
+        }
+        return right;
     }
 
-    private static void pushMergeResultToServer(Realm realm, Long user, List<EventMergeWrapper> mergeEvent) {
-        final List<EldEventItem> mergeList = new ArrayList<>();
-        final List<EldRemoveEventItem> removeList = new ArrayList<>();
+    private static long journalBegin(long user, List<EventMergeWrapper> diff, EldEvent mergeEvent,
+                                     long rightDate, long theTime, String annotationStr) {
+        if (MergeJournal.get() == null) {
+            return MergeJournal.NO_SEQ;
+        }
+        return journalBegin(user, Collections.singletonList(new MergeRequest(mergeEvent, rightDate, theTime, annotationStr)), diff);
+    }
+
+    /**
+     * a journal failure never fails the merge, the merge just can't be replayed
+     */
+    private static long journalBegin(long user, List<MergeRequest> requests, List<EventMergeWrapper> diff) {
+        MergeJournal journal = MergeJournal.get();
+        if (journal == null) {
+            return MergeJournal.NO_SEQ;
+        }
+        try {
+            return journal.begin(user, requests, diff);
+        } catch (IOException e) {
+            e.printStackTrace();
+            Crashlytics.logException(e);
+            return MergeJournal.NO_SEQ;
+        }
+    }
 
-        for (EventMergeWrapper it : mergeEvent) {
+    private static void journalEnd(long seq, boolean committed) {
+        MergeJournal journal = MergeJournal.get();
+        if (journal == null || seq == MergeJournal.NO_SEQ) {
+            return;
+        }
+        try {
+            if (committed) {
+                journal.commit(seq);
+            } else {
+                journal.abort(seq);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            Crashlytics.logException(e);
+        }
+    }
 
-            // should not be sent to server, only for local display
-            if (it.event.getId().startsWith(EldEvent.EVENT_STUB_CLIENT_ID)) {
+    /**
+     * later requests on the same event override the comment, as if saved one by one
+     */
+    private static List<EldAnnotation> resolveAnnotations(Realm realm, long user, List<MergeBatch.PendingAnnotation> pending) {
+        long start = MergeMetrics.start();
+        Map<String, EldAnnotation> byEvent = new LinkedHashMap<>();
+        for (int i = 0; i < pending.size(); i++) {
+            MergeBatch.PendingAnnotation it = pending.get(i);
+            if (!isValidAnnotation(it.comment)) {
                 continue;
             }
+            EldAnnotation annotation = byEvent.get(it.event.getId());
+            if (annotation != null) {
+                annotation.setComment(it.comment);
+            } else {
+                annotation = AnnotationIndex.getInstance().resolve(realm, user, it.event, it.time, it.comment);
+                if (annotation != null) {
+                    byEvent.put(it.event.getId(), annotation);
+                }
+            }
+        }
+        MergeMetrics.stop(MergeMetrics.Phase.ANNOTATION, start);
+        return new ArrayList<>(byEvent.values());
+    }
 
-            switch (it.mergeResult) {
-                case EventMergeWrapper.MERGE_RESULT_REMOVED:
-                    removeList.add(new EldRemoveEventItem(it.event.getId()));
-                    break;
-                case EventMergeWrapper.MERGE_RESULT_NEW:
-                case EventMergeWrapper.MERGE_RESULT_EDITED:
-                case EventMergeWrapper.MERGE_RESULT_REJECTED:
-                    mergeList.add(MapperUtils.convertToServerEldEvent(it.event));
-                    break;
+    private static boolean isValidAnnotation(String annotationStr) {
+        return !TextUtils.isEmpty(annotationStr) && annotationStr.trim().length() >= EldAnnotation.MIN_COMMENT_LENGTH;
+    }
 
-            }
+    /**
+     * @return {@link MergeOutcome.Reason#OK} if the request can be merged
+     */
+    private static MergeOutcome.Reason checkMergeRequest(EldEvent mergeEvent, long rightDate, long theTime) {
+
+        if (!EldEventsUtils.isValidEvent(mergeEvent)) {
+            return MergeOutcome.Reason.NOT_VALID_EVENT;
         }
 
-        if (!CollectionUtils.isEmpty(mergeList) || !CollectionUtils.isEmpty(removeList)) {
-            ServerOperations.mergeEvents(realm, user, mergeList, removeList);
+        if (!isValidDutyEvent(mergeEvent)) {
+            return MergeOutcome.Reason.WRONG_EVENT_TYPE;
         }
-    }
 
-    private static void saveMergeResultToDatabase(Realm realm, List<EventMergeWrapper> mergeEvent) {
+        if (CalendarUtils.timeEquals(mergeEvent.getDatetime(), rightDate)) {
+            return MergeOutcome.Reason.EMPTY_INTERVAL;
+        }
+
+        if (!CalendarUtils.isTimeNotContainsSecondsAndMillis(rightDate)) {
+            return MergeOutcome.Reason.NOT_VALID_RIGHT_DATE;
+        }
 
-        EldEventsDao dao = new EldEventsDao(realm);
-        for (EventMergeWrapper it : mergeEvent) {
+        if (!CalendarUtils.isTimeNotContainsSecondsAndMillis(theTime)) {
+            return MergeOutcome.Reason.NOT_VALID_THE_TIME;
+        }
+
+        if (theTime < rightDate) {
+            return MergeOutcome.Reason.THE_TIME_BEFORE_RIGHT_DATE;
+        }
+        return MergeOutcome.Reason.OK;
+    }
+
+    static EldEvent findEventToAnnotate(List<EventMergeWrapper> result, long time) {
+        // finding appropriate event
+        // event with equal date or nearest left event
+        List<EldEvent> targets = new ArrayList<>(result.size());
+        for (int i = 0; i < result.size(); i++) {
+            EventMergeWrapper it = result.get(i);
             switch (it.mergeResult) {
-                case EventMergeWrapper.MERGE_RESULT_REMOVED:
-                    dao.delete(it.event);
-                    break;
-                case EventMergeWrapper.MERGE_RESULT_NEW:
-                    dao.copyToRealm(it.event);
-                    break;
                 case EventMergeWrapper.MERGE_RESULT_EDITED:
-                case EventMergeWrapper.MERGE_RESULT_REJECTED:
-                    dao.copyToRealmOrUpdate(it.event);
+                case EventMergeWrapper.MERGE_RESULT_NEW:
+                    targets.add(it.event);
                     break;
             }
         }
+        DutyTimeline timeline = DutyTimeline.of(targets);
+        int index = timeline.floorIndex(time);
+        return index < 0 ? null : timeline.get(index);
     }
 
-    private static List<EventMergeWrapper> mergeEvents(List<EldEvent> events, EldEvent mergeEvent, long rightDate, long theTime) {
-        EventsMerger merger = new EventsMerger(events, mergeEvent, rightDate, theTime);
-        return merger.execute();
+    /**
+     * the annotation is pushed by {@link MergeOutboxDispatcher} after commit
+     */
+    private static void saveAndPushAnnotations(Realm realm, Long user, List<EldAnnotation> annotations) {
+        if (annotations.isEmpty()) {
+            return;
+        }
+        EldAnnotationsDao annotationsDao = new EldAnnotationsDao(realm);
+        for (int i = 0; i < annotations.size(); i++) {
+            EldAnnotation annotation = annotations.get(i);
+            annotationsDao.copyToRealmOrUpdate(annotation);
+            MergeOutbox.enqueueAnnotation(realm, user, annotation);
+        }
     }
 
-    public static List<EventMergeWrapper> mergeLastEvent(Context context, long user, int logbookStatus) {
-        Float engineHours = null;
-        Double odometer = null;
-        if (EldUtils.isConfigured(context)) {
-            float engineHoursCache = EldUtils.getCachedEngineHoursFloat(context);
-            engineHours = engineHoursCache == SettingsEditor.FLOAT_NULL_VALUE ? null : engineHoursCache;
-            double cachedOdometer = EldUtils.getCachedOdometerFloat(context);
-            odometer = (cachedOdometer == SettingsEditor.FLOAT_NULL_VALUE ? null : cachedOdometer);
-        }
+    /**
+     * inside the transaction, which reads the latest version of the events
+     */
+    private static void checkNotChanged(Realm realm, MergeConflictCheck check) {
+        long start = MergeMetrics.start();
+        check.verify(realm);
+        MergeMetrics.stop(MergeMetrics.Phase.CONFLICT_CHECK, start);
+    }
 
-        if (odometer == null) {
-            odometer = 0d;
-        }
+    /**
+     * the result is pushed by {@link MergeOutboxDispatcher} after commit,
+     * so network latency never extends the write transaction
+     */
+    private static void saveAndPush(Realm realm, Long user, List<EventMergeWrapper> mergeEvent) {
+        // one action per event
+        List<EventMergeWrapper> compacted = MergeResultCompactor.compact(mergeEvent);
+        // ids are read before the removed events are deleted
+        long start = MergeMetrics.start();
+        MergeOutbox.enqueueEvents(realm, user, compacted);
+        MergeMetrics.stop(MergeMetrics.Phase.OUTBOX_ENQUEUE, start);
+
+        start = MergeMetrics.start();
+        saveMergeResultToDatabase(realm, compacted);
+        MergeMetrics.stop(MergeMetrics.Phase.DB_APPLY, start);
+    }
 
-        if (engineHours == null) {
-            engineHours = 0f;
-        }
+    private static void saveMergeResultToDatabase(Realm realm, List<EventMergeWrapper> mergeEvent) {
+
+        // one delete, one insert and one read of the changed events for the whole result
+        MergeApplyBatch.of(mergeEvent).applyTo(new EldEventsBulkDao(realm));
+    }
 
-        Location location = LocationUtils.lastKnownLocation(context);
-        String locationStr = location == null ? null : LocationUtils.getNearestCityDirectionFormattedString(context, location);
-        final Long eldId = EldUtils.getConnectedEldId(context);
+    static List<EventMergeWrapper> mergeEvents(List<EldEvent> events, EldEvent mergeEvent, long rightDate, long theTime) {
+        EventsMerger merger = new EventsMerger(DutyTimeline.of(events), mergeEvent, rightDate, theTime);
+        return merger.execute();
+    }
 
-        int logbookIntervalInMins = new AppSettings(context).getLogbookFrequencyInMins();
+    public static List<EventMergeWrapper> mergeLastEvent(Context context, long user, int logbookStatus) {
+        // settings and the nearest city are cached between merges, ELD readings are current
+        MergeContextCache cache = MergeContextCache.getInstance();
+        MergeContextCache.Snapshot snapshot = cache.getSnapshot(context);
+        MergeContextCache.Readings readings = cache.getReadings(context);
+        MergeContextCache.Place place = cache.getPlace(context);
+
+        double odometer = readings.odometer;
+        float engineHours = readings.engineHours;
+        Location location = place.location;
+        String locationStr = place.locationStr;
+        final Long eldId = readings.eldId;
+
+        int logbookIntervalInMins = snapshot.logbookIntervalInMins;
         DateTime currentTime = LogbookCalendar.getInstance(logbookIntervalInMins);
         long left = currentTime.getMillis();
         long right = currentTime.getMillis() + TimeUnit.MINUTES.toMillis(logbookIntervalInMins);
@@ -328,53 +685,78 @@ public class LogbookMergeUtils {
             mergeEvent.setLat((float) location.getLatitude());
             mergeEvent.setLon((float) location.getLongitude());
         }
-        long theTime = currentTime.getMillis() + TimeUnit.MINUTES.toMillis(new AppSettings(context).getLogbookFrequencyInMins());
+        long theTime = right;
 
-        Realm realm = Realm.getDefaultInstance();
+        // events are read under the driver lock, so they can't be changed by another merge of the same driver
+        lock(user);
         try {
-            return LogbookMergeUtils.merge(realm, user, new EldDutyEventsDao(realm).selectForDriverId(user), mergeEvent, right, theTime, null);
+            Realm realm = Realm.getDefaultInstance();
+            try {
+                // only the end of the log is needed, not the whole history
+                List<EldEvent> events = MergeWindow.slice(new EldDutyEventsDao(realm).selectForDriverId(user), left, right);
+                return LogbookMergeUtils.merge(realm, user, events, mergeEvent, right, theTime, null);
+            } finally {
+                DatabaseUtils.closeQuietly(realm);
+            }
         } finally {
-            DatabaseUtils.closeQuietly(realm);
+            mergeLocks.unlock(user);
         }
     }
 
     public static class EventsMerger {
-        final List<EldEvent> events;
+        final DutyTimeline events;
         final EldEvent mergeEvent;
         final long rightDate;
         final Long theTime;
+        final boolean incremental;
 
-        public EventsMerger(List<EldEvent> events, EldEvent mergeEvent, long rightDate, long theTime) {
+        /**
+         * @param events the timeline of the planner, it's shared and never rebuilt
+         */
+        public EventsMerger(DutyTimeline events, EldEvent mergeEvent, long rightDate, long theTime) {
+            this(events, mergeEvent, rightDate, theTime, false);
+        }
+
+        /**
+         * @param incremental combine equal statuses only around the events the merge changes,
+         *                    the rest of the log is expected to be combined already
+         */
+        public EventsMerger(DutyTimeline events, EldEvent mergeEvent, long rightDate, long theTime, boolean incremental) {
             this.events = events;
             this.mergeEvent = mergeEvent;
             this.rightDate = rightDate;
             this.theTime = theTime;
+            this.incremental = incremental;
         }
 
         public List<EventMergeWrapper> execute() {
+            long start = MergeMetrics.start();
             List<EventMergeWrapper> resultsList = new ArrayList<>();
 
-            boolean leftFound = false, rightFound = false;
+            boolean leftFound = false, rightFound;
 
-            for (int i = 0; i < events.size(); i++) {
+            long leftDate = mergeEvent.getDatetime();
 
-                EldEvent event = events.get(i);
-                // remove all between the draggers
-                if (event.getDatetime() > mergeEvent.getDatetime() && event.getDatetime() < rightDate) {
-                    EventMergeWrapper.removeEvent(resultsList, event);
-                }
-                // if left dates equals, merge them
-                else if (event.getDatetime() == mergeEvent.getDatetime()) {
+            // if left dates equals, merge them
+            int leftFrom = events.ceilingIndex(leftDate);
+            int leftTo = events.higherIndex(leftDate);
+            for (int i = leftFrom; i < leftTo; i++) {
+                leftFound = true;
+                EventMergeWrapper.mergeTwoEvents(resultsList, events.get(i), mergeEvent);
+            }
 
-                    leftFound = true;
-                    EventMergeWrapper.mergeTwoEvents(resultsList, event, mergeEvent);
-                } else if (event.getDatetime() == rightDate) {
-                    rightFound = true;
+            // remove all between the draggers
+            if (rightDate > leftDate) {
+                int betweenTo = events.ceilingIndex(rightDate);
+                for (int i = leftTo; i < betweenTo; i++) {
+                    EventMergeWrapper.removeEvent(resultsList, events.get(i));
                 }
             }
 
+            rightFound = events.containsDatetime(rightDate);
+
             if (!leftFound) {
-                EldEvent nearestLeftEvent = findNearestLeft(events, mergeEvent.getDatetime(), false);
+                EldEvent nearestLeftEvent = findNearestLeft(events, leftDate, null);
                 if (nearestLeftEvent != null) {
                     if (equalsEventsByTypeCode(nearestLeftEvent, mergeEvent)) {
                         EventMergeWrapper.editEvent(resultsList, nearestLeftEvent, mergeEvent);
@@ -388,7 +770,7 @@ public class LogbookMergeUtils {
             if (!rightFound) {
                 // nearest left event from rightDate
                 if (rightDate != theTime) {
-                    EldEvent eventCopy = findNearestLeft(events, rightDate, true);
+                    EldEvent eventCopy = findNearestLeft(events, rightDate, resultsList);
                     if (eventCopy != null) {
                         if (!equalsEventsByTypeCode(eventCopy, mergeEvent)) {
                             EventMergeWrapper.newEvent(resultsList, eventCopy);
@@ -397,75 +779,104 @@ public class LogbookMergeUtils {
                 }
             }
 
-            combineEquals(resultsList, events);
+            if (incremental) {
+                // from the nearest left events to the nearest right one, plus a neighbour on each side
+                int from = Math.min(events.lowerIndex(leftDate), events.lowerIndex(rightDate)) - 1;
+                int to = Math.max(events.higherIndex(leftDate), events.ceilingIndex(rightDate)) + 2;
+                combineEqualsInRange(resultsList, events, Math.max(0, from), Math.min(events.size(), to));
+            } else {
+                combineEquals(resultsList, events);
+            }
 
+            MergeMetrics.stop(MergeMetrics.Phase.EXECUTE, start);
             return resultsList;
         }
 
+        /**
+         * Removes events which continue the status of their left neighbour.
+         * <p>
+         * One pass over the timeline, the status of an event is found by id in the thread's
+         * {@link MergeResultBuffer} instead of scanning {@code result}, the pass allocates nothing
+         * per event. Edited events are compared by their edited copy.
+         * Changed results are removed from their position and appended at the end, as before.
+         */
         protected static void combineEquals(List<EventMergeWrapper> result, List<EldEvent> events) {
+            combineEqualsInRange(result, events, 0, events.size());
+        }
 
-            for (int i = 0; i < events.size(); i++) {
-
-                EldEvent it = events.get(i);
+        /**
+         * {@link #combineEquals} for the events in {@code [from, to)} only
+         */
+        static void combineEqualsInRange(List<EventMergeWrapper> result, List<EldEvent> events, int from, int to) {
 
-                if (findMergeResultStatus(it, result).mergeResult == EventMergeWrapper.MERGE_RESULT_REMOVED) {
-                    continue;
-                }
+            long start = MergeMetrics.start();
 
-                for (int y = i + 1; y < events.size(); y++) {
+            // first result of every event, the one a scan of result would find
+            MergeResultBuffer buffer = MergeResultBuffer.get();
+            buffer.load(result);
+            try {
+                for (int i = from; i < to; i++) {
 
-                    EldEvent nextIt = events.get(y);
-                    // ignore removed event
-                    EventMergeWrapper mergeResult = findMergeResultStatus(nextIt, result);
-                    if (mergeResult.mergeResult == EventMergeWrapper.MERGE_RESULT_REMOVED) {
+                    int itIndex = buffer.indexOf(events.get(i).getId());
+                    if (buffer.mergeResultAt(itIndex) == EventMergeWrapper.MERGE_RESULT_REMOVED) {
                         continue;
                     }
+                    EldEvent it = buffer.versionOf(itIndex, events.get(i));
 
-                    if (canBeMergedInOne(it, nextIt)) {
-                        switch (mergeResult.mergeResult) {
-                            case EventMergeWrapper.MERGE_RESULT_NEW:
-                                // this event will be ignored
-                                EventMergeWrapper.cancelEventResult(result, mergeResult);
-                                break;
-                            default:
-                                EventMergeWrapper.changeEventResult(result, mergeResult, EventMergeWrapper.MERGE_RESULT_REMOVED);
-                                break;
+                    for (int y = i + 1; y < to; y++) {
+
+                        EldEvent nextIt = events.get(y);
+                        // ignore removed event
+                        int nextIndex = buffer.indexOf(nextIt.getId());
+                        int status = buffer.mergeResultAt(nextIndex);
+                        if (status == EventMergeWrapper.MERGE_RESULT_REMOVED) {
+                            continue;
                         }
 
-                        i = y + 1;
-                        continue;
+                        if (canBeMergedInOne(it, buffer.versionOf(nextIndex, nextIt))) {
+                            if (nextIndex != MergeResultBuffer.NONE) {
+                                buffer.drop(nextIndex);
+                            }
+                            switch (status) {
+                                case EventMergeWrapper.MERGE_RESULT_NEW:
+                                    // this event will be ignored
+                                    buffer.unmap(nextIt.getId());
+                                    break;
+                                default:
+                                    buffer.map(nextIt.getId(), buffer.append(EventMergeWrapper.MERGE_RESULT_REMOVED, nextIt));
+                                    break;
+                            }
+
+                            i = y + 1;
+                            continue;
+                        }
+                        break;
                     }
-                    break;
                 }
-            }
-        }
 
-        private static EventMergeWrapper findMergeResultStatus(EldEvent event, List<EventMergeWrapper> result) {
-            for (EventMergeWrapper it : result) {
-                if (it.event == event) {
-                    return it;
-                }
+                buffer.writeTo(result);
+            } finally {
+                buffer.clear();
             }
-            return new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_NO_CHANGES, event);
+            MergeMetrics.stop(MergeMetrics.Phase.COMBINE_EQUALS, start);
         }
 
         /**
-         * find nearest left to {@date} event, copy it, assign date
+         * find nearest left to {@date} event, if {@code results} is set copy its latest version and assign date
          */
-        private EldEvent findNearestLeft(List<EldEvent> events, long date, boolean copy) {
-            for (int i = events.size() - 1; i >= 0; i--) {
-                EldEvent it = events.get(i);
-                if (it.getDatetime() < date) {
-                    if (copy) {
-                        EldEvent eventCopy = it.copy();
-                        eventCopy.setId(BaseDAO.generateUuid());
-                        eventCopy.setDatetime(date);
-                        return eventCopy;
-                    }
-                    return it;
-                }
+        private EldEvent findNearestLeft(DutyTimeline timeline, long date, List<EventMergeWrapper> results) {
+            int index = timeline.lowerIndex(date);
+            if (index < 0) {
+                return null;
+            }
+            EldEvent it = timeline.get(index);
+            if (results != null) {
+                EldEvent eventCopy = EventMergeWrapper.latestVersion(results, it).copy();
+                eventCopy.setId(BaseDAO.generateUuid());
+                eventCopy.setDatetime(date);
+                return eventCopy;
             }
-            return null;
+            return it;
         }
     }
 
@@ -485,12 +896,35 @@ public class LogbookMergeUtils {
             this.event = event;
         }
 
+        /**
+         * {@link #event} is a detached copy with the changes, the original event is untouched
+         */
+        boolean isEdit() {
+            return mergeResult == MERGE_RESULT_EDITED
+                    || mergeResult == MERGE_RESULT_CLOSE_DRIVE
+                    || mergeResult == MERGE_RESULT_REJECTED;
+        }
+
+        /**
+         * @return last edited copy of the event from {@code results}, the event itself if it was not edited
+         */
+        static EldEvent latestVersion(List<EventMergeWrapper> results, EldEvent event) {
+            for (int i = results.size() - 1; i >= 0; i--) {
+                EventMergeWrapper it = results.get(i);
+                if (it.isEdit() && it.event.getId().equals(event.getId())) {
+                    return it.event;
+                }
+            }
+            return event;
+        }
+
         static void mergeTwoEvents(List<EventMergeWrapper> resultsList, EldEvent event1, EldEvent event2) {
 
             if (event1.getType().intValue() == event2.getType().intValue()) {
                 // copy only certain field
-                copySignificantFields(event1, event2);
-                resultsList.add(new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_EDITED, event1));
+                EldEvent edited = event1.copy();
+                copySignificantFields(edited, event2);
+                resultsList.add(new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_EDITED, edited));
                 // TODO annotations
             } else {
                 // remove event, and replace by "merge candidate"
@@ -514,8 +948,9 @@ public class LogbookMergeUtils {
         }
 
         static void editEvent(List<EventMergeWrapper> result, EldEvent event, EldEvent mergeEvent) {
-            copySignificantFields(event, mergeEvent);
-            result.add(new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_EDITED, event));
+            EldEvent edited = event.copy();
+            copySignificantFields(edited, mergeEvent);
+            result.add(new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_EDITED, edited));
         }
 
         static void newEvent(List<EventMergeWrapper> result, EldEvent mergeEvent) {
@@ -540,23 +975,25 @@ public class LogbookMergeUtils {
             if (event.getLogbookStatus() == EldEvent.STATUS_DRIVING && event.getOrigin() == EldEvent.ORIGIN_AUTO) {
                 boolean closed = EventUtils.isDrivingClosed(event);
                 if (!closed) {
+                    EldEvent closing = event.copy();
+
                     // duration
                     int duration = (int) (TimeUnit.MILLISECONDS.toMinutes(mergeEvent.getDatetime() - event.getDatetime()));
-                    event.setDuration(duration >= 0 ? duration : 0);
+                    closing.setDuration(duration >= 0 ? duration : 0);
 
                     // accumulated hours
                     float hoursOriginal = event.getHoursOriginal() == null ? 0F : event.getHoursOriginal();
                     float hours = mergeEvent.getHoursOriginal() == null ? 0F : mergeEvent.getHoursOriginal();
                     float accumulatedHours = hours - hoursOriginal;
-                    event.setHoursAccumulated(accumulatedHours >= 0f ? accumulatedHours : 0f);
+                    closing.setHoursAccumulated(accumulatedHours >= 0f ? accumulatedHours : 0f);
 
                     // accumulated miles
                     double milesOriginal = event.getMilesOriginal() == null ? 0D : event.getMilesOriginal();
                     double miles = mergeEvent.getMilesOriginal() == null ? 0D : mergeEvent.getMilesOriginal();
                     double accumulatedMiles = miles - milesOriginal;
-                    event.setMilesAccumulated(accumulatedMiles >= 0d ? accumulatedMiles : 0d);
+                    closing.setMilesAccumulated(accumulatedMiles >= 0d ? accumulatedMiles : 0d);
 
-                    resultsList.add(new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_CLOSE_DRIVE, event));
+                    resultsList.add(new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_CLOSE_DRIVE, closing));
                 }
             }
         }
@@ -569,74 +1006,112 @@ public class LogbookMergeUtils {
         }
 
         if (event.getType() != EldEvent.TYPE_DUTY_STATUS && event.getType() != EldEvent.TYPE_YM_PC) {
-            AndroidLog.e(tag, "wrong event.type==" + event.getType());
             return false;
         }
         return true;
     }
 
-    private static boolean checkNeedToMerge(EldEvent[] coveredEventResult, List<EldEvent> allEvents, EldEvent mergeCandidate, long rightDate) throws IllegalStateException {
-        for (int i = 0; i < allEvents.size(); i++) {
+    private static final int COVERAGE_CONTINUE = -1;
+    private static final int COVERAGE_NOT_MERGE = 0;
+    private static final int COVERAGE_MERGE = 1;
+
+    static boolean checkNeedToMerge(EldEvent[] coveredEventResult, DutyTimeline timeline, EldEvent mergeCandidate, long rightDate) throws IllegalStateException {
+        int size = timeline.size();
+        long leftDate = mergeCandidate.getDatetime();
 
-            EldEvent st = allEvents.get(i);
-            EldEvent nextSt = null;
-            if (i != allEvents.size() - 1) {
-                nextSt = allEvents.get(i + 1);
+        if (rightDate <= leftDate) {
+            // draggers are swapped, no shortcut
+            for (int i = 0; i < size; i++) {
+                int res = checkCoverage(coveredEventResult, timeline, i, mergeCandidate, rightDate);
+                if (res != COVERAGE_CONTINUE) {
+                    return res == COVERAGE_MERGE;
+                }
             }
+            return true;
+        }
 
-            boolean covered;
-            boolean coveredPart;
+        // events before the candidate are neither covering nor covered,
+        // only the ones at the candidate time, the covering one, the ones before rightDate and the last one count
+        int floor = timeline.floorIndex(leftDate);
+        int from = Math.max(0, Math.min(timeline.ceilingIndex(leftDate), floor));
+        int to = Math.max(floor, timeline.floorIndex(rightDate) - 1);
 
-            if (nextSt == null) {
-                // covered by last existing event
-                covered = st.getDatetime() <= mergeCandidate.getDatetime();
-            } else {
-                // covered by event
-                covered = st.getDatetime() <= mergeCandidate.getDatetime() && rightDate <= nextSt.getDatetime();
+        for (int i = from; i <= to; i++) {
+            int res = checkCoverage(coveredEventResult, timeline, i, mergeCandidate, rightDate);
+            if (res != COVERAGE_CONTINUE) {
+                return res == COVERAGE_MERGE;
             }
+        }
 
-            if (covered) {
+        if (to < size - 1) {
+            int res = checkCoverage(coveredEventResult, timeline, size - 1, mergeCandidate, rightDate);
+            if (res != COVERAGE_CONTINUE) {
+                return res == COVERAGE_MERGE;
+            }
+        }
+        return true;
+    }
 
-                // check if the status can be split or changed in duration
-                boolean res = coveredEventCanBeEdited(st);
-                if (!res) {
-                    coveredEventResult[0] = st;
-                    return false;
-                }
+    private static int checkCoverage(EldEvent[] coveredEventResult, DutyTimeline allEvents, int i, EldEvent mergeCandidate, long rightDate) throws IllegalStateException {
 
-                // need to create new status
-                if (!equalsEventsByTypeCode(st, mergeCandidate)) {
-                    return true;
-                }
+        EldEvent st = allEvents.get(i);
+        EldEvent nextSt = null;
+        if (i != allEvents.size() - 1) {
+            nextSt = allEvents.get(i + 1);
+        }
+
+        boolean covered;
+        boolean coveredPart;
 
+        if (nextSt == null) {
+            // covered by last existing event
+            covered = st.getDatetime() <= mergeCandidate.getDatetime();
+        } else {
+            // covered by event
+            covered = st.getDatetime() <= mergeCandidate.getDatetime() && rightDate <= nextSt.getDatetime();
+        }
+
+        if (covered) {
+
+            // check if the status can be split or changed in duration
+            boolean res = coveredEventCanBeEdited(st);
+            if (!res) {
                 coveredEventResult[0] = st;
-                return false;
-            } else {
+                return COVERAGE_NOT_MERGE;
+            }
 
-                // partially covered by events
-                if (nextSt == null) {
-                    boolean mergeCandidateCoverAnotherEvent = st.getDatetime() > mergeCandidate.getDatetime();
-                    if (mergeCandidateCoverAnotherEvent) {
-                        boolean res = coveredEventCanBeEdited(st);
-                        if (!res) {
-                            return false;
-                        }
+            // need to create new status
+            if (!equalsEventsByTypeCode(st, mergeCandidate)) {
+                return COVERAGE_MERGE;
+            }
+
+            coveredEventResult[0] = st;
+            return COVERAGE_NOT_MERGE;
+        } else {
+
+            // partially covered by events
+            if (nextSt == null) {
+                boolean mergeCandidateCoverAnotherEvent = st.getDatetime() > mergeCandidate.getDatetime();
+                if (mergeCandidateCoverAnotherEvent) {
+                    boolean res = coveredEventCanBeEdited(st);
+                    if (!res) {
+                        return COVERAGE_NOT_MERGE;
                     }
-                } else {
-                    coveredPart = st.getDatetime() < mergeCandidate.getDatetime()
-                            && nextSt.getDatetime() > mergeCandidate.getDatetime()
-                            && rightDate > nextSt.getDatetime();
-                    boolean mergeCandidateCoverAnotherEvent = st.getDatetime() >= mergeCandidate.getDatetime() && rightDate >= nextSt.getDatetime();
-                    if (coveredPart || mergeCandidateCoverAnotherEvent) {
-                        boolean res = coveredEventCanBeEdited(st);
-                        if (!res) {
-                            return false;
-                        }
+                }
+            } else {
+                coveredPart = st.getDatetime() < mergeCandidate.getDatetime()
+                        && nextSt.getDatetime() > mergeCandidate.getDatetime()
+                        && rightDate > nextSt.getDatetime();
+                boolean mergeCandidateCoverAnotherEvent = st.getDatetime() >= mergeCandidate.getDatetime() && rightDate >= nextSt.getDatetime();
+                if (coveredPart || mergeCandidateCoverAnotherEvent) {
+                    boolean res = coveredEventCanBeEdited(st);
+                    if (!res) {
+                        return COVERAGE_NOT_MERGE;
                     }
                 }
             }
         }
-        return true;
+        return COVERAGE_CONTINUE;
     }
 
     private static boolean coveredEventCanBeEdited(EldEvent from) throws IllegalStateException {
@@ -672,79 +1147,114 @@ public class LogbookMergeUtils {
         return e1.getLogbookStatus() == e2.getLogbookStatus();
     }
 
+    /**
+     * @return reject result, null if the event can't be rejected
+     * @see #rejectEventWithOutcome
+     */
     public static List<EventMergeWrapper> rejectEvent(Realm realm, long user, List<EldEvent> events, EldEvent event) {
+        return rejectEventWithOutcome(realm, user, events, event).getResult();
+    }
 
+    /**
+     * {@link #rejectEvent} which tells why the event was not rejected
+     */
+    public static MergeOutcome rejectEventWithOutcome(Realm realm, long user, List<EldEvent> events, EldEvent event) {
+        lock(user);
+        try {
+            return rejectEventLocked(realm, user, events, event);
+        } finally {
+            mergeLocks.unlock(user);
+        }
+    }
+
+    private static MergeOutcome rejectEventLocked(Realm realm, long user, List<EldEvent> events, EldEvent event) {
+
+        long validation = MergeMetrics.start();
         if (!DatabaseUtils.valid(realm)) {
-            AndroidLog.e(tag, "realm is invalid");
-            return null;
+            return reject(MergeOutcome.Reason.NOT_VALID_REALM, validation);
         }
 
         if (!LogbookUtils.isValidUser(user)) {
-            AndroidLog.e(tag, "not valid user, user==" + user);
-            return null;
+            return reject(MergeOutcome.Reason.NOT_VALID_USER, validation, user, event, 0, 0);
         }
 
         if (CollectionUtils.isEmpty(events)) {
-            AndroidLog.e(tag, "events list is empty or null");
-            return null;
+            return reject(MergeOutcome.Reason.EMPTY_EVENTS, validation);
         }
 
         if (event == null) {
-            AndroidLog.e(tag, "event==null");
-            return null;
+            return reject(MergeOutcome.Reason.NO_EVENT, validation);
         }
 
         if (!EldEventsUtils.isValidEvent(event)) {
-            AndroidLog.e(tag, "event is invalid, " + event.toString());
-            return null;
+            return reject(MergeOutcome.Reason.NOT_VALID_EVENT, validation, user, event, 0, 0);
         }
 
         if (event.getLogbookStatus() != EldEvent.STATUS_DRIVING) {
-            AndroidLog.e(tag, "wrong logbookStatus, expected(" + EldEvent.STATUS_DRIVING + "), logbookStatus==" + event.getLogbookStatus());
-            return null;
+            return reject(MergeOutcome.Reason.NOT_DRIVING, validation, user, event, 0, 0);
         }
 
         if (event.getOrigin() != EldEvent.ORIGIN_AUTO) {
-            AndroidLog.e(tag, "wrong origin, expected(" + EldEvent.ORIGIN_AUTO + "), origin==" + event.getOrigin());
-            return null;
+            return reject(MergeOutcome.Reason.NOT_AUTO_ORIGIN, validation, user, event, 0, 0);
         }
 
         if (!EventUtils.isDrivingClosed(event)) {
-            AndroidLog.e(tag, "driving event not closed" + event.getOrigin());
-            return null;
+            return reject(MergeOutcome.Reason.DRIVING_NOT_CLOSED, validation, user, event, 0, 0);
         }
+        MergeMetrics.stop(MergeMetrics.Phase.VALIDATION, validation);
+
+        // the managed event is changed only when the copy is saved
+        EldEvent rejected = event.copy();
 
         // FIXME stub
-        if (event.getMilesAccumulated() == null) {
-            event.setMilesAccumulated(0D);
+        if (rejected.getMilesAccumulated() == null) {
+            rejected.setMilesAccumulated(0D);
         }
-        if (event.getHoursAccumulated() == null) {
-            event.setHoursAccumulated(0F);
+        if (rejected.getHoursAccumulated() == null) {
+            rejected.setHoursAccumulated(0F);
         }
 
-        return rejectEvent0(realm, user, events, event);
+        return MergeOutcome.ok(rejectEvent0(realm, user, events, rejected));
     }
 
     private static List<EventMergeWrapper> rejectEvent0(final Realm realm, final long user, final List<EldEvent> events, final EldEvent event) {
 
         final List<EventMergeWrapper> result = new ArrayList<>();
 
-        // make event undefined
-        DatabaseUtils.executeTransaction(realm, new Realm.Transaction() {
-            @Override
-            public void execute(@NonNull Realm realm) {
+        // make event undefined, event is a detached copy
+        // clear user and set to unidentified origin
+        event.setUser(null);
+        event.setOrigin(EldEvent.ORIGIN_UNIDENTIFIED);
 
-                // clear user and set to unidentified origin
-                event.setUser(null);
-                event.setOrigin(EldEvent.ORIGIN_UNIDENTIFIED);
+        EventMergeWrapper.rejectEvent(result, event);
 
-                EventMergeWrapper.rejectEvent(result, event);
+        combineEquals(result, events);
+        List<EventMergeWrapper> diff = MergeTimelineStore.detach(result);
+        final CertificationInvalidator.DayRange days = CertificationInvalidator.affectedDays(DutyTimeline.of(events), diff, DateTimeZone.getDefault(), System.currentTimeMillis());
+        // no requests, the replay rejects the event of the REJECTED item again
+        long seq = journalBegin(user, Collections.<MergeRequest>emptyList(), diff);
 
-                combineEquals(result, events);
+        long transaction = MergeMetrics.start();
+        try {
+            DatabaseUtils.executeTransaction(realm, new Realm.Transaction() {
+                @Override
+                public void execute(@NonNull Realm realm) {
+                    saveAndPush(realm, user, result);
 
-                saveAndPush(realm, user, result);
-            }
-        });
+                    // the event is no longer the driver's
+                    CertificationInvalidator.invalidate(realm, user, days);
+                }
+            });
+        } catch (RuntimeException e) {
+            journalEnd(seq, false);
+            throw e;
+        }
+        MergeMetrics.stop(MergeMetrics.Phase.TRANSACTION, transaction);
+        journalEnd(seq, true);
+
+        MergeMetrics.results(result);
+        MergeTimelineStore.getInstance().publish(user, diff);
+        MergeOutboxDispatcher.getInstance().schedule();
 
         return result;
     }
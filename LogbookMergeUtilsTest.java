@@ -1,22 +1,30 @@
 package ca.truxtrax.test.activiries.logbook;
 
+import android.util.Log;
+
 import org.joda.time.DateTime;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.reflect.internal.WhiteboxImpl;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import ca.truxtrax.activities.logbook.LogbookUtils;
 import ca.truxtrax.database.realm_dao.BaseDAO;
-import ca.truxtrax.database.realm_dao.EldAnnotationsDao;
-import ca.truxtrax.database.realm_mapping.eld.EldAnnotation;
+import ca.truxtrax.database.realm_dao.eld.EldDutyEventsDao;
+import ca.truxtrax.database.realm_dao.eld.EldEventsBulkDao;
 import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import ca.truxtrax.logbook.DutyTimeline;
 import ca.truxtrax.logbook.LogbookMergeUtils;
+import ca.truxtrax.logbook.MergeOutcome;
+import ca.truxtrax.utils.AndroidLog;
 import ca.truxtrax.utils.CalendarUtils;
 import io.realm.Realm;
 import utils.BaseRealmRunner;
@@ -26,14 +34,19 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.CALLS_REAL_METHODS;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
 import static utils.Utils.generateEvent;
@@ -42,7 +55,8 @@ import static utils.Utils.generateEvent;
  * Created by alexa on 14.01.2018.
  */
 
-@PrepareForTest({LogbookMergeUtils.class, EventMergeWrapper.class, LogbookUtils.class})
+@PrepareForTest(value = {LogbookMergeUtils.class, EventMergeWrapper.class, LogbookUtils.class, Log.class, AndroidLog.class},
+        fullyQualifiedNames = "ca.truxtrax.logbook.MergeConflictCheck")
 public class LogbookMergeUtilsTest extends BaseRealmRunner {
 
     @Test
@@ -113,6 +127,111 @@ public class LogbookMergeUtilsTest extends BaseRealmRunner {
         assertNotNull(resultSucceed);
     }
 
+    @Test
+    public void shouldTellRejectReason() throws Exception {
+
+        // given, valid params
+        long validUser = 10;
+        Realm validRealm = mockRealm;
+        when(validRealm.isClosed()).thenReturn(false);
+        EldEvent validEvent = new EldEvent(BaseDAO.generateUuid(),
+                validUser,
+                null,
+                CalendarUtils.getDateWithoutSecondsAndMilliseconds(DateTime.now()).getMillis(),
+                EldEvent.ORIGIN_DRIVER)
+                .setLogbookStatus(EldEvent.CODE_OFF_DUTY);
+        validEvent.setLat(33f);
+        validEvent.setLon(44f);
+        validEvent.setHours(0F);
+        validEvent.setMiles(0D);
+        long validRightDate = TimeUnit.DAYS.toMillis(1);
+        long validTheDate = TimeUnit.DAYS.toMillis(2);
+
+        List<EldEvent> validEvents = mock(ArrayList.class);
+        when(validEvents.get(0)).thenReturn(new EldEvent());
+        when(validEvents.isEmpty()).thenReturn(false);
+
+        PowerMockito.spy(LogbookMergeUtils.class);
+        PowerMockito.doReturn(new ArrayList<EventMergeWrapper>())
+                .when(LogbookMergeUtils.class, "merge0", eq(mockRealm), anyLong(), anyListOf(EldEvent.class), any(EldEvent.class), anyLong(), anyLong(), anyString());
+
+        long rejectedBefore = MergeOutcome.getStats().getCount(MergeOutcome.Reason.NOT_VALID_USER);
+
+        // not valid user
+        MergeOutcome notValidUser = LogbookMergeUtils.mergeWithOutcome(mockRealm, -10, validEvents, validEvent, validRightDate, validTheDate, null);
+        assertFalse(notValidUser.isOk());
+        assertEquals(MergeOutcome.Reason.NOT_VALID_USER, notValidUser.getReason());
+        assertNull(notValidUser.getResult());
+        // rejections are shared
+        assertSame(notValidUser, LogbookMergeUtils.mergeWithOutcome(mockRealm, -10, validEvents, validEvent, validRightDate, validTheDate, null));
+        assertEquals(rejectedBefore + 2, MergeOutcome.getStats().getCount(MergeOutcome.Reason.NOT_VALID_USER));
+
+        // not valid realm, can be retried
+        Realm nonValidRealm = PowerMockito.mock(Realm.class);
+        when(nonValidRealm.isClosed()).thenReturn(true);
+        MergeOutcome notValidRealm = LogbookMergeUtils.mergeWithOutcome(nonValidRealm, validUser, validEvents, validEvent, validRightDate, validTheDate, null);
+        assertEquals(MergeOutcome.Reason.NOT_VALID_REALM, notValidRealm.getReason());
+        assertTrue(notValidRealm.getReason().isRetryable());
+
+        // same left and right dates
+        assertEquals(MergeOutcome.Reason.EMPTY_INTERVAL,
+                LogbookMergeUtils.mergeWithOutcome(validRealm, validUser, validEvents, validEvent, validEvent.getDatetime(), validTheDate, null).getReason());
+
+        // not valid rightDate
+        assertEquals(MergeOutcome.Reason.NOT_VALID_RIGHT_DATE,
+                LogbookMergeUtils.mergeWithOutcome(validRealm, validUser, validEvents, validEvent, validRightDate + 10, validTheDate, null).getReason());
+
+        // not valid theTime
+        assertEquals(MergeOutcome.Reason.NOT_VALID_THE_TIME,
+                LogbookMergeUtils.mergeWithOutcome(validRealm, validUser, validEvents, validEvent, validRightDate, validTheDate + 10, null).getReason());
+
+        // theTime before rightDate
+        MergeOutcome theTimeBefore = LogbookMergeUtils.mergeWithOutcome(validRealm, validUser, validEvents, validEvent, validTheDate, validRightDate, null);
+        assertEquals(MergeOutcome.Reason.THE_TIME_BEFORE_RIGHT_DATE, theTimeBefore.getReason());
+        assertFalse(theTimeBefore.getReason().isRetryable());
+
+        // not valid events
+        assertEquals(MergeOutcome.Reason.EMPTY_EVENTS,
+                LogbookMergeUtils.mergeWithOutcome(validRealm, validUser, new ArrayList<EldEvent>(), validEvent, validRightDate, validTheDate, null).getReason());
+
+        // valid
+        MergeOutcome succeed = LogbookMergeUtils.mergeWithOutcome(validRealm, validUser, validEvents, validEvent, validRightDate, validTheDate, null);
+        assertTrue(succeed.isOk());
+        assertNotNull(succeed.getResult());
+    }
+
+    @Test
+    public void shouldLogReasonOnlyByDefault() throws Exception {
+
+        // given
+        // default log level of a device, INFO
+        mockStatic(Log.class);
+        when(Log.isLoggable(anyString(), anyInt())).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) {
+                return (Integer) invocation.getArguments()[1] >= Log.INFO;
+            }
+        });
+        mockStatic(AndroidLog.class);
+        EldEvent event = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0);
+        event.setUser(10L);
+        event.setLat(33f);
+        event.setLon(44f);
+        event.setHours(0F);
+        event.setMiles(0D);
+
+        // when
+        // theTime before rightDate
+        MergeOutcome outcome = LogbookMergeUtils.mergeWithOutcome(mockRealm, 10, Arrays.asList(event), event,
+                TimeUnit.DAYS.toMillis(2), TimeUnit.DAYS.toMillis(1), null);
+
+        // then
+        // the constant message, the dates are not formatted
+        assertEquals(MergeOutcome.Reason.THE_TIME_BEFORE_RIGHT_DATE, outcome.getReason());
+        PowerMockito.verifyStatic(times(1));
+        AndroidLog.e(LogbookMergeUtils.class.getSimpleName(), MergeOutcome.Reason.THE_TIME_BEFORE_RIGHT_DATE.getMessage());
+    }
+
     @Test
     public void shouldMergeInOneEvent() {
 
@@ -185,7 +304,7 @@ public class LogbookMergeUtilsTest extends BaseRealmRunner {
         // when
         WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "checkNeedToMerge",
                 coveredEventResult,
-                Arrays.asList(event1, event3),
+                DutyTimeline.of(Arrays.asList(event1, event3)),
                 generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_DRIVER, 2),
                 TimeUnit.MINUTES.toMillis(3)
         );
@@ -206,7 +325,7 @@ public class LogbookMergeUtilsTest extends BaseRealmRunner {
         // candidate [1 to 2](dr)
         boolean result = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "checkNeedToMerge",
                 new EldEvent[1],
-                Arrays.asList(event1),
+                DutyTimeline.of(Arrays.asList(event1)),
                 generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_DRIVER, 1),
                 TimeUnit.MINUTES.toMillis(2)
         );
@@ -217,7 +336,7 @@ public class LogbookMergeUtilsTest extends BaseRealmRunner {
         // candidate [0 to 2](dr)
         boolean result2 = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "checkNeedToMerge",
                 new EldEvent[1],
-                Arrays.asList(event1),
+                DutyTimeline.of(Arrays.asList(event1)),
                 generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_DRIVER, 0),
                 TimeUnit.MINUTES.toMillis(2)
         );
@@ -228,7 +347,7 @@ public class LogbookMergeUtilsTest extends BaseRealmRunner {
         // candidate [1-2](dr)
         boolean result3 = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "checkNeedToMerge",
                 new EldEvent[1],
-                Arrays.asList(event1, event3),
+                DutyTimeline.of(Arrays.asList(event1, event3)),
                 generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_DRIVER, 1),
                 TimeUnit.MINUTES.toMillis(2)
         );
@@ -239,7 +358,7 @@ public class LogbookMergeUtilsTest extends BaseRealmRunner {
         // candidate [0-2](dr)
         boolean result4 = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "checkNeedToMerge",
                 new EldEvent[1],
-                Arrays.asList(event1, event3),
+                DutyTimeline.of(Arrays.asList(event1, event3)),
                 generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_DRIVER, 0),
                 TimeUnit.MINUTES.toMillis(2)
         );
@@ -250,7 +369,7 @@ public class LogbookMergeUtilsTest extends BaseRealmRunner {
         // candidate [0-3](dr)
         boolean result5 = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "checkNeedToMerge",
                 new EldEvent[1],
-                Arrays.asList(event1, event3),
+                DutyTimeline.of(Arrays.asList(event1, event3)),
                 generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_DRIVER, 0),
                 TimeUnit.MINUTES.toMillis(3)
         );
@@ -261,7 +380,7 @@ public class LogbookMergeUtilsTest extends BaseRealmRunner {
         // candidate [1-4](dr)
         boolean result6 = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "checkNeedToMerge",
                 new EldEvent[1],
-                Arrays.asList(event1, event3),
+                DutyTimeline.of(Arrays.asList(event1, event3)),
                 generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_DRIVER, 1),
                 TimeUnit.MINUTES.toMillis(4)
         );
@@ -272,7 +391,7 @@ public class LogbookMergeUtilsTest extends BaseRealmRunner {
         // candidate [1-5](off)
         boolean result7 = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "checkNeedToMerge",
                 new EldEvent[1],
-                Arrays.asList(event1, event3, event4),
+                DutyTimeline.of(Arrays.asList(event1, event3, event4)),
                 generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 1),
                 TimeUnit.MINUTES.toMillis(5)
         );
@@ -289,7 +408,7 @@ public class LogbookMergeUtilsTest extends BaseRealmRunner {
         // when
         boolean result = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "checkNeedToMerge",
                 new EldEvent[1],
-                Arrays.asList(event),
+                DutyTimeline.of(Arrays.asList(event)),
                 generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_DRIVER, 1),
                 TimeUnit.MINUTES.toMillis(5)
         );
@@ -315,6 +434,7 @@ public class LogbookMergeUtilsTest extends BaseRealmRunner {
         PowerMockito.spy(LogbookMergeUtils.class);
 
         PowerMockito.doNothing().when(LogbookMergeUtils.class, "saveAndPush", any(Realm.class), anyLong(), anyListOf(EventMergeWrapper.class));
+        PowerMockito.doNothing().when(LogbookMergeUtils.class, "checkNotChanged", any(Realm.class), any());
 
         // when
         List<EventMergeWrapper> result = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "merge0",
@@ -333,6 +453,109 @@ public class LogbookMergeUtilsTest extends BaseRealmRunner {
         assertEquals(321D, result.get(0).event.getMiles(), 0.1f);
     }
 
+    @Test
+    public void shouldPlanAgainWhenEventsChanged() throws Exception {
+
+        // given
+        // in [0, 10](dr auto) as read before the transaction
+        // candidate [1-10](dr)
+        EldEvent read = generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_AUTO, 0);
+        read.setDuration(10);
+        EldEvent mergeEvent = generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_DRIVER, 1);
+
+        // the ELD service updated the driving event meanwhile
+        EldEvent changed = read.copy();
+        changed.setMilesAccumulated(12D);
+
+        EldEventsBulkDao bulkDao = mock(EldEventsBulkDao.class);
+        PowerMockito.whenNew(EldEventsBulkDao.class).withArguments(mockRealm).thenReturn(bulkDao);
+        when(bulkDao.selectByIds(anyCollectionOf(String.class))).thenReturn(Arrays.asList(changed));
+        EldDutyEventsDao dutyDao = mock(EldDutyEventsDao.class);
+        PowerMockito.whenNew(EldDutyEventsDao.class).withArguments(mockRealm).thenReturn(dutyDao);
+        when(dutyDao.selectForDriverId(123L)).thenReturn(Arrays.asList(changed));
+
+        mockStatic(LogbookMergeUtils.class, CALLS_REAL_METHODS);
+        PowerMockito.spy(LogbookMergeUtils.class);
+        PowerMockito.doNothing().when(LogbookMergeUtils.class, "saveAndPush", any(Realm.class), anyLong(), anyListOf(EventMergeWrapper.class));
+
+        // when
+        List<EventMergeWrapper> result = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "merge0",
+                mockRealm,
+                123L,
+                Arrays.asList(read),
+                mergeEvent,
+                TimeUnit.MINUTES.toMillis(10),
+                TimeUnit.MINUTES.toMillis(10),
+                null
+        );
+
+        // then
+        // the first transaction saw the change, the second plan was made from the changed event
+        // and its transaction checked the window
+        verify(dutyDao, times(2)).selectForDriverId(123L);
+        verify(bulkDao, times(2)).selectByIds(anyCollectionOf(String.class));
+        assertEquals(1, result.size());
+        assertEquals(EventMergeWrapper.MERGE_RESULT_EDITED, result.get(0).mergeResult);
+    }
+
+    @Test
+    public void shouldPlanAgainWhenEventInserted() throws Exception {
+
+        // given
+        // in [0, ~](off) as read before the transaction
+        // candidate [1-10](on)
+        EldEvent read = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0);
+        EldEvent mergeEvent = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 1);
+
+        // another writer put [5](sb) between the draggers meanwhile
+        EldEvent inserted = generateEvent(EldEvent.STATUS_SLEEPING, EldEvent.ORIGIN_DRIVER, 5);
+        final List<EldEvent> saved = Arrays.asList(read, inserted);
+
+        EldEventsBulkDao bulkDao = mock(EldEventsBulkDao.class);
+        PowerMockito.whenNew(EldEventsBulkDao.class).withArguments(mockRealm).thenReturn(bulkDao);
+        when(bulkDao.selectByIds(anyCollectionOf(String.class))).thenAnswer(new Answer<List<EldEvent>>() {
+            @Override
+            public List<EldEvent> answer(InvocationOnMock invocation) {
+                Collection<?> ids = (Collection<?>) invocation.getArguments()[0];
+                List<EldEvent> found = new ArrayList<>();
+                for (EldEvent it : saved) {
+                    if (ids.contains(it.getId())) {
+                        found.add(it);
+                    }
+                }
+                return found;
+            }
+        });
+        EldDutyEventsDao dutyDao = mock(EldDutyEventsDao.class);
+        PowerMockito.whenNew(EldDutyEventsDao.class).withArguments(mockRealm).thenReturn(dutyDao);
+        when(dutyDao.selectForDriverId(123L)).thenReturn(saved);
+
+        mockStatic(LogbookMergeUtils.class, CALLS_REAL_METHODS);
+        PowerMockito.spy(LogbookMergeUtils.class);
+        PowerMockito.doNothing().when(LogbookMergeUtils.class, "saveAndPush", any(Realm.class), anyLong(), anyListOf(EventMergeWrapper.class));
+
+        // when
+        List<EventMergeWrapper> result = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "merge0",
+                mockRealm,
+                123L,
+                Arrays.asList(read),
+                mergeEvent,
+                TimeUnit.MINUTES.toMillis(10),
+                TimeUnit.MINUTES.toMillis(10),
+                null
+        );
+
+        // then
+        // the first transaction saw the new event, the second plan covers it
+        verify(dutyDao, times(3)).selectForDriverId(123L);
+        assertFalse(result.isEmpty());
+        boolean insertedMerged = false;
+        for (EventMergeWrapper it : result) {
+            insertedMerged |= it.event.getId().equals(inserted.getId());
+        }
+        assertTrue(insertedMerged);
+    }
+
     @Test
     public void shouldNotAllowSplitEvent() throws Exception {
 
@@ -369,7 +592,7 @@ public class LogbookMergeUtilsTest extends BaseRealmRunner {
         // when
         boolean res = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "checkNeedToMerge",
                 new EldEvent[1],
-                Arrays.asList(event),
+                DutyTimeline.of(Arrays.asList(event)),
                 generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 1),
                 TimeUnit.MINUTES.toMillis(5)
         );
@@ -387,7 +610,7 @@ public class LogbookMergeUtilsTest extends BaseRealmRunner {
         // candidate [1-2](off)
         boolean res = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "checkNeedToMerge",
                 new EldEvent[1],
-                Arrays.asList(event1),
+                DutyTimeline.of(Arrays.asList(event1)),
                 generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 1),
                 TimeUnit.MINUTES.toMillis(2)
         );
@@ -407,7 +630,7 @@ public class LogbookMergeUtilsTest extends BaseRealmRunner {
         // when
         boolean res = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "checkNeedToMerge",
                 new EldEvent[1],
-                Arrays.asList(event1, event2),
+                DutyTimeline.of(Arrays.asList(event1, event2)),
                 generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 4),
                 TimeUnit.MINUTES.toMillis(6)
         );
@@ -427,7 +650,7 @@ public class LogbookMergeUtilsTest extends BaseRealmRunner {
         // when
         boolean res = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "checkNeedToMerge",
                 new EldEvent[1],
-                Arrays.asList(event1, event2),
+                DutyTimeline.of(Arrays.asList(event1, event2)),
                 generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 4),
                 TimeUnit.MINUTES.toMillis(6)
         );
@@ -448,7 +671,7 @@ public class LogbookMergeUtilsTest extends BaseRealmRunner {
         // when
         boolean res = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "checkNeedToMerge",
                 new EldEvent[1],
-                Arrays.asList(event1, event2, event3),
+                DutyTimeline.of(Arrays.asList(event1, event2, event3)),
                 generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 11),
                 TimeUnit.MINUTES.toMillis(15)
         );
@@ -469,7 +692,7 @@ public class LogbookMergeUtilsTest extends BaseRealmRunner {
         // when
         boolean res = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "checkNeedToMerge",
                 new EldEvent[1],
-                Arrays.asList(event1, event2, event3),
+                DutyTimeline.of(Arrays.asList(event1, event2, event3)),
                 generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 3),
                 TimeUnit.MINUTES.toMillis(12)
         );
@@ -487,7 +710,7 @@ public class LogbookMergeUtilsTest extends BaseRealmRunner {
         // candidate [1-2](off)
         boolean result = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "checkNeedToMerge",
                 new EldEvent[1],
-                Arrays.asList(event1),
+                DutyTimeline.of(Arrays.asList(event1)),
                 generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 1),
                 TimeUnit.MINUTES.toMillis(2)
         );
@@ -498,11 +721,11 @@ public class LogbookMergeUtilsTest extends BaseRealmRunner {
         // candidate [1-2](off)
         boolean result2 = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "checkNeedToMerge",
                 new EldEvent[1],
-                Arrays.asList(
+                DutyTimeline.of(Arrays.asList(
                         generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0),
                         generateEvent(EldEvent.STATUS_SLEEPING, EldEvent.ORIGIN_DRIVER, 1),
                         generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_DRIVER, 2)
-                ),
+                )),
                 generateEvent(EldEvent.STATUS_SLEEPING, EldEvent.ORIGIN_DRIVER, 1),
                 TimeUnit.MINUTES.toMillis(2)
         );
@@ -553,85 +776,4 @@ public class LogbookMergeUtilsTest extends BaseRealmRunner {
         //then
         assertEquals(e2, res3);
     }
-
-    @Test
-    public void shouldMergeAnnotation() throws Exception {
-
-        // #1 should return null
-        // given
-
-        PowerMockito.spy(LogbookMergeUtils.class);
-        PowerMockito.doReturn(null).when(LogbookMergeUtils.class, "findEventToAnnotate", anyListOf(LogbookMergeUtils.EventMergeWrapper.class), anyLong());
-
-        // when
-        EldAnnotation res1 = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class,
-                "mergeAnnotation",
-                any(EldAnnotationsDao.class),
-                anyListOf(LogbookMergeUtils.EventMergeWrapper.class),
-                anyLong(),
-                anyString());
-
-        // then
-        assertNull(res1);
-
-
-        // #2 should return with replaced annotation
-        // given
-        EldEvent event = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 10);
-        event.setUser(10L);
-        EldAnnotation annotation = new EldAnnotation(BaseDAO.generateUuid(), 10, TimeUnit.MINUTES.toMillis(10), event.getId(), "first comment");
-        EldAnnotationsDao mockDao = mock(EldAnnotationsDao.class);
-        when(mockDao.getAnnotation(anyString())).thenReturn(annotation);
-        PowerMockito.doReturn(event.copy()).when(LogbookMergeUtils.class, "findEventToAnnotate", anyListOf(LogbookMergeUtils.EventMergeWrapper.class), anyLong());
-
-        // when
-        EldAnnotation res2 = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class,
-                "mergeAnnotation",
-                mockDao,
-                new ArrayList<>(),
-                10L,
-                "second comment");
-
-        // then
-        // comment changed
-        assertEquals("second comment", res2.getComment());
-        // return found annotation
-        assertEquals(annotation.getId(), res2.getId());
-
-
-        // #3 should return with new annotation
-        // given
-        when(mockDao.getAnnotation(anyString())).thenReturn(null);
-        PowerMockito.doReturn(event.copy()).when(LogbookMergeUtils.class, "findEventToAnnotate", anyListOf(LogbookMergeUtils.EventMergeWrapper.class), anyLong());
-
-        // when
-        EldAnnotation res3 = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class,
-                "mergeAnnotation",
-                mockDao,
-                new ArrayList<>(),
-                20L,
-                "second comment");
-
-        // then
-        // new annotation created
-        assertNotNull(res3);
-        // comment changed
-        assertEquals("second comment", res2.getComment());
-    }
-
-//    private static EldAnnotation mergeAnnotation(EldAnnotationsDao dao, List<EventMergeWrapper> result, long time, String annotationStr) {
-//
-//        EldEvent eventToAnnotate = findEventToAnnotate(result, time);
-//        if (eventToAnnotate == null) {
-//            return null;
-//        }
-//
-//        EldAnnotation annotation = dao.getAnnotation(eventToAnnotate.getId());
-//        if (annotation == null) {
-//            return new EldAnnotation(BaseDAO.generateUuid(), eventToAnnotate.getUser(), time, eventToAnnotate.getId(), annotationStr);
-//        } else {
-//            annotation.setComment(annotationStr);
-//            return annotation;
-//        }
-//    }
-}
\ No newline at end of file
+}
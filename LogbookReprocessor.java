@@ -0,0 +1,238 @@
+package ca.truxtrax.logbook;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * Runs the merge rules again over the logs of many drivers, headless, for a changed rule.
+ * <p>
+ * Drivers are split between the workers of a fork-join pool, a driver is processed by one
+ * worker, so the merge needs no locks and the thread's {@link MergeResultBuffer} is reused
+ * for every driver of the worker. A driver whose log changes is saved back to the store.
+ * Nothing here touches Realm or the server, push the diffs separately.
+ */
+public final class LogbookReprocessor {
+
+    /**
+     * drivers per task, smaller ranges are not split
+     */
+    static final int DRIVERS_PER_TASK = 4;
+
+    /**
+     * Rule applied to the log of one driver.
+     */
+    public interface Pass {
+
+        /**
+         * @param events log of the driver, sorted, must not be changed
+         * @return merge result, empty if the log is right
+         */
+        List<EventMergeWrapper> apply(DutyTimeline events);
+    }
+
+    /**
+     * combines equal neighbour statuses with the current {@link LogbookMergeUtils#canBeMergedInOne}
+     */
+    public static final Pass COMBINE_EQUALS = new Pass() {
+        @Override
+        public List<EventMergeWrapper> apply(DutyTimeline events) {
+            List<EventMergeWrapper> result = new ArrayList<>();
+            LogbookMergeUtils.EventsMerger.combineEquals(result, events);
+            return result;
+        }
+    };
+
+    private final ReprocessStore store;
+    private final Pass pass;
+    private final int parallelism;
+    private final boolean dryRun;
+
+    /**
+     * @param dryRun compute the diffs only, the store is not changed
+     */
+    public LogbookReprocessor(ReprocessStore store, Pass pass, int parallelism, boolean dryRun) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism==" + parallelism);
+        }
+        this.store = store;
+        this.pass = pass;
+        this.parallelism = parallelism;
+        this.dryRun = dryRun;
+    }
+
+    public LogbookReprocessor(ReprocessStore store, Pass pass) {
+        this(store, pass, Runtime.getRuntime().availableProcessors(), false);
+    }
+
+    public Report run() throws IOException {
+        return run(store.drivers());
+    }
+
+    public Report run(List<Long> drivers) {
+        DriverResult[] results = new DriverResult[drivers.size()];
+        long start = System.nanoTime();
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new Range(drivers, results, 0, drivers.size()));
+        } finally {
+            pool.shutdown();
+        }
+
+        return new Report(Collections.unmodifiableList(Arrays.asList(results)), System.nanoTime() - start);
+    }
+
+    DriverResult process(long driver) {
+        try {
+            List<EldEvent> loaded = store.load(driver);
+            DutyTimeline events = DutyTimeline.of(loaded);
+            List<EventMergeWrapper> diff = events.isEmpty()
+                    ? Collections.<EventMergeWrapper>emptyList()
+                    : pass.apply(events);
+
+            if (!diff.isEmpty() && !dryRun) {
+                store.save(driver, MergeTimelineStore.apply(events, diff));
+            }
+            return new DriverResult(driver, events.size(), diff, null);
+        } catch (IOException e) {
+            // one broken log doesn't stop the fleet
+            return new DriverResult(driver, 0, Collections.<EventMergeWrapper>emptyList(), e);
+        } catch (RuntimeException e) {
+            return new DriverResult(driver, 0, Collections.<EventMergeWrapper>emptyList(), e);
+        }
+    }
+
+    private final class Range extends RecursiveAction {
+        private final List<Long> drivers;
+        private final DriverResult[] results;
+        private final int from;
+        private final int to;
+
+        Range(List<Long> drivers, DriverResult[] results, int from, int to) {
+            this.drivers = drivers;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= DRIVERS_PER_TASK) {
+                for (int i = from; i < to; i++) {
+                    results[i] = process(drivers.get(i));
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Range(drivers, results, from, middle), new Range(drivers, results, middle, to));
+        }
+    }
+
+    /**
+     * result of one driver
+     */
+    public static final class DriverResult {
+        public final long driver;
+        public final int events;
+
+        /**
+         * changes of the log, empty if nothing changed
+         */
+        public final List<EventMergeWrapper> diff;
+
+        /**
+         * null if the log was processed
+         */
+        public final Exception error;
+
+        DriverResult(long driver, int events, List<EventMergeWrapper> diff, Exception error) {
+            this.driver = driver;
+            this.events = events;
+            this.diff = diff;
+            this.error = error;
+        }
+
+        public boolean isChanged() {
+            return !diff.isEmpty();
+        }
+    }
+
+    public static final class Report {
+
+        /**
+         * in the order of the drivers passed in
+         */
+        public final List<DriverResult> results;
+        public final long elapsedNanos;
+
+        Report(List<DriverResult> results, long elapsedNanos) {
+            this.results = results;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getDrivers() {
+            return results.size();
+        }
+
+        public long getEvents() {
+            long events = 0;
+            for (DriverResult it : results) {
+                events += it.events;
+            }
+            return events;
+        }
+
+        public int getChanged() {
+            int changed = 0;
+            for (DriverResult it : results) {
+                if (it.isChanged()) {
+                    changed++;
+                }
+            }
+            return changed;
+        }
+
+        public int getFailed() {
+            int failed = 0;
+            for (DriverResult it : results) {
+                if (it.error != null) {
+                    failed++;
+                }
+            }
+            return failed;
+        }
+
+        public double getDriversPerSecond() {
+            return perSecond(getDrivers());
+        }
+
+        public double getEventsPerSecond() {
+            return perSecond(getEvents());
+        }
+
+        private double perSecond(long count) {
+            return elapsedNanos == 0 ? 0 : count * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Report{drivers=" + getDrivers()
+                    + ", events=" + getEvents()
+                    + ", changed=" + getChanged()
+                    + ", failed=" + getFailed()
+                    + ", drivers/s=" + (long) getDriversPerSecond()
+                    + ", events/s=" + (long) getEventsPerSecond()
+                    + '}';
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package ca.truxtrax.logbook;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+
+/**
+ * Fleet reprocessing by number of workers, the time per fleet should fall linearly
+ * up to the number of cores. Logs are in memory, the store is not changed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogbookReprocessorBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    public int parallelism;
+
+    @Param({"500"})
+    public int drivers;
+
+    @Param({"2000"})
+    public int eventsPerDriver;
+
+    private List<Long> driverIds;
+    private LogbookReprocessor reprocessor;
+
+    @Setup
+    public void setUp() {
+        final Map<Long, List<EldEvent>> logs = new HashMap<>();
+        driverIds = new ArrayList<>(drivers);
+        for (long driver = 0; driver < drivers; driver++) {
+            driverIds.add(driver);
+            logs.put(driver, MergeBenchmarkData.history(eventsPerDriver, 4, 0.3, driver));
+        }
+
+        ReprocessStore store = new ReprocessStore() {
+            @Override
+            public List<Long> drivers() {
+                return driverIds;
+            }
+
+            @Override
+            public List<EldEvent> load(long driver) {
+                return logs.get(driver);
+            }
+
+            @Override
+            public void save(long driver, List<EldEvent> events) {
+            }
+        };
+        reprocessor = new LogbookReprocessor(store, LogbookReprocessor.COMBINE_EQUALS, parallelism, true);
+    }
+
+    @Benchmark
+    public LogbookReprocessor.Report fleet() {
+        return reprocessor.run(driverIds);
+    }
+}
@@ -0,0 +1,221 @@
+package ca.truxtrax.test.activiries.logbook;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import ca.truxtrax.logbook.FileLogbookStore;
+import ca.truxtrax.logbook.LogbookMergeUtils;
+import ca.truxtrax.logbook.LogbookReprocessor;
+import ca.truxtrax.logbook.ReprocessStore;
+import utils.BaseRealmRunner;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static utils.Utils.generateEvent;
+
+@PrepareForTest({LogbookMergeUtils.class, EventMergeWrapper.class})
+public class LogbookReprocessorTest extends BaseRealmRunner {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldCombineEqualStatusesOfEveryDriver() {
+
+        // given
+        // driver 1: [0](off), [10](off), [20](on) - not combined
+        // driver 2: [0](off), [10](on) - combined
+        MemoryStore store = new MemoryStore();
+        store.put(1, generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0),
+                generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 10),
+                generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 20));
+        store.put(2, generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0),
+                generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 10));
+
+        // when
+        LogbookReprocessor.Report report = new LogbookReprocessor(store, LogbookReprocessor.COMBINE_EQUALS, 2, false)
+                .run(Arrays.asList(1L, 2L));
+
+        // then
+        assertEquals(2, report.getDrivers());
+        assertEquals(5, report.getEvents());
+        assertEquals(1, report.getChanged());
+        assertEquals(0, report.getFailed());
+
+        LogbookReprocessor.DriverResult driver1 = report.results.get(0);
+        assertEquals(1, driver1.driver);
+        assertEquals(1, driver1.diff.size());
+        assertEquals(EventMergeWrapper.MERGE_RESULT_REMOVED, driver1.diff.get(0).mergeResult);
+        assertEquals(2, store.logs.get(1L).size());
+
+        assertFalse(report.results.get(1).isChanged());
+        assertEquals(2, store.logs.get(2L).size());
+    }
+
+    @Test
+    public void shouldNotSaveOnDryRun() {
+
+        // given
+        MemoryStore store = new MemoryStore();
+        store.put(1, generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 0),
+                generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 10));
+
+        // when
+        LogbookReprocessor.Report report = new LogbookReprocessor(store, LogbookReprocessor.COMBINE_EQUALS, 1, true)
+                .run(Collections.singletonList(1L));
+
+        // then
+        assertEquals(1, report.getChanged());
+        assertEquals(2, store.logs.get(1L).size());
+    }
+
+    @Test
+    public void shouldGiveSameDiffsInParallel() {
+
+        // given
+        MemoryStore sequential = new MemoryStore();
+        MemoryStore parallel = new MemoryStore();
+        List<Long> drivers = new ArrayList<>();
+        for (long driver = 0; driver < 50; driver++) {
+            drivers.add(driver);
+            List<EldEvent> log = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                int status = (i * 7 + (int) driver) % 3 == 0 ? EldEvent.STATUS_ON_DUTY : EldEvent.STATUS_OFF_DUTY;
+                log.add(generateEvent(status, EldEvent.ORIGIN_DRIVER, i * 10));
+            }
+            sequential.logs.put(driver, log);
+            parallel.logs.put(driver, log);
+        }
+
+        // when
+        LogbookReprocessor.Report expected = new LogbookReprocessor(sequential, LogbookReprocessor.COMBINE_EQUALS, 1, true).run(drivers);
+        LogbookReprocessor.Report actual = new LogbookReprocessor(parallel, LogbookReprocessor.COMBINE_EQUALS, 4, true).run(drivers);
+
+        // then
+        for (int i = 0; i < drivers.size(); i++) {
+            List<EventMergeWrapper> e = expected.results.get(i).diff;
+            List<EventMergeWrapper> a = actual.results.get(i).diff;
+            assertEquals(e.size(), a.size());
+            for (int y = 0; y < e.size(); y++) {
+                assertEquals(e.get(y).mergeResult, a.get(y).mergeResult);
+                assertEquals(e.get(y).event.getId(), a.get(y).event.getId());
+            }
+        }
+    }
+
+    @Test
+    public void shouldReportBrokenLog() {
+
+        // given
+        MemoryStore store = new MemoryStore();
+        store.put(1, generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 0));
+        store.broken = 2L;
+
+        // when
+        LogbookReprocessor.Report report = new LogbookReprocessor(store, LogbookReprocessor.COMBINE_EQUALS, 2, false)
+                .run(Arrays.asList(1L, 2L));
+
+        // then
+        assertNull(report.results.get(0).error);
+        assertNotNull(report.results.get(1).error);
+        assertEquals(1, report.getFailed());
+    }
+
+    @Test
+    public void shouldKeepLogsInFiles() throws Exception {
+
+        // given
+        FileLogbookStore store = new FileLogbookStore(folder.getRoot());
+        EldEvent driving = generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_AUTO, 0);
+        driving.setDuration(30);
+        driving.setMilesAccumulated(12.5D);
+        EldEvent off = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 30);
+        off.setLocation("Location");
+
+        // when
+        store.save(7, Arrays.asList(driving, off));
+        List<EldEvent> loaded = store.load(7);
+
+        // then
+        assertEquals(Collections.singletonList(7L), store.drivers());
+        assertEquals(2, loaded.size());
+        assertEquals(driving.getId(), loaded.get(0).getId());
+        assertEquals(EldEvent.ORIGIN_AUTO, loaded.get(0).getOrigin());
+        assertEquals(Integer.valueOf(30), Integer.valueOf(loaded.get(0).getDuration()));
+        assertEquals(12.5D, loaded.get(0).getMilesAccumulated(), 0);
+        assertEquals("Location", loaded.get(1).getLocation());
+        assertTrue(store.load(8).isEmpty());
+    }
+
+    @Test
+    public void shouldRejectDamagedSize() throws Exception {
+
+        // given
+        // the number of events was damaged
+        FileLogbookStore store = new FileLogbookStore(folder.getRoot());
+        store.save(7, Collections.singletonList(generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0)));
+        RandomAccessFile raw = new RandomAccessFile(new File(folder.getRoot(), "7.log"), "rw");
+        try {
+            raw.seek(4);
+            raw.writeInt(Integer.MAX_VALUE);
+        } finally {
+            raw.close();
+        }
+
+        // when
+        try {
+            store.load(7);
+            fail();
+        } catch (IOException e) {
+            // then
+            // nothing was allocated for the size
+            assertTrue(e.getMessage().startsWith("not valid size"));
+        }
+    }
+
+    private static final class MemoryStore implements ReprocessStore {
+        final Map<Long, List<EldEvent>> logs = new ConcurrentHashMap<>();
+        Long broken;
+
+        void put(long driver, EldEvent... events) {
+            logs.put(driver, Arrays.asList(events));
+        }
+
+        @Override
+        public List<Long> drivers() {
+            return new ArrayList<>(logs.keySet());
+        }
+
+        @Override
+        public List<EldEvent> load(long driver) throws IOException {
+            if (broken != null && broken == driver) {
+                throw new IOException("broken log");
+            }
+            List<EldEvent> log = logs.get(driver);
+            return log == null ? new ArrayList<EldEvent>() : log;
+        }
+
+        @Override
+        public void save(long driver, List<EldEvent> events) {
+            logs.put(driver, events);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ca.truxtrax.test.activiries.logbook;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import ca.truxtrax.logbook.DutyTimeline;
+import ca.truxtrax.logbook.LogbookMergeUtils;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Allocation profile of the merge, the pass over the log must not allocate per event.
+ * Plain JVM on purpose, instrumented classes allocate on every call.
+ */
+public class MergeAllocationTest {
+
+    private static final int[] STATUSES = {
+            EldEvent.STATUS_OFF_DUTY,
+            EldEvent.STATUS_SLEEPING,
+            EldEvent.STATUS_ON_DUTY
+    };
+
+    private static final int SMALL = 100;
+    private static final int LARGE = 20000;
+
+    @Test
+    public void shouldNotAllocatePerEvent() {
+        com.sun.management.ThreadMXBean threads = threadMXBean();
+        assumeTrue(threads != null && threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        // given
+        DutyTimeline small = DutyTimeline.of(combinedLog(SMALL));
+        DutyTimeline large = DutyTimeline.of(combinedLog(LARGE));
+
+        // warm up, the buffers grow and the jit settles here
+        for (int i = 0; i < 50; i++) {
+            allocatedByMerge(threads, small);
+            allocatedByMerge(threads, large);
+        }
+
+        // when
+        long smallBytes = Long.MAX_VALUE;
+        long largeBytes = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            smallBytes = Math.min(smallBytes, allocatedByMerge(threads, small));
+            largeBytes = Math.min(largeBytes, allocatedByMerge(threads, large));
+        }
+
+        // then
+        // the same merge over a 200 times longer log, less than a byte per extra event
+        assertTrue("allocated " + smallBytes + " bytes for " + SMALL + " events, " + largeBytes + " for " + LARGE,
+                largeBytes - smallBytes < LARGE - SMALL);
+    }
+
+    private static long allocatedByMerge(com.sun.management.ThreadMXBean threads, DutyTimeline events) {
+        // sleeping at the start of the log
+        EldEvent candidate = event(EldEvent.STATUS_SLEEPING, 7);
+        long rightDate = TimeUnit.MINUTES.toMillis(9);
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        List<EventMergeWrapper> result = new LogbookMergeUtils.EventsMerger(events, candidate, rightDate, rightDate + TimeUnit.MINUTES.toMillis(15)).execute();
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(!result.isEmpty());
+        return allocated;
+    }
+
+    private static com.sun.management.ThreadMXBean threadMXBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        return bean instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) bean : null;
+    }
+
+    /**
+     * no equal neighbours, an event every 5 minutes
+     */
+    private static List<EldEvent> combinedLog(int size) {
+        List<EldEvent> events = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            events.add(event(STATUSES[i % STATUSES.length], i * 5));
+        }
+        return events;
+    }
+
+    private static EldEvent event(int status, int minutes) {
+        return new EldEvent(UUID.randomUUID().toString(), 1L, null, TimeUnit.MINUTES.toMillis(minutes), EldEvent.ORIGIN_DRIVER)
+                .setLogbookStatus(status);
+    }
+}
@@ -0,0 +1,137 @@
+package ca.truxtrax.logbook;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ca.truxtrax.database.realm_dao.eld.EldEventsBulkDao;
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * Merge result grouped for a bulk write: ids to delete, events to insert and events to update.
+ * <p>
+ * Results are folded by event id in list order, so applying the sets gives the same
+ * state as applying the results one by one. New events are inserted whole, existing events
+ * only get the fields a merge writes, see {@link #copyMergedFields}, so fields another writer
+ * keeps on them, e.g. the sync, are not overwritten with the copy the merge was planned from.
+ */
+public final class MergeApplyBatch {
+
+    private final Set<String> removeIds = new LinkedHashSet<>();
+    private final Map<String, EldEvent> upserts = new LinkedHashMap<>();
+    private final Set<String> newIds = new LinkedHashSet<>();
+
+    private MergeApplyBatch() {
+    }
+
+    public static MergeApplyBatch of(List<EventMergeWrapper> results) {
+        MergeApplyBatch batch = new MergeApplyBatch();
+        for (int i = 0; i < results.size(); i++) {
+            EventMergeWrapper it = results.get(i);
+            String id = it.event.getId();
+            switch (it.mergeResult) {
+                case EventMergeWrapper.MERGE_RESULT_REMOVED:
+                    batch.upserts.remove(id);
+                    batch.newIds.remove(id);
+                    batch.removeIds.add(id);
+                    break;
+                case EventMergeWrapper.MERGE_RESULT_NEW:
+                    batch.newIds.add(id);
+                    batch.removeIds.remove(id);
+                    batch.upserts.put(id, it.event);
+                    break;
+                case EventMergeWrapper.MERGE_RESULT_EDITED:
+                case EventMergeWrapper.MERGE_RESULT_CLOSE_DRIVE:
+                case EventMergeWrapper.MERGE_RESULT_REJECTED:
+                    batch.removeIds.remove(id);
+                    batch.upserts.put(id, it.event);
+                    break;
+            }
+        }
+        return batch;
+    }
+
+    public Set<String> getRemoveIds() {
+        return removeIds;
+    }
+
+    public Collection<EldEvent> getUpserts() {
+        return new ArrayList<>(upserts.values());
+    }
+
+    /**
+     * events created by the merge
+     */
+    public Collection<EldEvent> getInserts() {
+        List<EldEvent> result = new ArrayList<>(newIds.size());
+        for (String id : newIds) {
+            result.add(upserts.get(id));
+        }
+        return result;
+    }
+
+    /**
+     * changed events which exist in the database, by id
+     */
+    public Map<String, EldEvent> getUpdates() {
+        Map<String, EldEvent> result = new LinkedHashMap<>();
+        for (Map.Entry<String, EldEvent> it : upserts.entrySet()) {
+            if (!newIds.contains(it.getKey())) {
+                result.put(it.getKey(), it.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Call inside the transaction. Edited events only get the merged fields, the rest stays
+     * as other writers left it.
+     */
+    public void applyTo(EldEventsBulkDao dao) {
+        dao.deleteByIds(removeIds);
+        dao.insertOrUpdate(getInserts());
+
+        Map<String, EldEvent> updates = getUpdates();
+        List<EldEvent> saved = dao.selectByIds(updates.keySet());
+        for (int i = 0; i < saved.size(); i++) {
+            EldEvent it = saved.get(i);
+            copyMergedFields(updates.remove(it.getId()), it);
+        }
+        // not in the database any more, e.g. a replayed merge
+        dao.insertOrUpdate(updates.values());
+    }
+
+    /**
+     * Fields a merge sets, the same {@link EldEventCodec} keeps for the journal.
+     *
+     * @param target managed event, called inside the transaction
+     */
+    static void copyMergedFields(EldEvent source, EldEvent target) {
+        target.setUser(source.getUser());
+        target.setDatetime(source.getDatetime());
+        target.setOrigin(source.getOrigin());
+        target.setType(source.getType());
+        target.setLogbookStatus(source.getLogbookStatus());
+        target.setLocation(source.getLocation());
+        target.setLat(source.getLat());
+        target.setLon(source.getLon());
+        target.setMiles(source.getMiles());
+        target.setHours(source.getHours());
+        target.setMilesOriginal(source.getMilesOriginal());
+        target.setHoursOriginal(source.getHoursOriginal());
+        target.setEld(source.getEld());
+        target.setDuration(source.getDuration());
+        target.setMilesAccumulated(source.getMilesAccumulated());
+        target.setHoursAccumulated(source.getHoursAccumulated());
+    }
+
+    public boolean isEmpty() {
+        return removeIds.isEmpty() && upserts.isEmpty();
+    }
+}
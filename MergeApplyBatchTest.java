@@ -0,0 +1,117 @@
+package ca.truxtrax.test.activiries.logbook;
+
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.reflect.internal.WhiteboxImpl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import ca.truxtrax.logbook.LogbookMergeUtils;
+import ca.truxtrax.logbook.MergeApplyBatch;
+import utils.BaseRealmRunner;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static utils.Utils.generateEvent;
+
+@PrepareForTest({LogbookMergeUtils.class, EventMergeWrapper.class})
+public class MergeApplyBatchTest extends BaseRealmRunner {
+
+    @Test
+    public void shouldGroupByResult() {
+
+        // given
+        EldEvent removed1 = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 1);
+        EldEvent removed2 = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 2);
+        EldEvent edited = generateEvent(EldEvent.STATUS_SLEEPING, EldEvent.ORIGIN_DRIVER, 0);
+        EldEvent closed = generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_AUTO, 3);
+        EldEvent created = generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_DRIVER, 4);
+
+        // when
+        MergeApplyBatch batch = MergeApplyBatch.of(Arrays.asList(
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_REMOVED, removed1),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_EDITED, edited),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_REMOVED, removed2),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_CLOSE_DRIVE, closed),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_NEW, created),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_NO_CHANGES, generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 5))));
+
+        // then
+        assertEquals(Arrays.asList(removed1.getId(), removed2.getId()), new ArrayList<>(batch.getRemoveIds()));
+        List<EldEvent> upserts = new ArrayList<>(batch.getUpserts());
+        assertEquals(3, upserts.size());
+        assertSame(edited, upserts.get(0));
+        assertSame(closed, upserts.get(1));
+        assertSame(created, upserts.get(2));
+    }
+
+    @Test
+    public void shouldKeepLastResultOfEvent() {
+
+        // given
+        EldEvent event = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 1);
+        EldEvent editedCopy = event.copy();
+        EldEvent other = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 2);
+
+        // when
+        MergeApplyBatch batch = MergeApplyBatch.of(Arrays.asList(
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_EDITED, editedCopy),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_REMOVED, event),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_REMOVED, other),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_REJECTED, other)));
+
+        // then
+        // same state as applying the results one by one
+        assertEquals(Arrays.asList(event.getId()), new ArrayList<>(batch.getRemoveIds()));
+        Collection<EldEvent> upserts = batch.getUpserts();
+        assertEquals(1, upserts.size());
+        assertSame(other, upserts.iterator().next());
+    }
+
+    @Test
+    public void shouldUpdateOnlyExistingEvents() throws Exception {
+
+        // given
+        EldEvent edited = generateEvent(EldEvent.STATUS_SLEEPING, EldEvent.ORIGIN_DRIVER, 0);
+        EldEvent created = generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_DRIVER, 4);
+        EldEvent createdEdited = created.copy();
+        createdEdited.setLocation("Location2");
+
+        // when
+        MergeApplyBatch batch = MergeApplyBatch.of(Arrays.asList(
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_EDITED, edited),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_NEW, created),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_EDITED, createdEdited)));
+
+        // then
+        // an event created by the merge is inserted with its last state
+        List<EldEvent> inserts = new ArrayList<>(batch.getInserts());
+        assertEquals(1, inserts.size());
+        assertSame(createdEdited, inserts.get(0));
+        Map<String, EldEvent> updates = batch.getUpdates();
+        assertEquals(1, updates.size());
+        assertSame(edited, updates.get(edited.getId()));
+
+        // the merged fields are copied, the saved event keeps the rest
+        EldEvent saved = edited.copy();
+        saved.setLogbookStatus(EldEvent.STATUS_ON_DUTY);
+        saved.setLocation("Location1");
+        edited.setLocation("Location3");
+        WhiteboxImpl.invokeMethod(MergeApplyBatch.class, "copyMergedFields", edited, saved);
+        assertEquals(EldEvent.STATUS_SLEEPING, saved.getLogbookStatus());
+        assertEquals("Location3", saved.getLocation());
+        assertEquals(edited.getId(), saved.getId());
+    }
+
+    @Test
+    public void shouldBeEmptyForNoChanges() {
+        assertTrue(MergeApplyBatch.of(new ArrayList<EventMergeWrapper>()).isEmpty());
+    }
+}
@@ -0,0 +1,156 @@
+package ca.truxtrax.logbook;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import ca.truxtrax.database.realm_dao.eld.EldEventsBulkDao;
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * Applying a merge result which removes the events between the draggers: {@link MergeApplyBatch#applyTo}
+ * against the per-event loop saveMergeResultToDatabase used to run, both on the same in-memory dao.
+ * <p>
+ * Realm does not run on a plain JVM. The dao keeps the events in a map and counts its calls,
+ * {@code callCost} stands for the fixed cost of one Realm call (JNI crossing, query, notification
+ * bookkeeping), in {@link Blackhole#consumeCPU} tokens. Applying is idempotent, every invocation
+ * works on the store the previous one left.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MergeApplyBenchmark {
+
+    @Param({"60", "600", "6000"})
+    public int windowMinutes;
+
+    @Param({"0", "500"})
+    public int callCost;
+
+    private List<EventMergeWrapper> result;
+    private InMemoryEventsDao dao;
+
+    @Setup
+    public void setUp() {
+        List<EldEvent> history = MergeBenchmarkData.history(2000, 4, 0.3, 1);
+        long left = MergeBenchmarkData.middle(history);
+        long rightDate = left + TimeUnit.MINUTES.toMillis(windowMinutes);
+        result = LogbookMergeUtils.mergeEvents(history, MergeBenchmarkData.candidate(EldEvent.STATUS_ON_DUTY, left),
+                rightDate, rightDate + TimeUnit.HOURS.toMillis(1));
+        dao = new InMemoryEventsDao(history, callCost);
+    }
+
+    /**
+     * one dao call per result
+     */
+    @Benchmark
+    public int perEvent() {
+        int calls = dao.calls;
+        for (EventMergeWrapper it : result) {
+            switch (it.mergeResult) {
+                case EventMergeWrapper.MERGE_RESULT_REMOVED:
+                    dao.deleteByIds(Collections.singletonList(it.event.getId()));
+                    break;
+                case EventMergeWrapper.MERGE_RESULT_NEW:
+                case EventMergeWrapper.MERGE_RESULT_EDITED:
+                case EventMergeWrapper.MERGE_RESULT_CLOSE_DRIVE:
+                case EventMergeWrapper.MERGE_RESULT_REJECTED:
+                    dao.insertOrUpdate(Collections.singletonList(it.event));
+                    break;
+            }
+        }
+        return dao.calls - calls;
+    }
+
+    @Benchmark
+    public int bulk() {
+        int calls = dao.calls;
+        MergeApplyBatch.of(result).applyTo(dao);
+        return dao.calls - calls;
+    }
+
+    /**
+     * events by id, every call costs {@code callCost}
+     */
+    static final class InMemoryEventsDao extends EldEventsBulkDao {
+        private final Map<String, EldEvent> events = new HashMap<>();
+        private final int callCost;
+        int calls;
+
+        InMemoryEventsDao(List<EldEvent> history, int callCost) {
+            super(null);
+            this.callCost = callCost;
+            for (int i = 0; i < history.size(); i++) {
+                EldEvent it = history.get(i).copy();
+                events.put(it.getId(), it);
+            }
+        }
+
+        @Override
+        public List<EldEvent> selectByIds(Collection<String> ids) {
+            call();
+            List<EldEvent> result = new ArrayList<>(ids.size());
+            for (String id : ids) {
+                EldEvent it = events.get(id);
+                if (it != null) {
+                    result.add(it);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public int deleteByIds(Collection<String> ids) {
+            if (ids == null || ids.isEmpty()) {
+                return 0;
+            }
+            call();
+            int size = 0;
+            for (String id : ids) {
+                if (events.remove(id) != null) {
+                    size++;
+                }
+            }
+            return size;
+        }
+
+        @Override
+        public void insertOrUpdate(Collection<EldEvent> events) {
+            if (events == null || events.isEmpty()) {
+                return;
+            }
+            call();
+            for (EldEvent it : events) {
+                // Realm copies unmanaged objects
+                this.events.put(it.getId(), it.copy());
+            }
+        }
+
+        private void call() {
+            calls++;
+            Blackhole.consumeCPU(callCost);
+        }
+    }
+}
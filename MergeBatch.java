@@ -0,0 +1,143 @@
+package ca.truxtrax.logbook;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * Several merges planned one after another against an in-memory log.
+ * <p>
+ * Every request sees the log as the previous requests left it. The result is the net change
+ * of every event against the log passed in: an event created and removed inside the batch is
+ * dropped, an event edited several times is written once with its last version.
+ * No I/O, like {@link MergePlanner}.
+ */
+public final class MergeBatch {
+
+    public final List<EventMergeWrapper> results;
+
+    /**
+     * annotations of the requests, the events are the final versions
+     */
+    public final List<PendingAnnotation> annotations;
+
+    /**
+     * number of results of the single merges, before they were folded
+     */
+    public final int intermediateResults;
+
+    /**
+     * events the batch was planned from, the results replace some of them
+     */
+    final DutyTimeline events;
+
+    private MergeBatch(DutyTimeline events, List<EventMergeWrapper> results, List<PendingAnnotation> annotations, int intermediateResults) {
+        this.events = events;
+        this.results = results;
+        this.annotations = annotations;
+        this.intermediateResults = intermediateResults;
+    }
+
+    public static MergeBatch plan(List<EldEvent> events, List<MergeRequest> requests) {
+
+        // log state by id, replaced events keep their position
+        Map<String, EldEvent> original = new HashMap<>(events.size() * 2);
+        Map<String, EldEvent> state = new LinkedHashMap<>(events.size() * 2);
+        for (int i = 0; i < events.size(); i++) {
+            EldEvent it = events.get(i);
+            original.put(it.getId(), it);
+            state.put(it.getId(), it);
+        }
+
+        // last result type of every event, tells edited from closed or rejected
+        Map<String, Integer> lastResult = new HashMap<>();
+        List<String> annotationIds = new ArrayList<>();
+        List<MergeRequest> annotated = new ArrayList<>();
+        int intermediateResults = 0;
+
+        DutyTimeline base = DutyTimeline.of(events);
+        DutyTimeline timeline = base;
+        for (int r = 0; r < requests.size(); r++) {
+            MergeRequest request = requests.get(r);
+            MergePlan plan = MergePlanner.plan(timeline, request.mergeEvent, request.rightDate, request.theTime);
+            if (plan.isEmpty()) {
+                continue;
+            }
+
+            for (EventMergeWrapper it : plan.results) {
+                String id = it.event.getId();
+                switch (it.mergeResult) {
+                    case EventMergeWrapper.MERGE_RESULT_REMOVED:
+                        state.remove(id);
+                        break;
+                    case EventMergeWrapper.MERGE_RESULT_NEW:
+                    case EventMergeWrapper.MERGE_RESULT_EDITED:
+                    case EventMergeWrapper.MERGE_RESULT_CLOSE_DRIVE:
+                    case EventMergeWrapper.MERGE_RESULT_REJECTED:
+                        state.put(id, it.event);
+                        lastResult.put(id, it.mergeResult);
+                        break;
+                }
+            }
+            intermediateResults += plan.results.size();
+
+            if (request.annotation != null && plan.annotationTarget != null) {
+                annotationIds.add(plan.annotationTarget.getId());
+                annotated.add(request);
+            }
+
+            timeline = DutyTimeline.of(new ArrayList<>(state.values()));
+        }
+
+        // net diff, removed and edited events in log order, then the new ones
+        List<EventMergeWrapper> results = new ArrayList<>();
+        for (int i = 0; i < events.size(); i++) {
+            EldEvent it = events.get(i);
+            EldEvent current = state.get(it.getId());
+            if (current == null) {
+                results.add(new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_REMOVED, it));
+            } else if (current != it) {
+                results.add(new EventMergeWrapper(lastResult.get(it.getId()), current));
+            }
+        }
+        for (EldEvent it : state.values()) {
+            if (!original.containsKey(it.getId())) {
+                results.add(new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_NEW, it));
+            }
+        }
+
+        // annotations of events which are still in the log
+        List<PendingAnnotation> annotations = new ArrayList<>();
+        for (int i = 0; i < annotationIds.size(); i++) {
+            EldEvent event = state.get(annotationIds.get(i));
+            if (event != null) {
+                MergeRequest request = annotated.get(i);
+                annotations.add(new PendingAnnotation(event, request.mergeEvent.getDatetime(), request.annotation));
+            }
+        }
+
+        return new MergeBatch(base, results, annotations, intermediateResults);
+    }
+
+    public boolean isEmpty() {
+        return results.isEmpty();
+    }
+
+    public static final class PendingAnnotation {
+        public final EldEvent event;
+        public final long time;
+        public final String comment;
+
+        PendingAnnotation(EldEvent event, long time, String comment) {
+            this.event = event;
+            this.time = time;
+            this.comment = comment;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package ca.truxtrax.test.activiries.logbook;
+
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import ca.truxtrax.logbook.LogbookMergeUtils;
+import ca.truxtrax.logbook.MergeBatch;
+import ca.truxtrax.logbook.MergeRequest;
+import utils.BaseRealmRunner;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static utils.Utils.generateEvent;
+
+@PrepareForTest({LogbookMergeUtils.class, EventMergeWrapper.class})
+public class MergeBatchTest extends BaseRealmRunner {
+
+    @Test
+    public void shouldFoldEditsOfSameEvent() {
+
+        // given
+        // in [0, ~](off)
+        // #1 [10-20](on), #2 [10-20](sb)
+        List<EldEvent> events = Arrays.asList(generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0));
+        List<MergeRequest> requests = Arrays.asList(
+                new MergeRequest(generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 10), minutes(20), minutes(30)),
+                new MergeRequest(generateEvent(EldEvent.STATUS_SLEEPING, EldEvent.ORIGIN_DRIVER, 10), minutes(20), minutes(30), "changed to sleeping"));
+
+        // when
+        MergeBatch batch = MergeBatch.plan(events, requests);
+
+        // then
+        // one write per event: [10](sb) and the rest of off at [20]
+        assertEquals(3, batch.intermediateResults);
+        assertEquals(2, batch.results.size());
+        EventMergeWrapper sleeping = batch.results.get(0);
+        assertEquals(EventMergeWrapper.MERGE_RESULT_NEW, sleeping.mergeResult);
+        assertEquals(EldEvent.STATUS_SLEEPING, sleeping.event.getLogbookStatus());
+        assertEquals(minutes(10), sleeping.event.getDatetime());
+        EventMergeWrapper off = batch.results.get(1);
+        assertEquals(EventMergeWrapper.MERGE_RESULT_NEW, off.mergeResult);
+        assertEquals(EldEvent.STATUS_OFF_DUTY, off.event.getLogbookStatus());
+        assertEquals(minutes(20), off.event.getDatetime());
+
+        // annotation goes to the final version
+        assertEquals(1, batch.annotations.size());
+        assertEquals(sleeping.event, batch.annotations.get(0).event);
+    }
+
+    @Test
+    public void shouldCancelEditsWhichUndoEachOther() {
+
+        // given
+        // in [0, ~](off)
+        // #1 [10-20](on), #2 [10-20](off)
+        List<EldEvent> events = Arrays.asList(generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0));
+        List<MergeRequest> requests = Arrays.asList(
+                new MergeRequest(generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 10), minutes(20), minutes(30)),
+                new MergeRequest(generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 10), minutes(20), minutes(30)));
+
+        // when
+        MergeBatch batch = MergeBatch.plan(events, requests);
+
+        // then
+        // the log is as before
+        assertTrue(batch.isEmpty());
+    }
+
+    @Test
+    public void shouldEditExistingEventOnce() {
+
+        // given
+        // in [0](off), [10](on), [20, ~](sb)
+        EldEvent on = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 10);
+        on.setLocation("Location1");
+        List<EldEvent> events = Arrays.asList(
+                generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0),
+                on,
+                generateEvent(EldEvent.STATUS_SLEEPING, EldEvent.ORIGIN_DRIVER, 20));
+        EldEvent first = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 12);
+        first.setLocation("Location2");
+        EldEvent second = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 12);
+        second.setLocation("Location3");
+
+        // when
+        // both inside [10-20](on)
+        MergeBatch batch = MergeBatch.plan(events, Arrays.asList(
+                new MergeRequest(first, minutes(14), minutes(30)),
+                new MergeRequest(second, minutes(14), minutes(30))));
+
+        // then
+        assertEquals(1, batch.results.size());
+        EventMergeWrapper edited = batch.results.get(0);
+        assertEquals(EventMergeWrapper.MERGE_RESULT_EDITED, edited.mergeResult);
+        assertEquals(on.getId(), edited.event.getId());
+        assertEquals("Location3", edited.event.getLocation());
+        assertEquals("Location1", on.getLocation());
+    }
+
+    private static long minutes(int minutes) {
+        return TimeUnit.MINUTES.toMillis(minutes);
+    }
+}
@@ -0,0 +1,91 @@
+package ca.truxtrax.logbook;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import ca.truxtrax.database.realm_dao.BaseDAO;
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+
+/**
+ * Synthetic duty histories for the merge benchmarks.
+ */
+final class MergeBenchmarkData {
+
+    static final long USER = 100;
+
+    private static final int[] STATUSES = {
+            EldEvent.STATUS_OFF_DUTY,
+            EldEvent.STATUS_SLEEPING,
+            EldEvent.STATUS_ON_DUTY,
+            EldEvent.STATUS_DRIVING
+    };
+
+    private MergeBenchmarkData() {
+    }
+
+    /**
+     * @param size          number of events
+     * @param eventsPerHour average density of the log
+     * @param autoDriving   share of ORIGIN_AUTO driving events, 0..1
+     * @param seed          same seed gives the same history
+     */
+    static List<EldEvent> history(int size, int eventsPerHour, double autoDriving, long seed) {
+        Random random = new Random(seed);
+        List<EldEvent> events = new ArrayList<>(size);
+        long stepMinutes = Math.max(1, 60 / Math.max(1, eventsPerHour));
+        long datetime = TimeUnit.DAYS.toMillis(17000);
+        int previous = -1;
+        for (int i = 0; i < size; i++) {
+            boolean auto = random.nextDouble() < autoDriving;
+            int status;
+            if (auto) {
+                status = EldEvent.STATUS_DRIVING;
+            } else {
+                // keep the log combined, no equal neighbours
+                do {
+                    status = STATUSES[random.nextInt(STATUSES.length)];
+                } while (status == previous);
+            }
+
+            EldEvent event = new EldEvent(BaseDAO.generateUuid(), USER, null, datetime,
+                    auto ? EldEvent.ORIGIN_AUTO : EldEvent.ORIGIN_DRIVER)
+                    .setLogbookStatus(status);
+            event.setLocation("Location " + i);
+            event.setHours(i * 0.1f);
+            event.setMiles(i * 1.5d);
+            event.setHoursOriginal(i * 0.1f);
+            event.setMilesOriginal(i * 1.5d);
+            long duration = stepMinutes * (1 + random.nextInt(3));
+            if (auto) {
+                // closed driving
+                event.setDuration((int) duration);
+            }
+            events.add(event);
+
+            previous = status;
+            datetime += TimeUnit.MINUTES.toMillis(duration);
+        }
+        return events;
+    }
+
+    static EldEvent candidate(int status, long datetime) {
+        EldEvent candidate = new EldEvent(BaseDAO.generateUuid(), USER, null, datetime, EldEvent.ORIGIN_DRIVER)
+                .setLogbookStatus(status);
+        candidate.setLocation("Candidate");
+        candidate.setHours(1f);
+        candidate.setMiles(1d);
+        return candidate;
+    }
+
+    /**
+     * datetime in the middle of the history, rounded to minutes
+     */
+    static long middle(List<EldEvent> events) {
+        long first = events.get(0).getDatetime();
+        long last = events.get(events.size() - 1).getDatetime();
+        long middle = first + (last - first) / 2;
+        return middle - middle % TimeUnit.MINUTES.toMillis(1);
+    }
+}
@@ -0,0 +1,33 @@
+package ca.truxtrax.logbook;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the merge benchmarks and writes JSON results, compare the files release over release.
+ * <p>
+ * Usage: {@code MergeBenchmarkRunner [result file] [benchmark regexp]}
+ */
+public final class MergeBenchmarkRunner {
+
+    private static final String DEFAULT_RESULT = "build/reports/jmh/merge-benchmarks.json";
+    private static final String DEFAULT_INCLUDE = "ca\\.truxtrax\\.logbook\\..*Benchmark.*";
+
+    private MergeBenchmarkRunner() {
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        String result = args.length > 0 ? args[0] : DEFAULT_RESULT;
+        String include = args.length > 1 ? args[1] : DEFAULT_INCLUDE;
+
+        Options options = new OptionsBuilder()
+                .include(include)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,169 @@
+package ca.truxtrax.logbook;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ca.truxtrax.database.realm_dao.eld.EldDutyEventsDao;
+import ca.truxtrax.database.realm_dao.eld.EldEventsBulkDao;
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import io.realm.Realm;
+import io.realm.RealmResults;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * Optimistic check of a merge planned outside its transaction.
+ * <p>
+ * The plan is made from events read before the transaction, the Realm may be behind (a thread
+ * without a looper is not refreshed) or another writer such as the ELD service may change or
+ * remove events meanwhile. The plan writes the merged fields of the events it read, so it would
+ * overwrite those changes or bring removed events back. The events the plan overwrites or
+ * removes are encoded when it is made and compared with the database inside the transaction,
+ * which reads the latest version.
+ * The events between the draggers are compared by id, an event another writer put there
+ * would overlap the merged ones. On any difference the merge is planned again.
+ * <p>
+ * Only the fields a merge writes are compared, the transaction writes nothing else on
+ * existing events, see {@link MergeApplyBatch#copyMergedFields}.
+ */
+final class MergeConflictCheck {
+
+    private static final String FIELD_DATETIME = "datetime";
+
+    static final MergeConflictCheck NONE = new MergeConflictCheck(new LinkedHashMap<String, byte[]>(), 0, 1, 0, null);
+
+    private final Map<String, byte[]> versions;
+
+    private final long user;
+    // [from, to] of the draggers, empty if from > to
+    private final long from;
+    private final long to;
+    private final Set<String> windowIds;
+
+    private MergeConflictCheck(Map<String, byte[]> versions, long user, long from, long to, Set<String> windowIds) {
+        this.versions = versions;
+        this.user = user;
+        this.from = from;
+        this.to = to;
+        this.windowIds = windowIds;
+    }
+
+    /**
+     * Call before the transaction, on the thread which owns the events.
+     *
+     * @param base    events the plan was made from
+     * @param results the plan, new events are not checked
+     * @param from    left dragger
+     * @param to      right dragger, the window is not checked if it is before {@code from}
+     */
+    static MergeConflictCheck of(DutyTimeline base, List<EventMergeWrapper> results, long user, long from, long to) {
+        Map<String, byte[]> versions = new LinkedHashMap<>();
+        EldEventCodec.Output out = new EldEventCodec.Output(256);
+        for (int i = 0; i < results.size(); i++) {
+            EventMergeWrapper it = results.get(i);
+            if (it.mergeResult == EventMergeWrapper.MERGE_RESULT_NEW || versions.containsKey(it.event.getId())) {
+                continue;
+            }
+            EldEvent read = find(base, it.event);
+            if (read != null) {
+                versions.put(read.getId(), encode(out, read));
+            }
+        }
+        if (versions.isEmpty() && from > to) {
+            return NONE;
+        }
+
+        Set<String> windowIds = new HashSet<>();
+        for (int i = base.ceilingIndex(from); from <= to && i < base.size() && base.datetimeAt(i) <= to; i++) {
+            windowIds.add(base.get(i).getId());
+        }
+        return new MergeConflictCheck(versions, user, from, to, windowIds);
+    }
+
+    /**
+     * Call inside the transaction, before anything is written.
+     *
+     * @throws ConflictException if one of the events was changed or removed since the plan was made
+     */
+    void verify(Realm realm) {
+        if (!versions.isEmpty()) {
+            verifyVersions(realm);
+        }
+        if (from <= to) {
+            verifyWindow(realm);
+        }
+    }
+
+    private void verifyVersions(Realm realm) {
+        List<EldEvent> current = new EldEventsBulkDao(realm).selectByIds(versions.keySet());
+        if (current.size() != versions.size()) {
+            throw new ConflictException("removed " + (versions.size() - current.size()) + " of " + versions.size() + " events");
+        }
+        EldEventCodec.Output out = new EldEventCodec.Output(256);
+        for (int i = 0; i < current.size(); i++) {
+            EldEvent it = current.get(i);
+            if (!Arrays.equals(versions.get(it.getId()), encode(out, it))) {
+                throw new ConflictException("changed event " + it.getId());
+            }
+        }
+    }
+
+    private void verifyWindow(Realm realm) {
+        Set<String> current = new HashSet<>();
+        List<EldEvent> events = new EldDutyEventsDao(realm).selectForDriverId(user);
+        if (events instanceof RealmResults) {
+            // only the window is read
+            events = ((RealmResults<EldEvent>) events).where().between(FIELD_DATETIME, from, to).findAll();
+        }
+        for (int i = 0; i < events.size(); i++) {
+            EldEvent it = events.get(i);
+            if (it.getDatetime() >= from && it.getDatetime() <= to) {
+                current.add(it.getId());
+            }
+        }
+        if (!current.equals(windowIds)) {
+            throw new ConflictException("events between " + from + " and " + to + " changed");
+        }
+    }
+
+    /**
+     * results which are not new keep the datetime of the event they replace
+     */
+    private static EldEvent find(DutyTimeline base, EldEvent result) {
+        String id = result.getId();
+        for (int i = base.floorIndex(result.getDatetime()); i >= 0 && base.datetimeAt(i) == result.getDatetime(); i--) {
+            if (id.equals(base.get(i).getId())) {
+                return base.get(i);
+            }
+        }
+        for (int i = 0; i < base.size(); i++) {
+            if (id.equals(base.get(i).getId())) {
+                return base.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * every field a merge reads or writes
+     */
+    private static byte[] encode(EldEventCodec.Output out, EldEvent event) {
+        out.clear();
+        EldEventCodec.writeLogEvent(out, event);
+        return Arrays.copyOf(out.array(), out.size());
+    }
+
+    /**
+     * the events were changed by another writer, the merge must be planned again
+     */
+    static final class ConflictException extends IllegalStateException {
+
+        ConflictException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package ca.truxtrax.logbook;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.preference.PreferenceManager;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ca.truxtrax.settings.AppSettings;
+import ca.truxtrax.settings.SettingsEditor;
+import ca.truxtrax.utils.EldUtils;
+import ca.truxtrax.utils.LocationUtils;
+
+/**
+ * Inputs of {@link LogbookMergeUtils#mergeLastEvent} which otherwise hit the settings
+ * and the city lookup on every logbook interval of every driver.
+ * <p>
+ * The logbook interval is kept until a preference changes, settings stored outside the default
+ * preferences must call {@link #invalidate()}. ELD readings change all the time while driving,
+ * they are never cached, see {@link #getReadings}. The location is read on every merge, the
+ * nearest city is looked up again only if the location moved.
+ */
+public final class MergeContextCache implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+    private static final MergeContextCache instance = new MergeContextCache();
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+    private final AtomicReference<Place> place = new AtomicReference<>();
+    private final AtomicInteger generation = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+
+    // SharedPreferences keeps listeners weakly, the preferences are kept to unregister
+    private volatile SharedPreferences preferences;
+
+    private MergeContextCache() {
+    }
+
+    public static MergeContextCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * settings of the merge
+     */
+    public static final class Snapshot {
+        public final int logbookIntervalInMins;
+
+        Snapshot(int logbookIntervalInMins) {
+            this.logbookIntervalInMins = logbookIntervalInMins;
+        }
+
+        static Snapshot load(Context context) {
+            return new Snapshot(new AppSettings(context).getLogbookFrequencyInMins());
+        }
+    }
+
+    /**
+     * ELD readings at the time of the merge, 0 if no ELD is configured
+     */
+    public static final class Readings {
+        public final float engineHours;
+        public final double odometer;
+        public final Long eldId;
+
+        Readings(float engineHours, double odometer, Long eldId) {
+            this.engineHours = engineHours;
+            this.odometer = odometer;
+            this.eldId = eldId;
+        }
+    }
+
+    /**
+     * last known location and its nearest city, both null if unknown
+     */
+    public static final class Place {
+        public final Location location;
+        public final String locationStr;
+
+        Place(Location location, String locationStr) {
+            this.location = location;
+            this.locationStr = locationStr;
+        }
+    }
+
+    public Snapshot getSnapshot(Context context) {
+        if (preferences == null) {
+            register(context);
+        }
+
+        Snapshot it = snapshot.get();
+        if (it != null) {
+            hits.incrementAndGet();
+            return it;
+        }
+
+        int loadedGeneration = generation.get();
+        it = Snapshot.load(context);
+        loads.incrementAndGet();
+        if (snapshot.compareAndSet(null, it) && generation.get() != loadedGeneration) {
+            // invalidated while loading, the values may be old already
+            snapshot.compareAndSet(it, null);
+        }
+        return it;
+    }
+
+    /**
+     * read on every call, the ELD service keeps updating them
+     */
+    public Readings getReadings(Context context) {
+        float engineHours = 0f;
+        double odometer = 0d;
+        if (EldUtils.isConfigured(context)) {
+            float engineHoursCache = EldUtils.getCachedEngineHoursFloat(context);
+            engineHours = engineHoursCache == SettingsEditor.FLOAT_NULL_VALUE ? 0f : engineHoursCache;
+            double cachedOdometer = EldUtils.getCachedOdometerFloat(context);
+            odometer = cachedOdometer == SettingsEditor.FLOAT_NULL_VALUE ? 0d : cachedOdometer;
+        }
+        return new Readings(engineHours, odometer, EldUtils.getConnectedEldId(context));
+    }
+
+    public Place getPlace(Context context) {
+        Place previous = place.get();
+        Location location = LocationUtils.lastKnownLocation(context);
+        if (location == null) {
+            Place it = new Place(null, null);
+            place.set(it);
+            return it;
+        }
+        if (previous != null && sameLocation(previous.location, location)) {
+            // the city lookup is the expensive part
+            hits.incrementAndGet();
+            return previous;
+        }
+
+        String locationStr = NearestCityCache.getInstance().format(context, location);
+        loads.incrementAndGet();
+
+        Place it = new Place(location, locationStr);
+        place.set(it);
+        return it;
+    }
+
+    private static boolean sameLocation(Location l1, Location l2) {
+        return l1 != null
+                && l1.getLatitude() == l2.getLatitude()
+                && l1.getLongitude() == l2.getLongitude();
+    }
+
+    /**
+     * drops the settings and the last place, they are read again on the next merge
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        snapshot.set(null);
+        place.set(null);
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+        invalidate();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getLoads() {
+        return loads.get();
+    }
+
+    private synchronized void register(Context context) {
+        if (preferences == null) {
+            preferences = PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext());
+            preferences.registerOnSharedPreferenceChangeListener(this);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package ca.truxtrax.test.activiries.logbook;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.preference.PreferenceManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+
+import ca.truxtrax.logbook.CitySpatialIndex;
+import ca.truxtrax.logbook.MergeContextCache;
+import ca.truxtrax.logbook.NearestCityCache;
+import ca.truxtrax.settings.AppSettings;
+import ca.truxtrax.utils.EldUtils;
+import ca.truxtrax.utils.LocationUtils;
+import utils.BaseRealmRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+@PrepareForTest({MergeContextCache.class, EldUtils.class, LocationUtils.class, PreferenceManager.class})
+public class MergeContextCacheTest extends BaseRealmRunner {
+
+    private Context context;
+    private AppSettings settings;
+    private MergeContextCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        context = mock(Context.class);
+        when(context.getApplicationContext()).thenReturn(context);
+
+        mockStatic(PreferenceManager.class);
+        when(PreferenceManager.getDefaultSharedPreferences(any(Context.class))).thenReturn(mock(SharedPreferences.class));
+
+        mockStatic(EldUtils.class);
+        when(EldUtils.isConfigured(context)).thenReturn(true);
+        when(EldUtils.getCachedEngineHoursFloat(context)).thenReturn(12f);
+        when(EldUtils.getCachedOdometerFloat(context)).thenReturn(100f);
+        when(EldUtils.getConnectedEldId(context)).thenReturn(7L);
+
+        settings = mock(AppSettings.class);
+        when(settings.getLogbookFrequencyInMins()).thenReturn(15);
+        PowerMockito.whenNew(AppSettings.class).withArguments(context).thenReturn(settings);
+
+        mockStatic(LocationUtils.class);
+
+        // no city strings of another test
+        NearestCityCache.getInstance().install(null);
+
+        cache = MergeContextCache.getInstance();
+        cache.invalidate();
+    }
+
+    @Test
+    public void shouldReadSettingsOnce() {
+
+        // when
+        MergeContextCache.Snapshot first = cache.getSnapshot(context);
+        MergeContextCache.Snapshot second = cache.getSnapshot(context);
+
+        // then
+        assertSame(first, second);
+        assertEquals(15, first.logbookIntervalInMins);
+        verify(settings, times(1)).getLogbookFrequencyInMins();
+    }
+
+    @Test
+    public void shouldReloadAfterSettingsChanged() {
+
+        // given
+        MergeContextCache.Snapshot first = cache.getSnapshot(context);
+        when(settings.getLogbookFrequencyInMins()).thenReturn(5);
+
+        // when
+        cache.onSharedPreferenceChanged(null, "logbook_frequency");
+        MergeContextCache.Snapshot second = cache.getSnapshot(context);
+
+        // then
+        assertEquals(15, first.logbookIntervalInMins);
+        assertEquals(5, second.logbookIntervalInMins);
+    }
+
+    @Test
+    public void shouldReadCurrentEldReadings() {
+
+        // given
+        MergeContextCache.Readings first = cache.getReadings(context);
+        // driving on
+        when(EldUtils.getCachedEngineHoursFloat(context)).thenReturn(12.5f);
+        when(EldUtils.getCachedOdometerFloat(context)).thenReturn(130f);
+
+        // when
+        MergeContextCache.Readings second = cache.getReadings(context);
+
+        // then
+        assertEquals(12f, first.engineHours, 0);
+        assertEquals(100d, first.odometer, 0);
+        assertEquals(Long.valueOf(7), first.eldId);
+        assertEquals(12.5f, second.engineHours, 0);
+        assertEquals(130d, second.odometer, 0);
+    }
+
+    @Test
+    public void shouldReadZeroWithoutEld() {
+
+        // given
+        when(EldUtils.isConfigured(context)).thenReturn(false);
+        when(EldUtils.getConnectedEldId(context)).thenReturn(null);
+
+        // when
+        MergeContextCache.Readings readings = cache.getReadings(context);
+
+        // then
+        // readings of a not configured ELD are 0
+        assertEquals(0f, readings.engineHours, 0);
+        assertEquals(0d, readings.odometer, 0);
+        assertEquals(null, readings.eldId);
+    }
+
+    @Test
+    public void shouldLookUpCityOnlyWhenMoved() {
+
+        // given
+        Location location = location(45d, -75d);
+        when(LocationUtils.lastKnownLocation(context)).thenReturn(location);
+        when(LocationUtils.getNearestCityDirectionFormattedString(context, location)).thenReturn("5 mi N Ottawa");
+
+        // when
+        MergeContextCache.Place first = cache.getPlace(context);
+        MergeContextCache.Place second = cache.getPlace(context);
+
+        // then
+        // the location is read every time, the city once
+        assertSame(first, second);
+        assertEquals("5 mi N Ottawa", first.locationStr);
+        PowerMockito.verifyStatic(times(2));
+        LocationUtils.lastKnownLocation(context);
+
+        // moved
+        Location moved = location(46d, -75d);
+        when(LocationUtils.lastKnownLocation(context)).thenReturn(moved);
+        when(LocationUtils.getNearestCityDirectionFormattedString(context, moved)).thenReturn("3 mi S Pembroke");
+        assertEquals("3 mi S Pembroke", cache.getPlace(context).locationStr);
+    }
+
+    @Test
+    public void shouldCacheCityOfLocationUtils() {
+
+        // given
+        // no city index installed, GPS noise of a few meters
+        Location first = location(45.50001, -75.60002);
+        Location second = location(45.50003, -75.59998);
+        when(LocationUtils.getNearestCityDirectionFormattedString(any(Context.class), any(Location.class))).thenReturn("5 mi N Ottawa");
+        NearestCityCache cities = NearestCityCache.getInstance();
+
+        // when
+        String firstCity = cities.format(context, first);
+        String secondCity = cities.format(context, second);
+
+        // then
+        assertEquals("5 mi N Ottawa", firstCity);
+        assertSame(firstCity, secondCity);
+        PowerMockito.verifyStatic(times(1));
+        LocationUtils.getNearestCityDirectionFormattedString(any(Context.class), any(Location.class));
+    }
+
+    @Test
+    public void shouldFormatIndexCityLikeLocationUtils() {
+
+        // given
+        // strings of LocationUtils for the same locations
+        Location north = location(45.4939, -75.6972);
+        Location south = location(45.7833, -77.1107);
+        when(LocationUtils.getNearestCityDirectionFormattedString(context, north)).thenReturn("5 mi N Ottawa");
+        when(LocationUtils.getNearestCityDirectionFormattedString(context, south)).thenReturn("3 mi S Pembroke");
+        NearestCityCache cities = NearestCityCache.getInstance();
+        String northUtils = cities.format(context, north);
+        String southUtils = cities.format(context, south);
+
+        // when
+        cities.install(CitySpatialIndex.of(
+                new float[]{45.4215f, 45.8267f},
+                new float[]{-75.6972f, -77.1107f},
+                new String[]{"Ottawa", "Pembroke"}));
+        String northIndex = cities.format(context, north);
+        String southIndex = cities.format(context, south);
+
+        // then
+        assertEquals(northUtils, northIndex);
+        assertEquals(southUtils, southIndex);
+    }
+
+    private static Location location(double lat, double lon) {
+        Location location = mock(Location.class);
+        when(location.getLatitude()).thenReturn(lat);
+        when(location.getLongitude()).thenReturn(lon);
+        return location;
+    }
+}
@@ -0,0 +1,405 @@
+package ca.truxtrax.logbook;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * Append-only journal of merges, written through a memory-mapped file.
+ * <p>
+ * A merge writes a BEGIN record with its requests and diff before the Realm transaction and a
+ * COMMIT record after it, or ABORT if the transaction failed. A BEGIN without an end means the
+ * app was killed around the transaction, {@link MergeJournalReplay} replays only those merges
+ * on start instead of resyncing the whole log. The push of a committed merge is kept by
+ * {@link MergeOutbox}, the journal doesn't track it.
+ * <p>
+ * Record: length, CRC32 of the payload, payload. The length is written last, so a record cut by
+ * a crash is never read, and a record with a wrong checksum ends the log. The file is forced once
+ * per {@link #FORCE_RECORDS} records or {@link #FORCE_INTERVAL_MILLIS}, a killed process loses
+ * nothing, a power loss at most the last group. When the file is full, open merges are copied
+ * to a new file which replaces the old one.
+ */
+public final class MergeJournal {
+
+    public static final long NO_SEQ = -1;
+
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    static final int FORCE_RECORDS = 32;
+    static final long FORCE_INTERVAL_MILLIS = 50;
+
+    static final byte BEGIN = 1;
+    static final byte COMMIT = 2;
+    static final byte ABORT = 3;
+
+    // length + crc
+    private static final int HEADER = 8;
+    private static final int TERMINATOR = 4;
+
+    private static volatile MergeJournal installed;
+
+    private final File file;
+    private final CRC32 crc = new CRC32();
+    private final EldEventCodec.Output output = new EldEventCodec.Output(1024);
+    private final Stats stats = new Stats();
+
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer map;
+    private int capacity;
+    private int position;
+    private long nextSeq;
+
+    // payloads of BEGIN records without an end, in seq order
+    private final Map<Long, byte[]> open = new LinkedHashMap<>();
+
+    private int unforced;
+    private long lastForce;
+
+    private MergeJournal(File file) {
+        this.file = file;
+    }
+
+    public static MergeJournal open(File file) throws IOException {
+        return open(file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity size of a new file, an existing file keeps its size
+     */
+    public static MergeJournal open(File file, int capacity) throws IOException {
+        MergeJournal journal = new MergeJournal(file);
+        int existing = file.exists() ? (int) file.length() : 0;
+        journal.map(Math.max(existing, capacity));
+        journal.scan();
+        return journal;
+    }
+
+    /**
+     * journal used by {@link LogbookMergeUtils}, merges aren't journaled until one is installed
+     */
+    public static void install(MergeJournal journal) {
+        installed = journal;
+    }
+
+    static MergeJournal get() {
+        return installed;
+    }
+
+    /**
+     * @param diff detached merge result
+     * @return seq for {@link #commit} or {@link #abort}
+     */
+    public synchronized long begin(long user, List<MergeRequest> requests, List<EventMergeWrapper> diff) throws IOException {
+        long seq = nextSeq++;
+        output.clear();
+        output.buffer(21).put(BEGIN).putLong(seq).putLong(user).putInt(requests.size());
+        for (MergeRequest it : requests) {
+            EldEventCodec.write(output, it.mergeEvent);
+            output.buffer(16).putLong(it.rightDate).putLong(it.theTime);
+            output.string(it.annotation);
+        }
+        output.buffer(4).putInt(diff.size());
+        for (EventMergeWrapper it : diff) {
+            output.buffer(1).put((byte) it.mergeResult);
+            EldEventCodec.writeLogEvent(output, it.event);
+        }
+
+        byte[] payload = new byte[output.size()];
+        System.arraycopy(output.array(), 0, payload, 0, payload.length);
+        append(payload, payload.length);
+        open.put(seq, payload);
+        return seq;
+    }
+
+    /**
+     * the merge transaction was committed
+     */
+    public synchronized void commit(long seq) throws IOException {
+        end(COMMIT, seq);
+    }
+
+    /**
+     * the merge transaction failed, nothing to replay
+     */
+    public synchronized void abort(long seq) throws IOException {
+        end(ABORT, seq);
+    }
+
+    /**
+     * merges with a BEGIN and without an end, in journal order,
+     * records which can't be decoded are counted as damaged and skipped
+     */
+    public synchronized List<Entry> incomplete() {
+        List<Entry> result = new ArrayList<>(open.size());
+        for (byte[] payload : open.values()) {
+            try {
+                result.add(Entry.decode(payload));
+            } catch (IllegalStateException e) {
+                stats.damaged.incrementAndGet();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * forces the records written so far to the disk
+     */
+    public synchronized void flush() {
+        force();
+    }
+
+    public synchronized void close() throws IOException {
+        force();
+        randomAccessFile.close();
+        if (installed == this) {
+            installed = null;
+        }
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+
+    private void end(byte type, long seq) throws IOException {
+        if (seq == NO_SEQ || open.remove(seq) == null) {
+            return;
+        }
+        output.clear();
+        output.buffer(9).put(type).putLong(seq);
+        append(output.array(), output.size());
+    }
+
+    private void append(byte[] payload, int length) throws IOException {
+        if (position + HEADER + length + TERMINATOR > capacity) {
+            compact(HEADER + length + TERMINATOR);
+        }
+
+        crc.reset();
+        crc.update(payload, 0, length);
+
+        // terminator and body first, the length makes the record visible
+        map.putInt(position + HEADER + length, 0);
+        map.position(position + HEADER);
+        map.put(payload, 0, length);
+        map.putInt(position + 4, (int) crc.getValue());
+        map.putInt(position, length);
+        position += HEADER + length;
+        stats.appended.incrementAndGet();
+
+        unforced++;
+        long now = System.nanoTime();
+        if (unforced >= FORCE_RECORDS || now - lastForce >= TimeUnit.MILLISECONDS.toNanos(FORCE_INTERVAL_MILLIS)) {
+            force();
+        }
+    }
+
+    private void force() {
+        if (unforced == 0) {
+            return;
+        }
+        map.force();
+        unforced = 0;
+        lastForce = System.nanoTime();
+        stats.forced.incrementAndGet();
+    }
+
+    private void map(int capacity) throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(capacity);
+        map = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        this.capacity = capacity;
+    }
+
+    /**
+     * reads records up to the end of the log, a cut or damaged record ends it
+     */
+    private void scan() {
+        position = 0;
+        long maxSeq = NO_SEQ;
+        while (position + HEADER + TERMINATOR <= capacity) {
+            int length = map.getInt(position);
+            if (length <= 0 || length > capacity - position - HEADER - TERMINATOR) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            map.position(position + HEADER);
+            map.get(payload);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != map.getInt(position + 4)) {
+                stats.damaged.incrementAndGet();
+                break;
+            }
+
+            ByteBuffer in = ByteBuffer.wrap(payload);
+            byte type = in.get();
+            long seq = in.getLong();
+            if (type == BEGIN) {
+                open.put(seq, payload);
+            } else {
+                open.remove(seq);
+            }
+            maxSeq = Math.max(maxSeq, seq);
+            position += HEADER + length;
+        }
+        nextSeq = maxSeq + 1;
+        // drop whatever follows the log
+        map.putInt(position, 0);
+    }
+
+    /**
+     * copies open merges to a new file, which replaces the journal
+     */
+    private void compact(int needed) throws IOException {
+        force();
+
+        int openBytes = 0;
+        for (byte[] payload : open.values()) {
+            openBytes += HEADER + payload.length;
+        }
+        int newCapacity = capacity;
+        while (openBytes + needed > newCapacity / 2) {
+            newCapacity *= 2;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        MergeJournal copy = new MergeJournal(tmp);
+        copy.map(newCapacity);
+        copy.nextSeq = nextSeq;
+        copy.lastForce = System.nanoTime();
+        for (Map.Entry<Long, byte[]> it : open.entrySet()) {
+            copy.append(it.getValue(), it.getValue().length);
+        }
+        copy.map.putInt(copy.position, 0);
+        copy.force();
+        copy.randomAccessFile.close();
+
+        randomAccessFile.close();
+        if (!tmp.renameTo(file)) {
+            throw new IOException("can't replace " + file);
+        }
+        map(newCapacity);
+        position = copy.position;
+        unforced = 0;
+        stats.compacted.incrementAndGet();
+    }
+
+    /**
+     * merge of a BEGIN record
+     */
+    public static final class Entry {
+        public final long seq;
+        public final long user;
+        public final List<MergeRequest> requests;
+        public final List<DiffItem> diff;
+
+        Entry(long seq, long user, List<MergeRequest> requests, List<DiffItem> diff) {
+            this.seq = seq;
+            this.user = user;
+            this.requests = requests;
+            this.diff = diff;
+        }
+
+        static Entry decode(byte[] payload) {
+            try {
+                ByteBuffer in = ByteBuffer.wrap(payload);
+                in.get();
+                long seq = in.getLong();
+                long user = in.getLong();
+
+                int requestCount = in.getInt();
+                List<MergeRequest> requests = new ArrayList<>(requestCount);
+                for (int i = 0; i < requestCount; i++) {
+                    EldEvent mergeEvent = EldEventCodec.read(in);
+                    long rightDate = in.getLong();
+                    long theTime = in.getLong();
+                    requests.add(new MergeRequest(mergeEvent, rightDate, theTime, EldEventCodec.readString(in)));
+                }
+
+                int diffCount = in.getInt();
+                List<DiffItem> diff = new ArrayList<>(diffCount);
+                for (int i = 0; i < diffCount; i++) {
+                    int mergeResult = in.get();
+                    diff.add(new DiffItem(mergeResult, EldEventCodec.readLogEvent(in)));
+                }
+                return new Entry(seq, user, Collections.unmodifiableList(requests), Collections.unmodifiableList(diff));
+            } catch (BufferUnderflowException e) {
+                // checksum was right, the record was written by another version
+                throw new IllegalStateException("not valid journal record", e);
+            }
+        }
+    }
+
+    /**
+     * one line of the merge result, enough to tell if it was saved
+     */
+    public static final class DiffItem {
+        public final int mergeResult;
+        public final String id;
+        public final long datetime;
+        public final int logbookStatus;
+        public final Integer duration;
+        public final Double milesAccumulated;
+        public final Float hoursAccumulated;
+        /**
+         * the event as the merge wrote it, fields {@link EldEventCodec#writeLogEvent} keeps
+         */
+        public final EldEvent event;
+
+        DiffItem(int mergeResult, EldEvent event) {
+            this.mergeResult = mergeResult;
+            this.event = event;
+            this.id = event.getId();
+            this.datetime = event.getDatetime();
+            this.logbookStatus = event.getLogbookStatus();
+            this.duration = event.getDuration();
+            this.milesAccumulated = event.getMilesAccumulated();
+            this.hoursAccumulated = event.getHoursAccumulated();
+        }
+    }
+
+    public static final class Stats {
+        private final AtomicLong appended = new AtomicLong();
+        private final AtomicLong forced = new AtomicLong();
+        private final AtomicLong compacted = new AtomicLong();
+        private final AtomicLong damaged = new AtomicLong();
+
+        public long getAppended() {
+            return appended.get();
+        }
+
+        /**
+         * disk syncs, one per group of records
+         */
+        public long getForced() {
+            return forced.get();
+        }
+
+        public long getCompacted() {
+            return compacted.get();
+        }
+
+        /**
+         * records with a wrong checksum found on open
+         */
+        public long getDamaged() {
+            return damaged.get();
+        }
+    }
+}
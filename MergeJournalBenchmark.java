@@ -0,0 +1,104 @@
+package ca.truxtrax.logbook;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * Journal on start and on every merge: reading the journal and decoding the merges to replay,
+ * appending BEGIN and COMMIT of one merge. Realm is not part of it, see {@link MergeApplyBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MergeJournalBenchmark {
+
+    @Param({"1000", "10000"})
+    public int merges;
+
+    /**
+     * merges the app was killed in, out of 1000
+     */
+    @Param({"1", "100"})
+    public int incompletePerMille;
+
+    private File replayFile;
+    private File appendFile;
+    private MergeJournal appendJournal;
+    private List<MergeRequest> requests;
+    private List<EventMergeWrapper> diff;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        List<EldEvent> history = MergeBenchmarkData.history(2000, 4, 0.3, 1);
+        long left = MergeBenchmarkData.middle(history);
+        long rightDate = left + TimeUnit.HOURS.toMillis(2);
+        long theTime = rightDate + TimeUnit.HOURS.toMillis(1);
+        EldEvent candidate = MergeBenchmarkData.candidate(EldEvent.STATUS_ON_DUTY, left);
+        requests = Collections.singletonList(new MergeRequest(candidate, rightDate, theTime, "Fixed by driver"));
+        diff = MergeTimelineStore.detach(LogbookMergeUtils.mergeEvents(history, candidate, rightDate, theTime));
+
+        replayFile = File.createTempFile("merge-replay", ".journal");
+        MergeJournal journal = MergeJournal.open(replayFile);
+        for (int i = 0; i < merges; i++) {
+            long seq = journal.begin(MergeBenchmarkData.USER, requests, diff);
+            if (i % 1000 >= incompletePerMille) {
+                journal.commit(seq);
+            }
+        }
+        journal.close();
+
+        appendFile = File.createTempFile("merge-append", ".journal");
+        appendJournal = MergeJournal.open(appendFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        appendJournal.close();
+        replayFile.delete();
+        appendFile.delete();
+    }
+
+    /**
+     * open on start, throughput is journals per second
+     */
+    @Benchmark
+    public List<MergeJournal.Entry> replayScan() throws IOException {
+        MergeJournal journal = MergeJournal.open(replayFile);
+        try {
+            return journal.incomplete();
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Benchmark
+    public long appendMerge() throws IOException {
+        long seq = appendJournal.begin(MergeBenchmarkData.USER, requests, diff);
+        appendJournal.commit(seq);
+        return seq;
+    }
+}
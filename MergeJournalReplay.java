@@ -0,0 +1,135 @@
+package ca.truxtrax.logbook;
+
+import com.crashlytics.android.Crashlytics;
+import com.truxtrax.utils.DatabaseUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.truxtrax.database.realm_dao.eld.EldDutyEventsDao;
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import io.realm.Realm;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * Finishes the merges the app was killed in, run by {@link MergeStartup} before the first merge.
+ * <p>
+ * A merge whose diff is in Realm was committed, only its COMMIT record is missing.
+ * Otherwise the transaction was rolled back and the log is as it was before the merge,
+ * so the requests are merged again. A reject of driving is journaled without requests,
+ * the event of its REJECTED item is rejected again. The merge enqueues its own push.
+ */
+public final class MergeJournalReplay {
+
+    private MergeJournalReplay() {
+    }
+
+    /**
+     * @return number of merges which were run again
+     */
+    public static int replay(MergeJournal journal) {
+        List<MergeJournal.Entry> entries = journal.incomplete();
+        if (entries.isEmpty()) {
+            return 0;
+        }
+
+        int replayed = 0;
+        Realm realm = Realm.getDefaultInstance();
+        try {
+            for (MergeJournal.Entry entry : entries) {
+                try {
+                    if (isApplied(realm, entry)) {
+                        journal.commit(entry.seq);
+                        continue;
+                    }
+
+                    List<EldEvent> events = new EldDutyEventsDao(realm).selectForDriverId(entry.user);
+                    MergeOutcome outcome;
+                    if (entry.requests.isEmpty()) {
+                        outcome = rejectAgain(realm, entry, events);
+                    } else if (entry.requests.size() == 1) {
+                        MergeRequest it = entry.requests.get(0);
+                        outcome = LogbookMergeUtils.mergeWithOutcome(realm, entry.user, events,
+                                it.mergeEvent, it.rightDate, it.theTime, it.annotation);
+                    } else {
+                        outcome = LogbookMergeUtils.mergeBatchWithOutcome(realm, entry.user, events, entry.requests);
+                    }
+
+                    // the new merge has its own journal record
+                    if (outcome.isOk()) {
+                        journal.commit(entry.seq);
+                        replayed++;
+                    } else {
+                        journal.abort(entry.seq);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    Crashlytics.logException(e);
+                }
+            }
+        } finally {
+            DatabaseUtils.closeQuietly(realm);
+        }
+        return replayed;
+    }
+
+    private static MergeOutcome rejectAgain(Realm realm, MergeJournal.Entry entry, List<EldEvent> events) {
+        for (MergeJournal.DiffItem it : entry.diff) {
+            if (it.mergeResult == EventMergeWrapper.MERGE_RESULT_REJECTED) {
+                EldEvent saved = realm.where(EldEvent.class).equalTo("id", it.id).findFirst();
+                return LogbookMergeUtils.rejectEventWithOutcome(realm, entry.user, events, saved);
+            }
+        }
+        return MergeOutcome.rejected(MergeOutcome.Reason.NO_EVENT);
+    }
+
+    /**
+     * the last change of every event of the diff is in Realm
+     */
+    static boolean isApplied(Realm realm, MergeJournal.Entry entry) {
+        Map<String, MergeJournal.DiffItem> last = new LinkedHashMap<>();
+        for (MergeJournal.DiffItem it : entry.diff) {
+            last.put(it.id, it);
+        }
+
+        for (MergeJournal.DiffItem it : last.values()) {
+            EldEvent saved = realm.where(EldEvent.class).equalTo("id", it.id).findFirst();
+            switch (it.mergeResult) {
+                case EventMergeWrapper.MERGE_RESULT_REMOVED:
+                    if (saved != null) {
+                        return false;
+                    }
+                    break;
+                case EventMergeWrapper.MERGE_RESULT_NEW:
+                case EventMergeWrapper.MERGE_RESULT_EDITED:
+                case EventMergeWrapper.MERGE_RESULT_CLOSE_DRIVE:
+                case EventMergeWrapper.MERGE_RESULT_REJECTED:
+                    if (!isSaved(it, saved)) {
+                        return false;
+                    }
+                    break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Every field the merge writes is compared, an edit may change only the location or
+     * the readings, closing driving only the duration and the accumulated values.
+     */
+    static boolean isSaved(MergeJournal.DiffItem it, EldEvent saved) {
+        if (saved == null) {
+            return false;
+        }
+        EldEventCodec.Output out = new EldEventCodec.Output(256);
+        EldEventCodec.writeLogEvent(out, it.event);
+        byte[] written = Arrays.copyOf(out.array(), out.size());
+        out.clear();
+        EldEventCodec.writeLogEvent(out, saved);
+        return out.size() == written.length && Arrays.equals(written, Arrays.copyOf(out.array(), out.size()));
+    }
+}
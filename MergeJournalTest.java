@@ -0,0 +1,325 @@
+package ca.truxtrax.test.activiries.logbook;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.reflect.internal.WhiteboxImpl;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import ca.truxtrax.logbook.LogbookMergeUtils;
+import ca.truxtrax.logbook.MergeJournal;
+import ca.truxtrax.logbook.MergeJournalReplay;
+import ca.truxtrax.logbook.MergeRequest;
+import utils.BaseRealmRunner;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static utils.Utils.generateEvent;
+
+/**
+ * Crash injection for the merge journal: the file is reopened after records were cut or damaged.
+ */
+@PrepareForTest({LogbookMergeUtils.class, EventMergeWrapper.class})
+public class MergeJournalTest extends BaseRealmRunner {
+
+    private static final long USER = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private MergeJournal journal;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "merge.journal");
+        journal = MergeJournal.open(file, 4096);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        journal.close();
+    }
+
+    @Test
+    public void shouldKeepOnlyIncompleteMerges() throws Exception {
+
+        // given
+        long committed = begin(0, "committed");
+        journal.commit(committed);
+        long killed = begin(30, "killed");
+        long aborted = begin(60, null);
+        journal.abort(aborted);
+
+        // when
+        // app killed, journal opened on the next start
+        reopen();
+        List<MergeJournal.Entry> incomplete = journal.incomplete();
+
+        // then
+        assertEquals(1, incomplete.size());
+        MergeJournal.Entry entry = incomplete.get(0);
+        assertEquals(killed, entry.seq);
+        assertEquals(USER, entry.user);
+
+        MergeRequest request = entry.requests.get(0);
+        assertEquals(minutes(30), request.mergeEvent.getDatetime());
+        assertEquals(EldEvent.STATUS_ON_DUTY, request.mergeEvent.getLogbookStatus());
+        assertEquals("Location", request.mergeEvent.getLocation());
+        assertEquals(minutes(40), request.rightDate);
+        assertEquals(minutes(50), request.theTime);
+        assertEquals("killed", request.annotation);
+
+        assertEquals(2, entry.diff.size());
+        assertEquals(EventMergeWrapper.MERGE_RESULT_NEW, entry.diff.get(0).mergeResult);
+        assertEquals(request.mergeEvent.getId(), entry.diff.get(0).id);
+        assertEquals(EventMergeWrapper.MERGE_RESULT_REMOVED, entry.diff.get(1).mergeResult);
+
+        // seq goes on after the last record
+        assertTrue(begin(90, null) > aborted);
+    }
+
+    @Test
+    public void shouldStopAtDamagedRecord() throws Exception {
+
+        // given
+        long first = begin(0, null);
+        int firstLength = lengthAt(0);
+        begin(30, null);
+
+        // when
+        // power loss, the second record was forced half way
+        flipByte(8 + firstLength + 8 + 3);
+        reopen();
+
+        // then
+        assertEquals(1, journal.incomplete().size());
+        assertEquals(first, journal.incomplete().get(0).seq);
+        assertEquals(1, journal.getStats().getDamaged());
+
+        // the damaged record is overwritten
+        long third = begin(60, null);
+        reopen();
+        assertEquals(2, journal.incomplete().size());
+        assertEquals(third, journal.incomplete().get(1).seq);
+        assertEquals(0, journal.getStats().getDamaged());
+    }
+
+    @Test
+    public void shouldIgnoreRecordWithoutLength() throws Exception {
+
+        // given
+        long first = begin(0, null);
+        int end = 8 + lengthAt(0);
+
+        // when
+        // killed before the length of the next record was written
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        try {
+            raw.seek(end + 4);
+            raw.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        } finally {
+            raw.close();
+        }
+        reopen();
+
+        // then
+        assertEquals(1, journal.incomplete().size());
+        assertEquals(first, journal.incomplete().get(0).seq);
+        assertEquals(0, journal.getStats().getDamaged());
+    }
+
+    @Test
+    public void shouldCompactWhenFull() throws Exception {
+
+        // given
+        long open = begin(0, "open");
+
+        // when
+        for (int i = 0; i < 200; i++) {
+            journal.commit(begin(30, "committed"));
+        }
+        reopen();
+
+        // then
+        // only the open merge is left, the file has not grown
+        assertEquals(1, journal.incomplete().size());
+        assertEquals(open, journal.incomplete().get(0).seq);
+        assertEquals(4096, file.length());
+    }
+
+    @Test
+    public void shouldGroupForces() throws Exception {
+
+        // when
+        for (int i = 0; i < 100; i++) {
+            begin(0, null);
+        }
+
+        // then
+        assertEquals(100, journal.getStats().getAppended());
+        assertTrue(journal.getStats().getForced() < journal.getStats().getAppended());
+    }
+
+    @Test
+    public void shouldDecodeNullFields() throws Exception {
+
+        // given
+        EldEvent candidate = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0);
+        candidate.setLocation(null);
+        candidate.setEld(null);
+        journal.begin(USER, Collections.singletonList(new MergeRequest(candidate, minutes(10), minutes(20))),
+                new ArrayList<EventMergeWrapper>());
+
+        // when
+        reopen();
+        EldEvent decoded = journal.incomplete().get(0).requests.get(0).mergeEvent;
+
+        // then
+        assertNull(decoded.getLocation());
+        assertNull(decoded.getEld());
+        assertNull(journal.incomplete().get(0).requests.get(0).annotation);
+        assertEquals(candidate.getId(), decoded.getId());
+        assertEquals(candidate.getMiles(), decoded.getMiles());
+    }
+
+    @Test
+    public void shouldTellClosedDrivingFromSaved() throws Exception {
+
+        // given
+        // driving [0] closed after 10 minutes, datetime and status stay the same
+        EldEvent candidate = generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_AUTO, 0);
+        EldEvent closed = candidate.copy();
+        closed.setDuration(10);
+        closed.setMilesAccumulated(8D);
+        closed.setHoursAccumulated(0.2f);
+        journal.begin(USER, Collections.singletonList(new MergeRequest(candidate, minutes(10), minutes(10))),
+                Collections.singletonList(new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_CLOSE_DRIVE, closed)));
+
+        // when
+        reopen();
+        MergeJournal.DiffItem item = journal.incomplete().get(0).diff.get(0);
+
+        // then
+        // still open in Realm
+        assertFalse(isSaved(item, candidate));
+        assertTrue(isSaved(item, closed.copy()));
+        EldEvent otherMiles = closed.copy();
+        otherMiles.setMilesAccumulated(9D);
+        assertFalse(isSaved(item, otherMiles));
+    }
+
+    @Test
+    public void shouldTellEditedLocationFromSaved() throws Exception {
+
+        // given
+        // on duty [0] edited, only the location and the readings change
+        EldEvent saved = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 0);
+        saved.setLocation("Location1");
+        EldEvent edited = saved.copy();
+        edited.setLocation("Location2");
+        edited.setMiles(120D);
+        journal.begin(USER, Collections.singletonList(new MergeRequest(edited, minutes(10), minutes(10))),
+                Collections.singletonList(new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_EDITED, edited)));
+
+        // when
+        reopen();
+        MergeJournal.DiffItem item = journal.incomplete().get(0).diff.get(0);
+
+        // then
+        // the edit was lost with the transaction
+        assertFalse(isSaved(item, saved));
+        assertTrue(isSaved(item, edited.copy()));
+        EldEvent otherMiles = edited.copy();
+        otherMiles.setMiles(121D);
+        assertFalse(isSaved(item, otherMiles));
+    }
+
+    @Test
+    public void shouldKeepRejectWithoutRequests() throws Exception {
+
+        // given
+        // driving rejected, it leaves the driver's log
+        EldEvent rejected = generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_AUTO, 0);
+        rejected.setDuration(10);
+        rejected.setUser(null);
+        rejected.setOrigin(EldEvent.ORIGIN_UNIDENTIFIED);
+        journal.begin(USER, Collections.<MergeRequest>emptyList(),
+                Collections.singletonList(new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_REJECTED, rejected)));
+
+        // when
+        reopen();
+        MergeJournal.Entry entry = journal.incomplete().get(0);
+
+        // then
+        assertTrue(entry.requests.isEmpty());
+        MergeJournal.DiffItem item = entry.diff.get(0);
+        assertEquals(EventMergeWrapper.MERGE_RESULT_REJECTED, item.mergeResult);
+        EldEvent driverStill = rejected.copy();
+        driverStill.setUser(USER);
+        driverStill.setOrigin(EldEvent.ORIGIN_AUTO);
+        assertFalse(isSaved(item, driverStill));
+        assertTrue(isSaved(item, rejected.copy()));
+    }
+
+    private static boolean isSaved(MergeJournal.DiffItem item, EldEvent saved) throws Exception {
+        return WhiteboxImpl.invokeMethod(MergeJournalReplay.class, "isSaved", item, saved);
+    }
+
+    private long begin(int minute, String annotation) throws Exception {
+        EldEvent candidate = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, minute);
+        candidate.setLocation("Location");
+        EldEvent removed = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, minute + 5);
+        List<EventMergeWrapper> diff = Arrays.asList(
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_NEW, candidate),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_REMOVED, removed));
+        return journal.begin(USER,
+                Collections.singletonList(new MergeRequest(candidate, minutes(minute + 10), minutes(minute + 20), annotation)),
+                diff);
+    }
+
+    private void reopen() throws Exception {
+        journal.close();
+        journal = MergeJournal.open(file, 4096);
+    }
+
+    private int lengthAt(int position) throws Exception {
+        RandomAccessFile raw = new RandomAccessFile(file, "r");
+        try {
+            raw.seek(position);
+            return raw.readInt();
+        } finally {
+            raw.close();
+        }
+    }
+
+    private void flipByte(int position) throws Exception {
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        try {
+            raw.seek(position);
+            int value = raw.read();
+            raw.seek(position);
+            raw.write(value ^ 0xFF);
+        } finally {
+            raw.close();
+        }
+    }
+
+    private static long minutes(int minutes) {
+        return TimeUnit.MINUTES.toMillis(minutes);
+    }
+}
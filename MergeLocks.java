@@ -0,0 +1,64 @@
+package ca.truxtrax.logbook;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Per-driver lock registry for the logbook merge.
+ * <p>
+ * Merges of different drivers never touch the same events, so they must not wait
+ * for each other. Merges of the same driver are serialized. A lock lives in the
+ * registry only while someone holds or waits for it, so the registry size is
+ * bounded by the number of drivers merging at the same moment.
+ */
+public final class MergeLocks {
+
+    private final Map<Long, Entry> locks = new HashMap<>();
+
+    public void lock(long user) {
+        Entry entry;
+        synchronized (locks) {
+            entry = locks.get(user);
+            if (entry == null) {
+                entry = new Entry();
+                locks.put(user, entry);
+            }
+            entry.refs++;
+        }
+        // wait outside of the registry monitor
+        entry.lock.lock();
+    }
+
+    public void unlock(long user) {
+        synchronized (locks) {
+            Entry entry = locks.get(user);
+            if (entry == null) {
+                throw new IllegalStateException("lock is not held, user==" + user);
+            }
+            entry.lock.unlock();
+            if (--entry.refs == 0) {
+                // cleanup, nobody holds or waits
+                locks.remove(user);
+            }
+        }
+    }
+
+    public boolean isHeldByCurrentThread(long user) {
+        synchronized (locks) {
+            Entry entry = locks.get(user);
+            return entry != null && entry.lock.isHeldByCurrentThread();
+        }
+    }
+
+    public int size() {
+        synchronized (locks) {
+            return locks.size();
+        }
+    }
+
+    private static final class Entry {
+        final ReentrantLock lock = new ReentrantLock();
+        int refs;
+    }
+}
@@ -0,0 +1,139 @@
+package ca.truxtrax.test.activiries.logbook;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.truxtrax.logbook.MergeLocks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Concurrency harness for the per-driver merge locks.
+ */
+public class MergeLocksTest {
+
+    private static final long WAIT_SECONDS = 5;
+
+    @Test
+    public void shouldMergeDifferentDriversInParallel() throws Exception {
+
+        // given
+        final MergeLocks locks = new MergeLocks();
+        final CountDownLatch bothInside = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        Thread driver1 = new Thread(new LockedTask(locks, 1, bothInside, release, null, null));
+        Thread driver2 = new Thread(new LockedTask(locks, 2, bothInside, release, null, null));
+
+        // when
+        driver1.start();
+        driver2.start();
+
+        // then
+        // both drivers hold their locks at the same time
+        assertTrue(bothInside.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2, locks.size());
+
+        release.countDown();
+        driver1.join();
+        driver2.join();
+        assertEquals(0, locks.size());
+    }
+
+    @Test
+    public void shouldSerializeSameDriver() throws Exception {
+
+        // given
+        final MergeLocks locks = new MergeLocks();
+        final CountDownLatch firstInside = new CountDownLatch(1);
+        final CountDownLatch secondInside = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger concurrent = new AtomicInteger();
+        final AtomicInteger maxConcurrent = new AtomicInteger();
+
+        Thread merge1 = new Thread(new LockedTask(locks, 1, firstInside, release, concurrent, maxConcurrent));
+        Thread merge2 = new Thread(new LockedTask(locks, 1, secondInside, new CountDownLatch(0), concurrent, maxConcurrent));
+
+        // when
+        merge1.start();
+        assertTrue(firstInside.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        merge2.start();
+
+        // then
+        // second merge of the same driver waits for the first one
+        assertFalse(secondInside.await(200, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertTrue(secondInside.await(WAIT_SECONDS, TimeUnit.SECONDS));
+        merge1.join();
+        merge2.join();
+
+        assertEquals(1, maxConcurrent.get());
+        assertEquals(0, locks.size());
+    }
+
+    @Test
+    public void shouldBeReentrant() {
+
+        // given
+        MergeLocks locks = new MergeLocks();
+
+        // when, mergeLastEvent locks and calls merge, which locks again
+        locks.lock(1);
+        locks.lock(1);
+
+        // then
+        assertTrue(locks.isHeldByCurrentThread(1));
+        locks.unlock(1);
+        assertTrue(locks.isHeldByCurrentThread(1));
+        locks.unlock(1);
+        assertFalse(locks.isHeldByCurrentThread(1));
+        assertEquals(0, locks.size());
+    }
+
+    private static class LockedTask implements Runnable {
+        private final MergeLocks locks;
+        private final long user;
+        private final CountDownLatch inside;
+        private final CountDownLatch release;
+        private final AtomicInteger concurrent;
+        private final AtomicInteger maxConcurrent;
+
+        LockedTask(MergeLocks locks, long user, CountDownLatch inside, CountDownLatch release,
+                   AtomicInteger concurrent, AtomicInteger maxConcurrent) {
+            this.locks = locks;
+            this.user = user;
+            this.inside = inside;
+            this.release = release;
+            this.concurrent = concurrent;
+            this.maxConcurrent = maxConcurrent;
+        }
+
+        @Override
+        public void run() {
+            locks.lock(user);
+            try {
+                if (concurrent != null) {
+                    int now = concurrent.incrementAndGet();
+                    if (now > maxConcurrent.get()) {
+                        maxConcurrent.set(now);
+                    }
+                }
+                inside.countDown();
+                release.await(WAIT_SECONDS, TimeUnit.SECONDS);
+                if (concurrent != null) {
+                    concurrent.decrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                locks.unlock(user);
+            }
+        }
+    }
+}
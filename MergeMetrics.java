@@ -0,0 +1,270 @@
+package ca.truxtrax.logbook;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * Timings and sizes of the merge pipeline.
+ * <p>
+ * The merge reports to one process wide {@link Registry}, the default one ignores everything
+ * and the merge doesn't even read the clock then. Install a {@link HistogramRegistry}
+ * in debug builds or while profiling. Phases nest, {@link Phase#EXECUTE} includes
+ * {@link Phase#COMBINE_EQUALS} and {@link Phase#TRANSACTION} includes the db apply.
+ */
+public final class MergeMetrics {
+
+    public enum Phase {
+        /**
+         * waiting for the driver's merge lock
+         */
+        LOCK_WAIT,
+        VALIDATION,
+        CHECK_NEED_TO_MERGE,
+        EXECUTE,
+        COMBINE_EQUALS,
+        TRANSACTION,
+        /**
+         * re-reading the events a merge overwrites, inside its transaction
+         */
+        CONFLICT_CHECK,
+        DB_APPLY,
+        OUTBOX_ENQUEUE,
+        ANNOTATION,
+        CERTIFICATION,
+        /**
+         * one outbox batch sent to the server
+         */
+        SERVER_PUSH
+    }
+
+    public interface Registry {
+
+        void recordTime(Phase phase, long nanos);
+
+        /**
+         * events of the driver passed to a merge
+         */
+        void recordInputSize(int events);
+
+        /**
+         * @param mergeResult one of EventMergeWrapper.MERGE_RESULT_*
+         */
+        void recordResults(int mergeResult, int count);
+    }
+
+    public static final Registry NOOP = new Registry() {
+        @Override
+        public void recordTime(Phase phase, long nanos) {
+        }
+
+        @Override
+        public void recordInputSize(int events) {
+        }
+
+        @Override
+        public void recordResults(int mergeResult, int count) {
+        }
+    };
+
+    // MERGE_RESULT_NO_CHANGES .. MERGE_RESULT_REJECTED
+    private static final int RESULT_TYPES = 6;
+
+    private static volatile Registry registry = NOOP;
+
+    private MergeMetrics() {
+    }
+
+    /**
+     * @param registry null restores the no-op default
+     */
+    public static void setRegistry(Registry registry) {
+        MergeMetrics.registry = registry == null ? NOOP : registry;
+    }
+
+    public static Registry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * @return start of a phase for {@link #stop}, 0 if nothing is recorded
+     */
+    static long start() {
+        return registry == NOOP ? 0 : System.nanoTime();
+    }
+
+    static void stop(Phase phase, long start) {
+        if (start != 0) {
+            registry.recordTime(phase, System.nanoTime() - start);
+        }
+    }
+
+    static void inputSize(List<?> events) {
+        Registry registry = MergeMetrics.registry;
+        if (registry != NOOP) {
+            registry.recordInputSize(events == null ? 0 : events.size());
+        }
+    }
+
+    static void results(List<EventMergeWrapper> result) {
+        Registry registry = MergeMetrics.registry;
+        if (registry == NOOP || result == null || result.isEmpty()) {
+            return;
+        }
+        for (int type = 0; type < RESULT_TYPES; type++) {
+            int count = 0;
+            for (int i = 0; i < result.size(); i++) {
+                if (result.get(i).mergeResult == type) {
+                    count++;
+                }
+            }
+            if (count > 0) {
+                registry.recordResults(type, count);
+            }
+        }
+    }
+
+    /**
+     * Registry with a {@link Histogram} per phase, thread safe, recording doesn't allocate.
+     */
+    public static final class HistogramRegistry implements Registry {
+
+        private final Histogram[] phases = new Histogram[Phase.values().length];
+        private final Histogram inputSize = new Histogram();
+        private final AtomicLongArray results = new AtomicLongArray(RESULT_TYPES);
+
+        public HistogramRegistry() {
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new Histogram();
+            }
+        }
+
+        @Override
+        public void recordTime(Phase phase, long nanos) {
+            phases[phase.ordinal()].record(nanos);
+        }
+
+        @Override
+        public void recordInputSize(int events) {
+            inputSize.record(events);
+        }
+
+        @Override
+        public void recordResults(int mergeResult, int count) {
+            if (mergeResult >= 0 && mergeResult < RESULT_TYPES) {
+                results.addAndGet(mergeResult, count);
+            }
+        }
+
+        /**
+         * nanoseconds
+         */
+        public Histogram getTimes(Phase phase) {
+            return phases[phase.ordinal()];
+        }
+
+        public Histogram getInputSizes() {
+            return inputSize;
+        }
+
+        public long getResults(int mergeResult) {
+            return results.get(mergeResult);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("MergeMetrics{");
+            for (Phase phase : Phase.values()) {
+                Histogram it = getTimes(phase);
+                if (it.getCount() > 0) {
+                    sb.append(phase).append("=").append(it).append(", ");
+                }
+            }
+            sb.append("inputSize=").append(inputSize);
+            sb.append(", results=").append(results);
+            return sb.append('}').toString();
+        }
+    }
+
+    /**
+     * Power of two buckets, a percentile is exact up to a factor of two.
+     * Negative values are recorded as 0.
+     */
+    public static final class Histogram {
+
+        private static final int BUCKETS = 64;
+
+        // bucket i holds values of [2^(i-1), 2^i), bucket 0 holds 0
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets.incrementAndGet(bucket(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        static int bucket(long value) {
+            return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSum() {
+            return sum.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long count = getCount();
+            return count == 0 ? 0 : (double) getSum() / count;
+        }
+
+        /**
+         * @param quantile 0..1, e.g. 0.99
+         * @return upper bound of the bucket holding the quantile, never above {@link #getMax()}
+         */
+        public long getPercentile(double quantile) {
+            long count = getCount();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    long upper = i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                    return Math.min(upper, getMax());
+                }
+            }
+            return getMax();
+        }
+
+        @Override
+        public String toString() {
+            return "{count=" + getCount()
+                    + ", mean=" + (long) getMean()
+                    + ", p50=" + getPercentile(0.5)
+                    + ", p99=" + getPercentile(0.99)
+                    + ", max=" + getMax()
+                    + '}';
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package ca.truxtrax.test.activiries.logbook;
+
+import org.junit.After;
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.reflect.internal.WhiteboxImpl;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import ca.truxtrax.logbook.LogbookMergeUtils;
+import ca.truxtrax.logbook.MergeMetrics;
+import ca.truxtrax.logbook.MergeOutcome;
+import ca.truxtrax.logbook.MergePlanner;
+import utils.BaseRealmRunner;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static utils.Utils.generateEvent;
+
+@PrepareForTest({LogbookMergeUtils.class, EventMergeWrapper.class})
+public class MergeMetricsTest extends BaseRealmRunner {
+
+    @After
+    public void tearDown() {
+        MergeMetrics.setRegistry(null);
+    }
+
+    @Test
+    public void shouldRecordHistogram() {
+
+        // given
+        MergeMetrics.Histogram histogram = new MergeMetrics.Histogram();
+
+        // when
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        histogram.record(-5);
+
+        // then
+        assertEquals(101, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(100, histogram.getMax());
+        // buckets are powers of two
+        assertEquals(63, histogram.getPercentile(0.5));
+        assertEquals(100, histogram.getPercentile(0.99));
+        assertEquals(0, histogram.getPercentile(0));
+        assertEquals(0, new MergeMetrics.Histogram().getPercentile(0.99));
+    }
+
+    @Test
+    public void shouldRecordPlanPhases() {
+
+        // given
+        // in [0, ~](off)
+        // candidate [1-2](on)
+        MergeMetrics.HistogramRegistry registry = new MergeMetrics.HistogramRegistry();
+        MergeMetrics.setRegistry(registry);
+        EldEvent off = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0);
+        EldEvent candidate = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 1);
+
+        // when
+        MergePlanner.plan(Arrays.asList(off), candidate, TimeUnit.MINUTES.toMillis(2), TimeUnit.MINUTES.toMillis(3));
+
+        // then
+        assertEquals(1, registry.getTimes(MergeMetrics.Phase.CHECK_NEED_TO_MERGE).getCount());
+        assertEquals(1, registry.getTimes(MergeMetrics.Phase.EXECUTE).getCount());
+        assertEquals(1, registry.getTimes(MergeMetrics.Phase.COMBINE_EQUALS).getCount());
+        // nothing was written
+        assertEquals(0, registry.getTimes(MergeMetrics.Phase.TRANSACTION).getCount());
+        assertTrue(registry.getTimes(MergeMetrics.Phase.EXECUTE).getMax()
+                >= registry.getTimes(MergeMetrics.Phase.COMBINE_EQUALS).getMax());
+    }
+
+    @Test
+    public void shouldRecordRejectedMergeOnce() throws Exception {
+
+        // given
+        // the caller took the driver lock to read the events
+        MergeMetrics.HistogramRegistry registry = new MergeMetrics.HistogramRegistry();
+        MergeMetrics.setRegistry(registry);
+        EldEvent off = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0);
+        EldEvent candidate = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 1);
+        WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "lock", -10L);
+
+        // when
+        MergeOutcome outcome;
+        try {
+            outcome = LogbookMergeUtils.mergeWithOutcome(mockRealm, -10, Arrays.asList(off), candidate,
+                    TimeUnit.MINUTES.toMillis(2), TimeUnit.MINUTES.toMillis(3), null);
+        } finally {
+            WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "unlock", -10L);
+        }
+
+        // then
+        assertEquals(MergeOutcome.Reason.NOT_VALID_USER, outcome.getReason());
+        assertEquals(1, registry.getTimes(MergeMetrics.Phase.LOCK_WAIT).getCount());
+        assertEquals(1, registry.getTimes(MergeMetrics.Phase.VALIDATION).getCount());
+    }
+
+    @Test
+    public void shouldCountResultsByType() {
+
+        // given
+        MergeMetrics.HistogramRegistry registry = new MergeMetrics.HistogramRegistry();
+
+        // when
+        registry.recordResults(EventMergeWrapper.MERGE_RESULT_NEW, 2);
+        registry.recordResults(EventMergeWrapper.MERGE_RESULT_REMOVED, 1);
+        registry.recordResults(EventMergeWrapper.MERGE_RESULT_NEW, 1);
+        registry.recordResults(42, 1);
+
+        // then
+        assertEquals(3, registry.getResults(EventMergeWrapper.MERGE_RESULT_NEW));
+        assertEquals(1, registry.getResults(EventMergeWrapper.MERGE_RESULT_REMOVED));
+        assertEquals(0, registry.getResults(EventMergeWrapper.MERGE_RESULT_EDITED));
+    }
+
+    @Test
+    public void shouldRestoreNoopRegistry() {
+
+        // when
+        MergeMetrics.setRegistry(new MergeMetrics.HistogramRegistry());
+        MergeMetrics.setRegistry(null);
+
+        // then
+        assertSame(MergeMetrics.NOOP, MergeMetrics.getRegistry());
+    }
+}
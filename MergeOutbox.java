@@ -0,0 +1,103 @@
+package ca.truxtrax.logbook;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import ca.truxtrax.database.realm_dao.BaseDAO;
+import ca.truxtrax.database.realm_mapping.eld.EldAnnotation;
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import ca.truxtrax.database.realm_mapping.eld.EldMergeOutboxItem;
+import io.realm.Realm;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * Persistent outbox of merge results.
+ * <p>
+ * Records are written inside the merge transaction, so a committed merge always has
+ * its push recorded. The network is never touched here, see {@link MergeOutboxDispatcher}.
+ */
+public final class MergeOutbox {
+
+    private static final String ID_SEPARATOR = ",";
+
+    private MergeOutbox() {
+    }
+
+    /**
+     * must be called inside a write transaction
+     */
+    public static void enqueueEvents(Realm realm, long user, List<EventMergeWrapper> mergeResult) {
+        List<String> newIds = new ArrayList<>();
+        List<String> updateIds = new ArrayList<>();
+        List<String> removeIds = new ArrayList<>();
+
+        for (EventMergeWrapper it : mergeResult) {
+
+            // should not be sent to server, only for local display
+            if (it.event.getId().startsWith(EldEvent.EVENT_STUB_CLIENT_ID)) {
+                continue;
+            }
+
+            switch (it.mergeResult) {
+                case EventMergeWrapper.MERGE_RESULT_REMOVED:
+                    removeIds.add(it.event.getId());
+                    break;
+                case EventMergeWrapper.MERGE_RESULT_NEW:
+                    newIds.add(it.event.getId());
+                    break;
+                case EventMergeWrapper.MERGE_RESULT_EDITED:
+                case EventMergeWrapper.MERGE_RESULT_REJECTED:
+                    updateIds.add(it.event.getId());
+                    break;
+            }
+        }
+
+        if (newIds.isEmpty() && updateIds.isEmpty() && removeIds.isEmpty()) {
+            return;
+        }
+
+        EldMergeOutboxItem item = new EldMergeOutboxItem(BaseDAO.generateUuid(), user, EldMergeOutboxItem.KIND_EVENTS, System.currentTimeMillis());
+        item.setNewIds(joinIds(newIds));
+        item.setUpdateIds(joinIds(updateIds));
+        item.setRemoveIds(joinIds(removeIds));
+        realm.copyToRealm(item);
+    }
+
+    /**
+     * must be called inside a write transaction
+     */
+    public static void enqueueAnnotation(Realm realm, long user, EldAnnotation annotation) {
+        if (annotation.getEvent().startsWith(EldEvent.EVENT_STUB_CLIENT_ID)) {
+            return;
+        }
+
+        EldMergeOutboxItem item = new EldMergeOutboxItem(BaseDAO.generateUuid(), user, EldMergeOutboxItem.KIND_ANNOTATION, System.currentTimeMillis());
+        item.setAnnotationId(annotation.getId());
+        realm.copyToRealm(item);
+    }
+
+    static String joinIds(List<String> ids) {
+        if (ids.isEmpty()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < ids.size(); i++) {
+            if (i > 0) {
+                sb.append(ID_SEPARATOR);
+            }
+            sb.append(ids.get(i));
+        }
+        return sb.toString();
+    }
+
+    static List<String> splitIds(String ids) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<>();
+        Collections.addAll(result, ids.split(ID_SEPARATOR));
+        return result;
+    }
+}
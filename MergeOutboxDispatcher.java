@@ -0,0 +1,413 @@
+package ca.truxtrax.logbook;
+
+import android.support.annotation.NonNull;
+
+import com.crashlytics.android.Crashlytics;
+import com.truxtrax.utils.DatabaseUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.truxtrax.database.realm_mapping.eld.EldAnnotation;
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import ca.truxtrax.database.realm_mapping.eld.EldMergeOutboxItem;
+import ca.truxtrax.utils.AndroidLog;
+import ca.truxtrax.utils.MapperUtils;
+import io.realm.Realm;
+import io.realm.RealmResults;
+import server.mapping_socket.eld_mapping.EldEventItem;
+import server.mapping_socket.eld_mapping.EldRemoveEventItem;
+
+/**
+ * Drains {@link MergeOutbox} on a background thread after the merge transaction is committed.
+ * <p>
+ * Pushes are collected for a short window, then all due records of a driver are coalesced
+ * by {@link MergeSyncBatch}: the events go in one request, annotations are only deduplicated
+ * and sent one request each, the server has no call which takes several. Failed records are
+ * retried with exponential backoff, later records of the same driver wait for them, so the server
+ * never sees a remove before its add. Records the server took are removed right away, a failed
+ * annotation doesn't send its events again.
+ */
+public final class MergeOutboxDispatcher {
+
+    private static final String tag = MergeOutboxDispatcher.class.getSimpleName();
+
+    static final long BACKOFF_BASE_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    static final long BACKOFF_MAX_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    static final long DEFAULT_WINDOW_MILLIS = TimeUnit.SECONDS.toMillis(3);
+    static final int DEFAULT_MAX_BATCH = 20;
+
+    private static final MergeOutboxDispatcher instance = new MergeOutboxDispatcher();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(r, "merge-outbox");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private volatile MergeServerGateway gateway = MergeServerGateway.SERVER;
+    private volatile long windowMillis = DEFAULT_WINDOW_MILLIS;
+    private volatile int maxBatch = DEFAULT_MAX_BATCH;
+
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AtomicInteger scheduledRecords = new AtomicInteger();
+
+    private final Stats stats = new Stats();
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private MergeOutboxDispatcher() {
+    }
+
+    public static MergeOutboxDispatcher getInstance() {
+        return instance;
+    }
+
+    public void setGateway(MergeServerGateway gateway) {
+        this.gateway = gateway == null ? MergeServerGateway.SERVER : gateway;
+    }
+
+    /**
+     * @param windowMillis how long pushes are collected before sending
+     * @param maxBatch     number of committed merges that triggers sending before the window ends
+     */
+    public void setBatchWindow(long windowMillis, int maxBatch) {
+        this.windowMillis = Math.max(0, windowMillis);
+        this.maxBatch = Math.max(1, maxBatch);
+    }
+
+    public Stats getStats() {
+        return stats;
+    }
+
+    /**
+     * a merge was committed, drain the outbox when the batch window ends or the batch is full
+     */
+    public void schedule() {
+        int records = scheduledRecords.incrementAndGet();
+        if (records >= maxBatch) {
+            executor.execute(drainTask);
+        } else if (drainScheduled.compareAndSet(false, true)) {
+            executor.schedule(drainTask, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * drain the outbox right away, called by {@link MergeStartup} on app start and when the connection is back
+     */
+    public void drainNow() {
+        executor.execute(drainTask);
+    }
+
+    private void scheduleDelayed(long delayMillis) {
+        executor.schedule(drainTask, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    static long backoffMillis(int attempts) {
+        if (attempts <= 0) {
+            return 0;
+        }
+        // 5s, 10s, 20s, ... up to 10 minutes
+        int shift = Math.min(attempts - 1, 20);
+        return Math.min(BACKOFF_BASE_MILLIS << shift, BACKOFF_MAX_MILLIS);
+    }
+
+    private void drain() {
+        drainScheduled.set(false);
+        scheduledRecords.set(0);
+
+        Realm realm = null;
+        try {
+            realm = Realm.getDefaultInstance();
+
+            long now = System.currentTimeMillis();
+            long nextAttempt = Long.MAX_VALUE;
+
+            for (List<EldMergeOutboxItem> items : dueByUser(pending(realm), now).values()) {
+                if (items.isEmpty()) {
+                    continue;
+                }
+                long retryAt = pushBatch(realm, items, now);
+                nextAttempt = Math.min(nextAttempt, retryAt);
+            }
+
+            // records which are not due yet
+            for (EldMergeOutboxItem it : pending(realm)) {
+                nextAttempt = Math.min(nextAttempt, it.getNextAttempt());
+            }
+
+            if (nextAttempt != Long.MAX_VALUE) {
+                scheduleDelayed(Math.max(0, nextAttempt - now));
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            Crashlytics.logException(e);
+            scheduleDelayed(BACKOFF_MAX_MILLIS);
+        } finally {
+            if (realm != null) {
+                DatabaseUtils.closeQuietly(realm);
+            }
+        }
+    }
+
+    /**
+     * due records per driver in creation order, stops at the first record waiting for retry
+     */
+    private static Map<Long, List<EldMergeOutboxItem>> dueByUser(List<EldMergeOutboxItem> items, long now) {
+        Map<Long, List<EldMergeOutboxItem>> result = new LinkedHashMap<>();
+        Map<Long, Boolean> blocked = new LinkedHashMap<>();
+        for (EldMergeOutboxItem item : items) {
+            if (blocked.containsKey(item.getUser())) {
+                continue;
+            }
+            if (item.getNextAttempt() > now) {
+                blocked.put(item.getUser(), Boolean.TRUE);
+                continue;
+            }
+            List<EldMergeOutboxItem> userItems = result.get(item.getUser());
+            if (userItems == null) {
+                userItems = new ArrayList<>();
+                result.put(item.getUser(), userItems);
+            }
+            userItems.add(item);
+        }
+        return result;
+    }
+
+    /**
+     * The events of the batch are done once the server took them, a failed annotation postpones
+     * only the annotation records, so the events are not sent again with the retry.
+     *
+     * @return time of the next attempt, Long.MAX_VALUE if the batch was sent
+     */
+    private long pushBatch(Realm realm, List<EldMergeOutboxItem> items, long now) {
+        long user = items.get(0).getUser();
+
+        MergeSyncBatch batch = new MergeSyncBatch();
+        List<String> eventRecords = new ArrayList<>();
+        Map<String, List<String>> annotationRecords = new LinkedHashMap<>();
+        int attempts = 0;
+        for (EldMergeOutboxItem item : items) {
+            attempts = Math.max(attempts, item.getAttempts());
+            switch (item.getKind()) {
+                case EldMergeOutboxItem.KIND_EVENTS:
+                    batch.addRecord(MergeOutbox.splitIds(item.getNewIds()),
+                            MergeOutbox.splitIds(item.getUpdateIds()),
+                            MergeOutbox.splitIds(item.getRemoveIds()));
+                    eventRecords.add(item.getId());
+                    break;
+                case EldMergeOutboxItem.KIND_ANNOTATION:
+                    batch.addAnnotation(item.getAnnotationId());
+                    List<String> records = annotationRecords.get(item.getAnnotationId());
+                    if (records == null) {
+                        records = new ArrayList<>(1);
+                        annotationRecords.put(item.getAnnotationId(), records);
+                    }
+                    records.add(item.getId());
+                    break;
+                default:
+                    AndroidLog.e(tag, "unknown outbox kind, " + item);
+                    // dropped with the events
+                    eventRecords.add(item.getId());
+                    break;
+            }
+        }
+
+        List<String> failed = new ArrayList<>();
+        long start = MergeMetrics.start();
+        if (pushEvents(realm, user, batch)) {
+            remove(realm, eventRecords);
+            failed.addAll(pushAnnotations(realm, user, batch, annotationRecords));
+        } else {
+            // annotations wait for their events
+            failed.addAll(eventRecords);
+            for (List<String> records : annotationRecords.values()) {
+                failed.addAll(records);
+            }
+        }
+        MergeMetrics.stop(MergeMetrics.Phase.SERVER_PUSH, start);
+
+        if (failed.isEmpty()) {
+            stats.onBatchSent(batch);
+            return Long.MAX_VALUE;
+        }
+
+        long retryAt = now + backoffMillis(attempts + 1);
+        postpone(realm, failed, attempts + 1, retryAt);
+        stats.onBatchFailed();
+        return retryAt;
+    }
+
+    private static List<EldMergeOutboxItem> pending(Realm realm) {
+        RealmResults<EldMergeOutboxItem> results = realm.where(EldMergeOutboxItem.class).findAll();
+        List<EldMergeOutboxItem> items = new ArrayList<>(realm.copyFromRealm(results));
+        Collections.sort(items, new Comparator<EldMergeOutboxItem>() {
+            @Override
+            public int compare(EldMergeOutboxItem o1, EldMergeOutboxItem o2) {
+                return o1.getCreated() < o2.getCreated() ? -1 : (o1.getCreated() == o2.getCreated() ? 0 : 1);
+            }
+        });
+        return items;
+    }
+
+    private boolean pushEvents(Realm realm, long user, MergeSyncBatch batch) {
+        if (!batch.hasEvents()) {
+            return true;
+        }
+
+        final List<EldEventItem> mergeList = new ArrayList<>();
+        final List<EldRemoveEventItem> removeList = new ArrayList<>();
+
+        for (String id : batch.mergeIds()) {
+            EldEvent event = realm.where(EldEvent.class).equalTo("id", id).findFirst();
+            // removed locally in the meantime, nothing to send
+            if (event != null) {
+                mergeList.add(MapperUtils.convertToServerEldEvent(event));
+            }
+        }
+        for (String id : batch.removeIds()) {
+            removeList.add(new EldRemoveEventItem(id));
+        }
+
+        if (mergeList.isEmpty() && removeList.isEmpty()) {
+            return true;
+        }
+        return gateway.mergeEvents(realm, user, mergeList, removeList);
+    }
+
+    /**
+     * one request per annotation, {@code ServerOperations} saves a single annotation only
+     * and writes the server's copy back, so the cached annotations of the driver are dropped
+     *
+     * @param records outbox records by annotation id, the records of sent annotations are removed
+     * @return records of the failed annotation and of the ones after it, empty if all were sent
+     */
+    private List<String> pushAnnotations(Realm realm, long user, MergeSyncBatch batch, Map<String, List<String>> records) {
+        List<String> sent = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        boolean saved = false;
+        try {
+            for (String id : batch.annotationIds()) {
+                if (!failed.isEmpty()) {
+                    // later comments on the same event must not overtake the failed one
+                    failed.addAll(records.get(id));
+                    continue;
+                }
+                EldAnnotation annotation = realm.where(EldAnnotation.class).equalTo("id", id).findFirst();
+                if (annotation != null && !gateway.saveAnnotation(realm, user, annotation)) {
+                    failed.addAll(records.get(id));
+                    continue;
+                }
+                saved |= annotation != null;
+                sent.addAll(records.get(id));
+            }
+        } finally {
+            if (saved) {
+                AnnotationIndex.getInstance().invalidate(user);
+            }
+        }
+        remove(realm, sent);
+        return failed;
+    }
+
+    private static void remove(Realm realm, final List<String> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        DatabaseUtils.executeTransaction(realm, new Realm.Transaction() {
+            @Override
+            public void execute(@NonNull Realm realm) {
+                realm.where(EldMergeOutboxItem.class)
+                        .in(EldMergeOutboxItem.FIELD_ID, ids.toArray(new String[ids.size()]))
+                        .findAll()
+                        .deleteAllFromRealm();
+            }
+        });
+    }
+
+    private static void postpone(Realm realm, final List<String> ids, final int attempts, final long nextAttempt) {
+        DatabaseUtils.executeTransaction(realm, new Realm.Transaction() {
+            @Override
+            public void execute(@NonNull Realm realm) {
+                RealmResults<EldMergeOutboxItem> items = realm.where(EldMergeOutboxItem.class)
+                        .in(EldMergeOutboxItem.FIELD_ID, ids.toArray(new String[ids.size()]))
+                        .findAll();
+                for (EldMergeOutboxItem it : items) {
+                    it.setAttempts(attempts);
+                    it.setNextAttempt(nextAttempt);
+                }
+            }
+        });
+    }
+
+    /**
+     * counters of the batching stage
+     */
+    public static final class Stats {
+        private final AtomicLong records = new AtomicLong();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong operations = new AtomicLong();
+        private final AtomicLong coalescedOperations = new AtomicLong();
+        private final AtomicLong cancelled = new AtomicLong();
+        private final AtomicLong failedBatches = new AtomicLong();
+
+        void onBatchSent(MergeSyncBatch batch) {
+            records.addAndGet(batch.getRecords());
+            requests.addAndGet(batch.getRequests());
+            operations.addAndGet(batch.getOperations());
+            coalescedOperations.addAndGet(batch.getCoalescedOperations());
+            cancelled.addAndGet(batch.getCancelled());
+        }
+
+        void onBatchFailed() {
+            failedBatches.incrementAndGet();
+        }
+
+        /**
+         * outbox records sent, one record used to be one request
+         */
+        public long getRecords() {
+            return records.get();
+        }
+
+        public long getRequests() {
+            return requests.get();
+        }
+
+        public long getRequestsSaved() {
+            return records.get() - requests.get();
+        }
+
+        public long getOperationsSaved() {
+            return operations.get() - coalescedOperations.get();
+        }
+
+        public long getCancelled() {
+            return cancelled.get();
+        }
+
+        public long getFailedBatches() {
+            return failedBatches.get();
+        }
+    }
+}
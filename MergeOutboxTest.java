@@ -0,0 +1,272 @@
+package ca.truxtrax.test.activiries.logbook;
+
+import com.truxtrax.utils.DatabaseUtils;
+
+import org.junit.After;
+import org.junit.Test;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.reflect.internal.WhiteboxImpl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ca.truxtrax.database.realm_dao.BaseDAO;
+import ca.truxtrax.database.realm_dao.EldAnnotationsDao;
+import ca.truxtrax.database.realm_mapping.eld.EldAnnotation;
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import ca.truxtrax.database.realm_mapping.eld.EldMergeOutboxItem;
+import ca.truxtrax.logbook.AnnotationIndex;
+import ca.truxtrax.logbook.LogbookMergeUtils;
+import ca.truxtrax.logbook.MergeOutbox;
+import ca.truxtrax.logbook.MergeOutboxDispatcher;
+import ca.truxtrax.logbook.MergeServerGateway;
+import io.realm.Realm;
+import io.realm.RealmQuery;
+import server.mapping_socket.eld_mapping.EldEventItem;
+import server.mapping_socket.eld_mapping.EldRemoveEventItem;
+import utils.BaseRealmRunner;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static utils.Utils.generateEvent;
+
+@PrepareForTest({LogbookMergeUtils.class, EventMergeWrapper.class, MergeOutbox.class, DatabaseUtils.class,
+        AnnotationIndex.class, RealmQuery.class, MergeOutboxDispatcher.class})
+public class MergeOutboxTest extends BaseRealmRunner {
+
+    private static final long USER = 123L;
+
+    @After
+    public void tearDown() {
+        MergeOutboxDispatcher.getInstance().setGateway(null);
+    }
+
+    @Test
+    public void shouldRecordPushInsideTransaction() throws Exception {
+
+        // given
+        FakeServerGateway gateway = new FakeServerGateway(0);
+        MergeOutboxDispatcher.getInstance().setGateway(gateway);
+
+        PowerMockito.spy(LogbookMergeUtils.class);
+        PowerMockito.doNothing().when(LogbookMergeUtils.class, "saveMergeResultToDatabase", any(Realm.class), anyListOf(EventMergeWrapper.class));
+        PowerMockito.doNothing().when(LogbookMergeUtils.class, "checkNotChanged", any(Realm.class), any());
+        mockStatic(MergeOutbox.class);
+
+        EldEvent event = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0);
+        EldEvent mergeEvent = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 1);
+
+        // when
+        List<EventMergeWrapper> result = WhiteboxImpl.invokeMethod(LogbookMergeUtils.class, "merge0",
+                mockRealm,
+                USER,
+                Arrays.asList(event),
+                mergeEvent,
+                TimeUnit.MINUTES.toMillis(2),
+                TimeUnit.MINUTES.toMillis(3),
+                null
+        );
+
+        // then
+        // the push is a record of the merge transaction, the server is called by the dispatcher only
+        assertFalse(result.isEmpty());
+        PowerMockito.verifyStatic(times(1));
+        MergeOutbox.enqueueEvents(eq(mockRealm), eq(USER), anyListOf(EventMergeWrapper.class));
+        assertEquals(0, gateway.mergeCalls.get());
+    }
+
+    @Test
+    public void shouldSendDriverRecordsInOneRequest() throws Exception {
+
+        // given
+        // two merges of the driver are waiting in the outbox
+        FakeServerGateway gateway = new FakeServerGateway(0);
+        MergeOutboxDispatcher dispatcher = MergeOutboxDispatcher.getInstance();
+        dispatcher.setGateway(gateway);
+        mockStatic(DatabaseUtils.class);
+        Realm realm = PowerMockito.mock(Realm.class);
+        long now = System.currentTimeMillis();
+        long sent = dispatcher.getStats().getRequests();
+
+        // when
+        long nextAttempt = WhiteboxImpl.invokeMethod(dispatcher, "pushBatch", realm,
+                Arrays.asList(removeRecord(now, "a,b"), removeRecord(now + 1, "c")), now);
+
+        // then
+        // one server call with both records, nothing to retry
+        assertEquals(Long.MAX_VALUE, nextAttempt);
+        assertEquals(1, gateway.mergeCalls.get());
+        assertEquals(3, gateway.removed.get());
+        assertEquals(sent + 1, dispatcher.getStats().getRequests());
+    }
+
+    @Test
+    public void shouldPostponeFailedBatch() throws Exception {
+
+        // given
+        // server is down
+        FakeServerGateway gateway = new FakeServerGateway(0);
+        gateway.available = false;
+        MergeOutboxDispatcher dispatcher = MergeOutboxDispatcher.getInstance();
+        dispatcher.setGateway(gateway);
+        mockStatic(DatabaseUtils.class);
+        Realm realm = PowerMockito.mock(Realm.class);
+        long now = System.currentTimeMillis();
+        long failed = dispatcher.getStats().getFailedBatches();
+
+        // when
+        long nextAttempt = WhiteboxImpl.invokeMethod(dispatcher, "pushBatch", realm,
+                Arrays.asList(removeRecord(now, "a")), now);
+
+        // then
+        // retried after the first backoff step
+        assertEquals(now + TimeUnit.SECONDS.toMillis(5), nextAttempt);
+        assertEquals(1, gateway.mergeCalls.get());
+        assertEquals(failed + 1, dispatcher.getStats().getFailedBatches());
+    }
+
+    @Test
+    public void shouldForgetCachedAnnotationsAfterPush() throws Exception {
+
+        // given
+        // the annotation of the last merge is cached, the server writes its copy back
+        FakeServerGateway gateway = new FakeServerGateway(0);
+        MergeOutboxDispatcher dispatcher = MergeOutboxDispatcher.getInstance();
+        dispatcher.setGateway(gateway);
+        mockStatic(DatabaseUtils.class);
+        Realm realm = PowerMockito.mock(Realm.class);
+        EldEvent event = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 10);
+        EldAnnotation annotation = new EldAnnotation(BaseDAO.generateUuid(), USER, TimeUnit.MINUTES.toMillis(10), event.getId(), "comment");
+        RealmQuery<EldAnnotation> query = PowerMockito.mock(RealmQuery.class);
+        when(realm.where(EldAnnotation.class)).thenReturn(query);
+        when(query.equalTo("id", annotation.getId())).thenReturn(query);
+        when(query.findFirst()).thenReturn(annotation);
+        EldAnnotationsDao dao = mock(EldAnnotationsDao.class);
+        PowerMockito.whenNew(EldAnnotationsDao.class).withArguments(realm).thenReturn(dao);
+
+        AnnotationIndex index = AnnotationIndex.getInstance();
+        index.invalidateAll();
+        WhiteboxImpl.invokeMethod(index, "onMerged", USER, Collections.singletonList(annotation),
+                Collections.<EventMergeWrapper>emptyList());
+        long now = System.currentTimeMillis();
+
+        // when
+        EldMergeOutboxItem item = new EldMergeOutboxItem(BaseDAO.generateUuid(), USER, EldMergeOutboxItem.KIND_ANNOTATION, now);
+        item.setAnnotationId(annotation.getId());
+        WhiteboxImpl.invokeMethod(dispatcher, "pushBatch", realm, Arrays.asList(item), now);
+        WhiteboxImpl.invokeMethod(index, "resolve", realm, USER, event, event.getDatetime(), "new comment");
+
+        // then
+        // the next merge reads the saved annotation
+        assertEquals(1, gateway.annotationCalls.get());
+        verify(dao, times(1)).getAnnotation(event.getId());
+    }
+
+    @Test
+    public void shouldNotSendAcceptedEventsAgain() throws Exception {
+
+        // given
+        // the server takes the events but fails the annotation
+        FakeServerGateway gateway = new FakeServerGateway(0);
+        gateway.annotationsAvailable = false;
+        MergeOutboxDispatcher dispatcher = MergeOutboxDispatcher.getInstance();
+        dispatcher.setGateway(gateway);
+        mockStatic(DatabaseUtils.class);
+        PowerMockito.spy(MergeOutboxDispatcher.class);
+        Realm realm = PowerMockito.mock(Realm.class);
+        EldAnnotation annotation = new EldAnnotation(BaseDAO.generateUuid(), USER, TimeUnit.MINUTES.toMillis(10), BaseDAO.generateUuid(), "comment");
+        RealmQuery<EldAnnotation> query = PowerMockito.mock(RealmQuery.class);
+        when(realm.where(EldAnnotation.class)).thenReturn(query);
+        when(query.equalTo("id", annotation.getId())).thenReturn(query);
+        when(query.findFirst()).thenReturn(annotation);
+        long now = System.currentTimeMillis();
+
+        EldMergeOutboxItem events = removeRecord(now, "a");
+        EldMergeOutboxItem comment = new EldMergeOutboxItem(BaseDAO.generateUuid(), USER, EldMergeOutboxItem.KIND_ANNOTATION, now + 1);
+        comment.setAnnotationId(annotation.getId());
+
+        // when
+        long nextAttempt = WhiteboxImpl.invokeMethod(dispatcher, "pushBatch", realm, Arrays.asList(events, comment), now);
+
+        // then
+        // the events record is done, only the annotation is retried
+        assertEquals(now + TimeUnit.SECONDS.toMillis(5), nextAttempt);
+        assertEquals(1, gateway.mergeCalls.get());
+        assertEquals(1, gateway.annotationCalls.get());
+        PowerMockito.verifyPrivate(MergeOutboxDispatcher.class).invoke("remove", eq(realm), eq(Collections.singletonList(events.getId())));
+        PowerMockito.verifyPrivate(MergeOutboxDispatcher.class).invoke("postpone", eq(realm), eq(Collections.singletonList(comment.getId())), eq(1), anyLong());
+    }
+
+    @Test
+    public void shouldBackoffExponentially() throws Exception {
+
+        long first = WhiteboxImpl.invokeMethod(MergeOutboxDispatcher.class, "backoffMillis", 1);
+        long second = WhiteboxImpl.invokeMethod(MergeOutboxDispatcher.class, "backoffMillis", 2);
+        long third = WhiteboxImpl.invokeMethod(MergeOutboxDispatcher.class, "backoffMillis", 3);
+        long many = WhiteboxImpl.invokeMethod(MergeOutboxDispatcher.class, "backoffMillis", 100);
+
+        assertEquals(TimeUnit.SECONDS.toMillis(5), first);
+        assertEquals(TimeUnit.SECONDS.toMillis(10), second);
+        assertEquals(TimeUnit.SECONDS.toMillis(20), third);
+        assertEquals(TimeUnit.MINUTES.toMillis(10), many);
+    }
+
+    private static EldMergeOutboxItem removeRecord(long created, String removeIds) {
+        EldMergeOutboxItem item = new EldMergeOutboxItem(BaseDAO.generateUuid(), USER, EldMergeOutboxItem.KIND_EVENTS, created);
+        item.setRemoveIds(removeIds);
+        return item;
+    }
+
+    /**
+     * stand-in for ServerOperations with a configurable latency
+     */
+    static class FakeServerGateway implements MergeServerGateway {
+        final long latencyMillis;
+        final AtomicInteger mergeCalls = new AtomicInteger();
+        final AtomicInteger annotationCalls = new AtomicInteger();
+        final AtomicInteger removed = new AtomicInteger();
+        volatile boolean available = true;
+        volatile boolean annotationsAvailable = true;
+
+        FakeServerGateway(long latencyMillis) {
+            this.latencyMillis = latencyMillis;
+        }
+
+        @Override
+        public boolean mergeEvents(Realm realm, long user, List<EldEventItem> mergeList, List<EldRemoveEventItem> removeList) {
+            mergeCalls.incrementAndGet();
+            removed.addAndGet(removeList.size());
+            sleep();
+            return available;
+        }
+
+        @Override
+        public boolean saveAnnotation(Realm realm, long user, EldAnnotation annotation) {
+            annotationCalls.incrementAndGet();
+            sleep();
+            return available && annotationsAvailable;
+        }
+
+        private void sleep() {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package ca.truxtrax.logbook;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * Result of a merge or a reject with the reason it was not done.
+ * <p>
+ * Rejections are shared instances, one per {@link Reason}, so a rejected merge allocates nothing.
+ * The message is built only when {@link #getMessage()} is called.
+ */
+public final class MergeOutcome {
+
+    public enum Reason {
+        OK("merged", false),
+        NOT_VALID_USER("not valid user", false),
+        /**
+         * realm was closed, try again with an open instance
+         */
+        NOT_VALID_REALM("realm not valid", true),
+        NOT_VALID_EVENT("event not valid", false),
+        WRONG_EVENT_TYPE("wrong event type, expected duty status or ym/pc", false),
+        EMPTY_INTERVAL("mergeEvent.datetime equals rightDate", false),
+        NOT_VALID_RIGHT_DATE("rightDate contains seconds or millis", false),
+        NOT_VALID_THE_TIME("theTime contains seconds or millis", false),
+        THE_TIME_BEFORE_RIGHT_DATE("theTime < rightDate", false),
+        EMPTY_EVENTS("events list is empty or null", false),
+        EMPTY_REQUESTS("requests list is empty or null", false),
+        NO_EVENT("event==null", false),
+        NOT_DRIVING("wrong logbookStatus, expected driving", false),
+        NOT_AUTO_ORIGIN("wrong origin, expected auto", false),
+        DRIVING_NOT_CLOSED("driving event not closed", false);
+
+        private final String message;
+        private final boolean retryable;
+
+        Reason(String message, boolean retryable) {
+            this.message = message;
+            this.retryable = retryable;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * false if the same request will be rejected again
+         */
+        public boolean isRetryable() {
+            return retryable;
+        }
+    }
+
+    private static final MergeOutcome[] REJECTED;
+    private static final Stats stats = new Stats();
+
+    static {
+        Reason[] reasons = Reason.values();
+        REJECTED = new MergeOutcome[reasons.length];
+        for (Reason it : reasons) {
+            REJECTED[it.ordinal()] = new MergeOutcome(it, null);
+        }
+    }
+
+    private final Reason reason;
+    private final List<EventMergeWrapper> result;
+
+    private MergeOutcome(Reason reason, List<EventMergeWrapper> result) {
+        this.reason = reason;
+        this.result = result;
+    }
+
+    static MergeOutcome ok(List<EventMergeWrapper> result) {
+        stats.on(Reason.OK);
+        return new MergeOutcome(Reason.OK, result == null ? Collections.<EventMergeWrapper>emptyList() : result);
+    }
+
+    static MergeOutcome rejected(Reason reason) {
+        stats.on(reason);
+        return REJECTED[reason.ordinal()];
+    }
+
+    public boolean isOk() {
+        return reason == Reason.OK;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * @return merge result, null if rejected
+     */
+    public List<EventMergeWrapper> getResult() {
+        return result;
+    }
+
+    public String getMessage() {
+        if (isOk()) {
+            return reason.getMessage() + ", results==" + result.size();
+        }
+        return reason.getMessage();
+    }
+
+    @Override
+    public String toString() {
+        return "MergeOutcome{" + reason + ", " + getMessage() + '}';
+    }
+
+    public static Stats getStats() {
+        return stats;
+    }
+
+    /**
+     * outcomes per reason since start
+     */
+    public static final class Stats {
+        private final AtomicLongArray counts = new AtomicLongArray(Reason.values().length);
+
+        void on(Reason reason) {
+            counts.incrementAndGet(reason.ordinal());
+        }
+
+        public long getCount(Reason reason) {
+            return counts.get(reason.ordinal());
+        }
+
+        public long getRejected() {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            return total - counts.get(Reason.OK.ordinal());
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package ca.truxtrax.logbook;
+
+import java.util.Collections;
+import java.util.List;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * Result of {@link MergePlanner}, what a merge would change.
+ */
+public final class MergePlan {
+
+    static final MergePlan EMPTY = new MergePlan(DutyTimeline.of(null), Collections.<EventMergeWrapper>emptyList(), null);
+
+    /**
+     * events the plan was made from, the results replace some of them
+     */
+    final DutyTimeline events;
+
+    public final List<EventMergeWrapper> results;
+
+    /**
+     * event the merge annotation belongs to, null if nothing to annotate
+     */
+    public final EldEvent annotationTarget;
+
+    MergePlan(DutyTimeline events, List<EventMergeWrapper> results, EldEvent annotationTarget) {
+        this.events = events;
+        this.results = results;
+        this.annotationTarget = annotationTarget;
+    }
+
+    public boolean isEmpty() {
+        return results.isEmpty();
+    }
+}
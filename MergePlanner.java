@@ -0,0 +1,74 @@
+package ca.truxtrax.logbook;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * Computes a merge without any I/O.
+ * <p>
+ * No Realm, dao, server or logging calls, only {@link MergeMetrics} timings, so a plan can be
+ * computed off the Realm thread or on a plain JVM. {@link LogbookMergeUtils#merge} applies the plan inside its transaction.
+ * The events passed in are only read, edited events of the plan are detached copies and the
+ * rest is shared with the input. Take a {@link #snapshot(List)} to plan on another thread.
+ */
+public final class MergePlanner {
+
+    private MergePlanner() {
+    }
+
+    /**
+     * @param events     events of the driver, sorted by datetime
+     * @param mergeEvent merge candidate, starts at the left dragger
+     * @param rightDate  right dragger
+     * @param theTime    current logbook time
+     */
+    public static MergePlan plan(List<EldEvent> events, EldEvent mergeEvent, long rightDate, long theTime) {
+        return plan(events, mergeEvent, rightDate, theTime, false);
+    }
+
+    /**
+     * @param incremental combine equal statuses only around the changed events, for a log which is combined already
+     */
+    public static MergePlan plan(List<EldEvent> events, EldEvent mergeEvent, long rightDate, long theTime, boolean incremental) {
+        DutyTimeline timeline = DutyTimeline.of(events);
+        if (timeline.isEmpty()) {
+            return MergePlan.EMPTY;
+        }
+
+        EldEvent[] coveredEventResult = new EldEvent[1];
+        long start = MergeMetrics.start();
+        boolean shouldMerge = LogbookMergeUtils.checkNeedToMerge(coveredEventResult, timeline, mergeEvent, rightDate);
+        MergeMetrics.stop(MergeMetrics.Phase.CHECK_NEED_TO_MERGE, start);
+        List<EventMergeWrapper> results;
+        if (shouldMerge) {
+            results = new LogbookMergeUtils.EventsMerger(timeline, mergeEvent, rightDate, theTime, incremental).execute();
+        } else if (coveredEventResult[0] != null) {
+            // merge to covered status
+            results = new ArrayList<>();
+            EventMergeWrapper.editEvent(results, coveredEventResult[0], mergeEvent);
+        } else {
+            return MergePlan.EMPTY;
+        }
+
+        if (results.isEmpty()) {
+            return MergePlan.EMPTY;
+        }
+        return new MergePlan(timeline, results, LogbookMergeUtils.findEventToAnnotate(results, mergeEvent.getDatetime()));
+    }
+
+    /**
+     * Detached copies of the events, safe to pass to another thread.
+     * Must be called on the thread which owns the events.
+     */
+    public static DutyTimeline snapshot(List<EldEvent> events) {
+        List<EldEvent> copies = new ArrayList<>(events.size());
+        for (int i = 0; i < events.size(); i++) {
+            copies.add(events.get(i).copy());
+        }
+        return DutyTimeline.of(copies);
+    }
+}
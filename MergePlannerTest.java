@@ -0,0 +1,127 @@
+package ca.truxtrax.test.activiries.logbook;
+
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import ca.truxtrax.logbook.DutyTimeline;
+import ca.truxtrax.logbook.LogbookMergeUtils;
+import ca.truxtrax.logbook.MergePlan;
+import ca.truxtrax.logbook.MergePlanner;
+import utils.BaseRealmRunner;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static utils.Utils.generateEvent;
+
+@PrepareForTest({LogbookMergeUtils.class, EventMergeWrapper.class})
+public class MergePlannerTest extends BaseRealmRunner {
+
+    @Test
+    public void shouldPlanNewStatus() {
+
+        // given
+        // in [0, ~](off)
+        // candidate [1-2](on)
+        EldEvent off = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0);
+        EldEvent candidate = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 1);
+
+        // when
+        MergePlan plan = MergePlanner.plan(Arrays.asList(off), candidate, TimeUnit.MINUTES.toMillis(2), TimeUnit.MINUTES.toMillis(3));
+
+        // then
+        // candidate and the rest of off status
+        assertEquals(2, plan.results.size());
+        assertEquals(EventMergeWrapper.MERGE_RESULT_NEW, plan.results.get(0).mergeResult);
+        assertSame(candidate, plan.results.get(0).event);
+        assertEquals(EventMergeWrapper.MERGE_RESULT_NEW, plan.results.get(1).mergeResult);
+        assertEquals(EldEvent.STATUS_OFF_DUTY, plan.results.get(1).event.getLogbookStatus());
+        assertEquals(TimeUnit.MINUTES.toMillis(2), plan.results.get(1).event.getDatetime());
+        // annotation goes to the candidate
+        assertSame(candidate, plan.annotationTarget);
+    }
+
+    @Test
+    public void shouldPlanNothingInsideSameStatus() {
+
+        // given
+        // in [0, ~](off)
+        // candidate [1-2](off)
+        EldEvent off = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0);
+        EldEvent candidate = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 1);
+
+        // when
+        MergePlan plan = MergePlanner.plan(Arrays.asList(off), candidate, TimeUnit.MINUTES.toMillis(2), TimeUnit.MINUTES.toMillis(3));
+
+        // then
+        // covered status is edited
+        assertEquals(1, plan.results.size());
+        assertEquals(EventMergeWrapper.MERGE_RESULT_EDITED, plan.results.get(0).mergeResult);
+    }
+
+    @Test
+    public void shouldPlanEmptyForNoEvents() {
+
+        // when
+        MergePlan plan = MergePlanner.plan(Arrays.<EldEvent>asList(),
+                generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 1),
+                TimeUnit.MINUTES.toMillis(2), TimeUnit.MINUTES.toMillis(3));
+
+        // then
+        assertTrue(plan.isEmpty());
+        assertNull(plan.annotationTarget);
+    }
+
+    @Test
+    public void shouldNotChangeInputEvents() {
+
+        // given
+        // in [0, ~](auto driving)
+        // candidate [10-20](on)
+        EldEvent driving = generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_AUTO, 0);
+        Double milesAccumulated = driving.getMilesAccumulated();
+        EldEvent candidate = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 10);
+        candidate.setMilesOriginal(5D);
+
+        // when
+        MergePlan plan = MergePlanner.plan(Arrays.asList(driving), candidate, TimeUnit.MINUTES.toMillis(20), TimeUnit.MINUTES.toMillis(30));
+
+        // then
+        // driving is closed in the plan only
+        for (EventMergeWrapper it : plan.results) {
+            if (it.mergeResult == EventMergeWrapper.MERGE_RESULT_CLOSE_DRIVE) {
+                assertNotSame(driving, it.event);
+                assertEquals(driving.getId(), it.event.getId());
+            }
+        }
+        assertEquals(EldEvent.STATUS_DRIVING, driving.getLogbookStatus());
+        assertEquals(milesAccumulated, driving.getMilesAccumulated());
+    }
+
+    @Test
+    public void shouldSnapshotEvents() {
+
+        // given
+        List<EldEvent> events = Arrays.asList(
+                generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_DRIVER, 5),
+                generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0));
+
+        // when
+        DutyTimeline snapshot = MergePlanner.snapshot(events);
+
+        // then
+        // detached copies, sorted
+        assertEquals(2, snapshot.size());
+        assertNotSame(events.get(1), snapshot.get(0));
+        assertEquals(events.get(1).getId(), snapshot.get(0).getId());
+        assertEquals(events.get(0).getId(), snapshot.get(1).getId());
+    }
+}
@@ -0,0 +1,144 @@
+package ca.truxtrax.logbook;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import io.realm.RealmChangeListener;
+import io.realm.RealmResults;
+
+/**
+ * Dry-run merge for live dragging of the logbook handles.
+ * <p>
+ * Nothing is written to Realm or sent to the server, the events passed in are never changed.
+ * The events are copied once and the copy is reused while only the draggers move, the planner
+ * never changes the events it reads, so every preview shares the same snapshot.
+ * The snapshot is kept until the events change: live {@link RealmResults} are watched by a change
+ * listener, any other list must be reported by {@link #invalidate()}.
+ * <p>
+ * The previous plan is returned while neither the draggers nor the candidate changed, the
+ * candidate is compared by value, the slider moves the same object. Any move is planned again
+ * over the snapshot: the window is found in the {@link DutyTimeline} by binary search, so a
+ * move of one logbook interval costs about as much as extending the previous plan would.
+ * One instance per logbook screen, not thread safe.
+ */
+public final class MergePreview {
+
+    private List<EldEvent> source;
+    private long sourceVersion;
+    private DutyTimeline snapshot;
+    private int snapshots;
+
+    // bumped on every change of the source
+    private long version;
+    private RealmResults<EldEvent> watched;
+
+    private final RealmChangeListener<RealmResults<EldEvent>> changeListener = new RealmChangeListener<RealmResults<EldEvent>>() {
+        @Override
+        public void onChange(RealmResults<EldEvent> results) {
+            version++;
+        }
+    };
+
+    // previous preview, the candidate as encoded by EldEventCodec
+    private final EldEventCodec.Output candidateOut = new EldEventCodec.Output(128);
+    private byte[] lastCandidate;
+    private long lastRightDate;
+    private long lastTheTime;
+    private MergePlan lastPlan;
+
+    /**
+     * Must be called on the thread which owns {@code events}.
+     *
+     * @return proposed changes, events of the plan are detached copies
+     */
+    public MergePlan preview(List<EldEvent> events, EldEvent mergeEvent, long rightDate, long theTime) {
+        if (events == null || events.isEmpty() || mergeEvent == null) {
+            return MergePlan.EMPTY;
+        }
+
+        if (events != source) {
+            watch(events);
+            source = events;
+            version++;
+        }
+
+        if (sourceVersion != version || snapshot == null) {
+            // history changed, take a new snapshot
+            sourceVersion = version;
+            snapshot = MergePlanner.snapshot(events);
+            snapshots++;
+            lastPlan = null;
+        }
+
+        candidateOut.clear();
+        EldEventCodec.writeLogEvent(candidateOut, mergeEvent);
+        if (lastPlan != null && rightDate == lastRightDate && theTime == lastTheTime
+                && sameCandidate(candidateOut, lastCandidate)) {
+            // nothing moved
+            return lastPlan;
+        }
+
+        // combined the same way as the commit, so the preview shows what gets written
+        MergePlan plan = MergePlanner.plan(snapshot, mergeEvent, rightDate, theTime);
+
+        lastCandidate = Arrays.copyOf(candidateOut.array(), candidateOut.size());
+        lastRightDate = rightDate;
+        lastTheTime = theTime;
+        lastPlan = plan;
+        return plan;
+    }
+
+    private static boolean sameCandidate(EldEventCodec.Output candidate, byte[] last) {
+        if (last == null || last.length != candidate.size()) {
+            return false;
+        }
+        byte[] bytes = candidate.array();
+        for (int i = 0; i < last.length; i++) {
+            if (bytes[i] != last[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * call when the events were changed, e.g. after a merge was committed
+     */
+    public void invalidate() {
+        version++;
+        snapshot = null;
+        lastPlan = null;
+        lastCandidate = null;
+    }
+
+    /**
+     * stops watching the events, call when the logbook screen is closed
+     */
+    public void release() {
+        watch(null);
+        source = null;
+        invalidate();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void watch(List<EldEvent> events) {
+        if (watched != null) {
+            if (watched.isValid()) {
+                watched.removeChangeListener(changeListener);
+            }
+            watched = null;
+        }
+        if (events instanceof RealmResults) {
+            watched = (RealmResults<EldEvent>) events;
+            watched.addChangeListener(changeListener);
+        }
+    }
+
+    /**
+     * number of full copies of the history taken so far
+     */
+    public int getSnapshots() {
+        return snapshots;
+    }
+}
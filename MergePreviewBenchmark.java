@@ -0,0 +1,64 @@
+package ca.truxtrax.logbook;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+
+/**
+ * Slider drag: the right dragger moves by one logbook interval per frame, target is below 2 ms.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MergePreviewBenchmark {
+
+    private static final long INTERVAL = TimeUnit.MINUTES.toMillis(15);
+    private static final int STEPS = 16;
+
+    @Param({"2000"})
+    public int events;
+
+    private List<EldEvent> history;
+    private EldEvent candidate;
+    private long leftDate;
+    private long theTime;
+    private MergePreview preview;
+    private int step;
+
+    @Setup
+    public void setUp() {
+        history = MergeBenchmarkData.history(events, 4, 0.3, 1);
+        leftDate = MergeBenchmarkData.middle(history);
+        candidate = MergeBenchmarkData.candidate(EldEvent.STATUS_ON_DUTY, leftDate);
+        theTime = leftDate + TimeUnit.DAYS.toMillis(1);
+        preview = new MergePreview();
+    }
+
+    @Benchmark
+    public MergePlan dragRight() {
+        step = (step + 1) % STEPS;
+        return preview.preview(history, candidate, leftDate + INTERVAL * (step + 1), theTime);
+    }
+
+    @Benchmark
+    public MergePlan fullSnapshot() {
+        step = (step + 1) % STEPS;
+        return MergePlanner.plan(MergePlanner.snapshot(history), candidate, leftDate + INTERVAL * (step + 1), theTime);
+    }
+}
@@ -0,0 +1,157 @@
+package ca.truxtrax.test.activiries.logbook;
+
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import ca.truxtrax.logbook.LogbookMergeUtils;
+import ca.truxtrax.logbook.MergePlan;
+import ca.truxtrax.logbook.MergePlanner;
+import ca.truxtrax.logbook.MergePreview;
+import utils.BaseRealmRunner;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static utils.Utils.generateEvent;
+
+@PrepareForTest({LogbookMergeUtils.class, EventMergeWrapper.class})
+public class MergePreviewTest extends BaseRealmRunner {
+
+    @Test
+    public void shouldNotChangeEvents() {
+
+        // given
+        // in [0, 10](on), [10, ~](sb)
+        // candidate [10-12](off)
+        EldEvent on = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 0);
+        EldEvent sleeping = generateEvent(EldEvent.STATUS_SLEEPING, EldEvent.ORIGIN_DRIVER, 10);
+        sleeping.setLocation("Location1");
+        EldEvent candidate = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 10);
+        candidate.setLocation("Location2");
+
+        // when
+        MergePlan plan = new MergePreview().preview(Arrays.asList(on, sleeping), candidate, minutes(12), minutes(20));
+
+        // then
+        // the sleeping event is edited in the plan only
+        assertEquals(1, plan.results.size());
+        EventMergeWrapper edited = plan.results.get(0);
+        assertEquals(EventMergeWrapper.MERGE_RESULT_EDITED, edited.mergeResult);
+        assertEquals("Location2", edited.event.getLocation());
+        assertNotSame(sleeping, edited.event);
+        assertEquals(EldEvent.STATUS_SLEEPING, sleeping.getLogbookStatus());
+        assertEquals("Location1", sleeping.getLocation());
+    }
+
+    @Test
+    public void shouldReuseSnapshotWhileDragging() {
+
+        // given
+        List<EldEvent> events = Arrays.asList(
+                generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0),
+                generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_DRIVER, 30),
+                generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 60));
+        EldEvent candidate = generateEvent(EldEvent.STATUS_SLEEPING, EldEvent.ORIGIN_DRIVER, 15);
+        MergePreview preview = new MergePreview();
+
+        for (int right = 20; right < 90; right += 5) {
+
+            // when
+            MergePlan previewed = preview.preview(events, candidate, minutes(right), minutes(120));
+            MergePlan committed = MergePlanner.plan(MergePlanner.snapshot(events), candidate, minutes(right), minutes(120));
+
+            // then
+            // same plan as the commit
+            assertSameResults(committed, previewed);
+        }
+        assertEquals(1, preview.getSnapshots());
+
+        // nothing moved
+        MergePlan first = preview.preview(events, candidate, minutes(40), minutes(120));
+        assertSame(first, preview.preview(events, candidate, minutes(40), minutes(120)));
+
+        // history changed
+        preview.invalidate();
+        preview.preview(events, candidate, minutes(40), minutes(120));
+        assertEquals(2, preview.getSnapshots());
+    }
+
+    @Test
+    public void shouldTakeSnapshotWhenEventsChanged() {
+
+        // given
+        // in [0, 30](off), [30, ~](dr)
+        List<EldEvent> events = new ArrayList<>(Arrays.asList(
+                generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0),
+                generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_DRIVER, 30)));
+        EldEvent candidate = generateEvent(EldEvent.STATUS_SLEEPING, EldEvent.ORIGIN_DRIVER, 15);
+        MergePreview preview = new MergePreview();
+        preview.preview(events, candidate, minutes(40), minutes(120));
+
+        // when
+        // the driving event is replaced, the size stays the same
+        events.set(1, generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 30));
+        preview.invalidate();
+        MergePlan plan = preview.preview(events, candidate, minutes(40), minutes(120));
+
+        // then
+        assertEquals(2, preview.getSnapshots());
+        assertSameResults(MergePlanner.plan(MergePlanner.snapshot(events), candidate, minutes(40), minutes(120)), plan);
+
+        // another list of the same size
+        preview.preview(new ArrayList<>(events), candidate, minutes(40), minutes(120));
+        assertEquals(3, preview.getSnapshots());
+    }
+
+    @Test
+    public void shouldPlanAgainWhenCandidateChanged() {
+
+        // given
+        // in [0, 30](off), [30, 60](dr), [60, ~](on)
+        List<EldEvent> events = Arrays.asList(
+                generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0),
+                generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_DRIVER, 30),
+                generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 60));
+        EldEvent candidate = generateEvent(EldEvent.STATUS_SLEEPING, EldEvent.ORIGIN_DRIVER, 15);
+        MergePreview preview = new MergePreview();
+        MergePlan first = preview.preview(events, candidate, minutes(40), minutes(120));
+
+        // when
+        // the slider moves the left handle of the same candidate
+        candidate.setDatetime(minutes(20));
+        MergePlan moved = preview.preview(events, candidate, minutes(40), minutes(120));
+
+        // then
+        assertNotSame(first, moved);
+        assertSameResults(MergePlanner.plan(MergePlanner.snapshot(events), candidate, minutes(40), minutes(120)), moved);
+
+        // the status of the same candidate changed
+        candidate.setLogbookStatus(EldEvent.STATUS_OFF_DUTY);
+        MergePlan changed = preview.preview(events, candidate, minutes(40), minutes(120));
+        assertNotSame(moved, changed);
+        assertSameResults(MergePlanner.plan(MergePlanner.snapshot(events), candidate, minutes(40), minutes(120)), changed);
+        assertEquals(1, preview.getSnapshots());
+    }
+
+    private static void assertSameResults(MergePlan expected, MergePlan actual) {
+        assertEquals(expected.results.size(), actual.results.size());
+        for (int i = 0; i < expected.results.size(); i++) {
+            EventMergeWrapper e = expected.results.get(i);
+            EventMergeWrapper a = actual.results.get(i);
+            assertEquals(e.mergeResult, a.mergeResult);
+            assertEquals(e.event.getDatetime(), a.event.getDatetime());
+            assertEquals(e.event.getLogbookStatus(), a.event.getLogbookStatus());
+        }
+    }
+
+    private static long minutes(int minutes) {
+        return TimeUnit.MINUTES.toMillis(minutes);
+    }
+}
@@ -0,0 +1,29 @@
+package ca.truxtrax.logbook;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+
+/**
+ * One edit of {@link LogbookMergeUtils#mergeBatch}, same arguments as {@link LogbookMergeUtils#merge}.
+ */
+public final class MergeRequest {
+
+    public final EldEvent mergeEvent;
+    public final long rightDate;
+    public final long theTime;
+
+    /**
+     * annotation comment, null if none
+     */
+    public final String annotation;
+
+    public MergeRequest(EldEvent mergeEvent, long rightDate, long theTime) {
+        this(mergeEvent, rightDate, theTime, null);
+    }
+
+    public MergeRequest(EldEvent mergeEvent, long rightDate, long theTime, String annotation) {
+        this.mergeEvent = mergeEvent;
+        this.rightDate = rightDate;
+        this.theTime = theTime;
+        this.annotation = annotation;
+    }
+}
@@ -0,0 +1,203 @@
+package ca.truxtrax.logbook;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * Reusable struct-of-arrays form of a merge result, the working set of combineEquals.
+ * <p>
+ * Result codes, events and wrappers are parallel arrays, the first result of every event id is
+ * found through an open addressing table, so the loop over the log allocates nothing.
+ * One buffer per thread, cleared after every merge, the arrays only grow.
+ */
+final class MergeResultBuffer {
+
+    static final int NONE = -1;
+
+    private static final ThreadLocal<MergeResultBuffer> BUFFERS = new ThreadLocal<MergeResultBuffer>() {
+        @Override
+        protected MergeResultBuffer initialValue() {
+            return new MergeResultBuffer();
+        }
+    };
+
+    private int[] mergeResults = new int[16];
+    private EldEvent[] events = new EldEvent[16];
+    // wrappers of the loaded results, null for results added by the merge
+    private EventMergeWrapper[] wrappers = new EventMergeWrapper[16];
+    private boolean[] dropped = new boolean[16];
+    private int size;
+    private boolean changed;
+
+    // event id -> index of its result, NONE after unmap
+    private String[] keys = new String[32];
+    private int[] slots = new int[32];
+    private int keyCount;
+
+    static MergeResultBuffer get() {
+        return BUFFERS.get();
+    }
+
+    /**
+     * buffer of {@code result}, every id is mapped to its first result
+     */
+    void load(List<EventMergeWrapper> result) {
+        for (int i = 0; i < result.size(); i++) {
+            EventMergeWrapper it = result.get(i);
+            int index = add(it.mergeResult, it.event, it);
+            if (!containsKey(it.event.getId())) {
+                map(it.event.getId(), index);
+            }
+        }
+        changed = false;
+    }
+
+    /**
+     * @return result code at {@code index}, NO_CHANGES for NONE
+     */
+    int mergeResultAt(int index) {
+        return index == NONE ? EventMergeWrapper.MERGE_RESULT_NO_CHANGES : mergeResults[index];
+    }
+
+    /**
+     * event as it will be after the merge, the edited copy of the result at {@code index} if any
+     */
+    EldEvent versionOf(int index, EldEvent event) {
+        if (index == NONE) {
+            return event;
+        }
+        switch (mergeResults[index]) {
+            case EventMergeWrapper.MERGE_RESULT_EDITED:
+            case EventMergeWrapper.MERGE_RESULT_CLOSE_DRIVE:
+            case EventMergeWrapper.MERGE_RESULT_REJECTED:
+                return events[index];
+            default:
+                return event;
+        }
+    }
+
+    /**
+     * adds a result created by the merge, it is not mapped
+     */
+    int append(int mergeResult, EldEvent event) {
+        changed = true;
+        return add(mergeResult, event, null);
+    }
+
+    void drop(int index) {
+        changed = true;
+        dropped[index] = true;
+    }
+
+    int indexOf(String id) {
+        int mask = keys.length - 1;
+        for (int slot = hash(id) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot].equals(id)) {
+                return slots[slot];
+            }
+        }
+        return NONE;
+    }
+
+    void map(String id, int index) {
+        if ((keyCount + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int slot = hash(id) & mask;
+        while (keys[slot] != null && !keys[slot].equals(id)) {
+            slot = (slot + 1) & mask;
+        }
+        if (keys[slot] == null) {
+            keys[slot] = id;
+            keyCount++;
+        }
+        slots[slot] = index;
+    }
+
+    /**
+     * the event has no result any more, the key stays so the table needs no deletion
+     */
+    void unmap(String id) {
+        if (containsKey(id)) {
+            map(id, NONE);
+        }
+    }
+
+    /**
+     * Replaces the content of {@code result} if the merge changed anything: kept results in
+     * their order, then the added ones. Kept results are the same wrapper objects.
+     */
+    void writeTo(List<EventMergeWrapper> result) {
+        if (!changed) {
+            return;
+        }
+        result.clear();
+        for (int i = 0; i < size; i++) {
+            if (!dropped[i]) {
+                result.add(wrappers[i] != null ? wrappers[i] : new EventMergeWrapper(mergeResults[i], events[i]));
+            }
+        }
+    }
+
+    /**
+     * forgets the result, references are released so no event outlives its merge
+     */
+    void clear() {
+        Arrays.fill(events, 0, size, null);
+        Arrays.fill(wrappers, 0, size, null);
+        Arrays.fill(dropped, 0, size, false);
+        size = 0;
+        changed = false;
+        if (keyCount > 0) {
+            Arrays.fill(keys, null);
+            keyCount = 0;
+        }
+    }
+
+    private boolean containsKey(String id) {
+        int mask = keys.length - 1;
+        for (int slot = hash(id) & mask; keys[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot].equals(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int add(int mergeResult, EldEvent event, EventMergeWrapper wrapper) {
+        if (size == mergeResults.length) {
+            int capacity = size * 2;
+            mergeResults = Arrays.copyOf(mergeResults, capacity);
+            events = Arrays.copyOf(events, capacity);
+            wrappers = Arrays.copyOf(wrappers, capacity);
+            dropped = Arrays.copyOf(dropped, capacity);
+        }
+        mergeResults[size] = mergeResult;
+        events[size] = event;
+        wrappers[size] = wrapper;
+        return size++;
+    }
+
+    private void rehash(int capacity) {
+        String[] oldKeys = keys;
+        int[] oldSlots = slots;
+        keys = new String[capacity];
+        slots = new int[capacity];
+        keyCount = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                map(oldKeys[i], oldSlots[i]);
+            }
+        }
+    }
+
+    private static int hash(String id) {
+        int h = id.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,150 @@
+package ca.truxtrax.logbook;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * Reduces a merge result to one final action per event id before it is saved and pushed.
+ * <p>
+ * Results are folded in list order, previous action by row, next action by column:
+ * <pre>
+ *                 NEW       EDITED    REMOVED    CLOSE     REJECTED
+ *   (none)        NEW       EDITED    REMOVED    CLOSE     REJECTED
+ *   NEW           NEW       NEW       (dropped)  NEW       NEW
+ *   EDITED        EDITED    EDITED    REMOVED    EDITED    REJECTED
+ *   REMOVED       EDITED    EDITED    REMOVED    EDITED    REJECTED
+ *   CLOSE         EDITED    EDITED    REMOVED    CLOSE     REJECTED
+ *   REJECTED      REJECTED  REJECTED  REMOVED    REJECTED  REJECTED
+ *   (dropped)     NEW       NEW       (dropped)  NEW       NEW
+ * </pre>
+ * An event created and removed in the same result never reaches the database. Of the updates
+ * REJECTED wins over EDITED and EDITED over CLOSE_DRIVE, which is saved but not pushed.
+ * The kept event is the one of the last action, a removal keeps the event it removes.
+ * Results keep the position of the first action of their event, NO_CHANGES results are dropped.
+ */
+public final class MergeResultCompactor {
+
+    // the event was created and removed again
+    private static final int DROPPED = 6;
+
+    private static final int NEW = EventMergeWrapper.MERGE_RESULT_NEW;
+    private static final int EDITED = EventMergeWrapper.MERGE_RESULT_EDITED;
+    private static final int REMOVED = EventMergeWrapper.MERGE_RESULT_REMOVED;
+    private static final int CLOSE = EventMergeWrapper.MERGE_RESULT_CLOSE_DRIVE;
+    private static final int REJECTED = EventMergeWrapper.MERGE_RESULT_REJECTED;
+
+    /**
+     * [previous][next], indexed by the MERGE_RESULT_* codes, previous NO_CHANGES means none
+     */
+    private static final int[][] FOLD = new int[7][6];
+
+    static {
+        row(EventMergeWrapper.MERGE_RESULT_NO_CHANGES, NEW, EDITED, REMOVED, CLOSE, REJECTED);
+        row(NEW, NEW, NEW, DROPPED, NEW, NEW);
+        row(EDITED, EDITED, EDITED, REMOVED, EDITED, REJECTED);
+        row(REMOVED, EDITED, EDITED, REMOVED, EDITED, REJECTED);
+        row(CLOSE, EDITED, EDITED, REMOVED, CLOSE, REJECTED);
+        row(REJECTED, REJECTED, REJECTED, REMOVED, REJECTED, REJECTED);
+        row(DROPPED, NEW, NEW, DROPPED, NEW, NEW);
+    }
+
+    private static final Stats stats = new Stats();
+
+    private MergeResultCompactor() {
+    }
+
+    private static void row(int previous, int onNew, int onEdited, int onRemoved, int onClose, int onRejected) {
+        FOLD[previous][NEW] = onNew;
+        FOLD[previous][EDITED] = onEdited;
+        FOLD[previous][REMOVED] = onRemoved;
+        FOLD[previous][CLOSE] = onClose;
+        FOLD[previous][REJECTED] = onRejected;
+    }
+
+    static int fold(int previous, int next) {
+        return FOLD[previous][next];
+    }
+
+    public static List<EventMergeWrapper> compact(List<EventMergeWrapper> results) {
+        Map<String, Action> actions = new LinkedHashMap<>(results.size() * 2);
+        int input = 0;
+        for (int i = 0; i < results.size(); i++) {
+            EventMergeWrapper it = results.get(i);
+            if (it.mergeResult == EventMergeWrapper.MERGE_RESULT_NO_CHANGES) {
+                continue;
+            }
+            input++;
+
+            String id = it.event.getId();
+            Action action = actions.get(id);
+            if (action == null) {
+                action = new Action();
+                actions.put(id, action);
+            }
+            action.result = fold(action.result, it.mergeResult);
+            if (it.mergeResult == REMOVED) {
+                action.removed = it.event;
+            } else {
+                action.event = it.event;
+            }
+        }
+
+        List<EventMergeWrapper> compacted = new ArrayList<>(actions.size());
+        for (Action it : actions.values()) {
+            if (it.result == DROPPED) {
+                continue;
+            }
+            compacted.add(new EventMergeWrapper(it.result, it.result == REMOVED ? it.removed : it.event));
+        }
+
+        stats.onCompacted(input, compacted.size());
+        return compacted;
+    }
+
+    public static Stats getStats() {
+        return stats;
+    }
+
+    private static final class Action {
+        int result = EventMergeWrapper.MERGE_RESULT_NO_CHANGES;
+        EldEvent event;
+        EldEvent removed;
+    }
+
+    /**
+     * counters of the compaction stage
+     */
+    public static final class Stats {
+        private final AtomicLong results = new AtomicLong();
+        private final AtomicLong operations = new AtomicLong();
+        private final AtomicLong compactedOperations = new AtomicLong();
+
+        void onCompacted(int input, int output) {
+            results.incrementAndGet();
+            operations.addAndGet(input);
+            compactedOperations.addAndGet(output);
+        }
+
+        /**
+         * merge results compacted so far
+         */
+        public long getResults() {
+            return results.get();
+        }
+
+        public long getOperations() {
+            return operations.get();
+        }
+
+        public long getOperationsEliminated() {
+            return operations.get() - compactedOperations.get();
+        }
+    }
+}
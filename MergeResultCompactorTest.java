@@ -0,0 +1,108 @@
+package ca.truxtrax.test.activiries.logbook;
+
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import ca.truxtrax.logbook.LogbookMergeUtils;
+import ca.truxtrax.logbook.MergeResultCompactor;
+import utils.BaseRealmRunner;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static utils.Utils.generateEvent;
+
+@PrepareForTest({LogbookMergeUtils.class, EventMergeWrapper.class})
+public class MergeResultCompactorTest extends BaseRealmRunner {
+
+    @Test
+    public void shouldDropCreatedAndRemovedEvent() {
+
+        // given
+        EldEvent event = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 1);
+
+        // when
+        List<EventMergeWrapper> compacted = MergeResultCompactor.compact(Arrays.asList(
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_NEW, event),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_EDITED, event.copy()),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_REMOVED, event)));
+
+        // then
+        assertTrue(compacted.isEmpty());
+    }
+
+    @Test
+    public void shouldKeepLastVersionOfNewEvent() {
+
+        // given
+        EldEvent event = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 1);
+        EldEvent edited = event.copy();
+
+        // when
+        List<EventMergeWrapper> compacted = MergeResultCompactor.compact(Arrays.asList(
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_NEW, event),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_EDITED, edited)));
+
+        // then
+        assertEquals(1, compacted.size());
+        assertEquals(EventMergeWrapper.MERGE_RESULT_NEW, compacted.get(0).mergeResult);
+        assertSame(edited, compacted.get(0).event);
+    }
+
+    @Test
+    public void shouldApplyPrecedenceOfUpdates() {
+
+        // given
+        EldEvent closed = generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_AUTO, 1);
+        EldEvent rejected = generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_AUTO, 2);
+        EldEvent replaced = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 3);
+        EldEvent removed = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 4);
+        EldEvent removedCopy = removed.copy();
+
+        // when
+        List<EventMergeWrapper> compacted = MergeResultCompactor.compact(Arrays.asList(
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_CLOSE_DRIVE, closed),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_REJECTED, rejected),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_REMOVED, replaced),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_EDITED, removedCopy),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_EDITED, closed.copy()),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_EDITED, rejected.copy()),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_NEW, replaced.copy()),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_REMOVED, removed),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_NO_CHANGES, generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 5))));
+
+        // then
+        // one action per event, in order of the first action
+        assertEquals(4, compacted.size());
+        // closed and edited, the edit is pushed
+        assertEquals(EventMergeWrapper.MERGE_RESULT_EDITED, compacted.get(0).mergeResult);
+        assertEquals(EventMergeWrapper.MERGE_RESULT_REJECTED, compacted.get(1).mergeResult);
+        // removed and created again with the same id
+        assertEquals(EventMergeWrapper.MERGE_RESULT_EDITED, compacted.get(2).mergeResult);
+        // edited and removed, the removed event is kept
+        assertEquals(EventMergeWrapper.MERGE_RESULT_REMOVED, compacted.get(3).mergeResult);
+        assertSame(removed, compacted.get(3).event);
+    }
+
+    @Test
+    public void shouldCountEliminatedOperations() {
+
+        // given
+        long before = MergeResultCompactor.getStats().getOperationsEliminated();
+        EldEvent event = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 1);
+
+        // when
+        MergeResultCompactor.compact(Arrays.asList(
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_EDITED, event),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_EDITED, event.copy()),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_EDITED, event.copy())));
+
+        // then
+        assertEquals(2, MergeResultCompactor.getStats().getOperationsEliminated() - before);
+    }
+}
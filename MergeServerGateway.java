@@ -0,0 +1,53 @@
+package ca.truxtrax.logbook;
+
+import java.util.List;
+
+import ca.truxtrax.database.realm_mapping.eld.EldAnnotation;
+import ca.truxtrax.server.ServerOperations;
+import ca.truxtrax.utils.AndroidLog;
+import io.realm.Realm;
+import server.mapping_socket.eld_mapping.EldEventItem;
+import server.mapping_socket.eld_mapping.EldRemoveEventItem;
+
+/**
+ * Server side of the merge, replaced by a fake in tests.
+ */
+public interface MergeServerGateway {
+
+    /**
+     * @return false if the push should be retried later
+     */
+    boolean mergeEvents(Realm realm, long user, List<EldEventItem> mergeList, List<EldRemoveEventItem> removeList);
+
+    /**
+     * @return false if the push should be retried later
+     */
+    boolean saveAnnotation(Realm realm, long user, EldAnnotation annotation);
+
+    MergeServerGateway SERVER = new MergeServerGateway() {
+
+        private final String tag = MergeServerGateway.class.getSimpleName();
+
+        @Override
+        public boolean mergeEvents(Realm realm, long user, List<EldEventItem> mergeList, List<EldRemoveEventItem> removeList) {
+            try {
+                ServerOperations.mergeEvents(realm, user, mergeList, removeList);
+                return true;
+            } catch (RuntimeException e) {
+                AndroidLog.e(tag, "mergeEvents failed, " + e.getMessage());
+                return false;
+            }
+        }
+
+        @Override
+        public boolean saveAnnotation(Realm realm, long user, EldAnnotation annotation) {
+            try {
+                ServerOperations.saveAnnotation(realm, user, annotation);
+                return true;
+            } catch (RuntimeException e) {
+                AndroidLog.e(tag, "saveAnnotation failed, " + e.getMessage());
+                return false;
+            }
+        }
+    };
+}
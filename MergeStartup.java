@@ -0,0 +1,84 @@
+package ca.truxtrax.logbook;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import com.crashlytics.android.Crashlytics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Start-up of the merge pipeline, call once from {@code Application.onCreate}, before the first merge.
+ * <p>
+ * The merge journal is installed and the merges a killed process left open are finished before
+ * this returns, see {@link MergeJournalReplay}. Outbox records left by a killed process are
+ * drained right away and again whenever the connection comes back, not only when the next
+ * merge is committed. The city index is loaded in the background,
+ * {@link NearestCityCache} answers from LocationUtils until it is ready.
+ */
+public final class MergeStartup {
+
+    static final String JOURNAL_FILE = "merge.journal";
+
+    private static final AtomicBoolean started = new AtomicBoolean();
+
+    private MergeStartup() {
+    }
+
+    public static void start(Context context) {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        Context appContext = context.getApplicationContext();
+
+        // merges of a previous process, the replayed merges are journaled again
+        try {
+            MergeJournal journal = MergeJournal.open(new File(appContext.getFilesDir(), JOURNAL_FILE));
+            MergeJournal.install(journal);
+            MergeJournalReplay.replay(journal);
+        } catch (IOException e) {
+            // merges run without the journal
+            e.printStackTrace();
+            Crashlytics.logException(e);
+        }
+
+        // pushes of a previous process
+        MergeOutboxDispatcher.getInstance().drainNow();
+        appContext.registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+
+        loadCityIndex(appContext);
+    }
+
+    private static void loadCityIndex(final Context appContext) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    NearestCityCache.getInstance().loadAsset(appContext);
+                } catch (IOException e) {
+                    // no index in this build, see CitySpatialIndexGenerator, the cities come from LocationUtils
+                    e.printStackTrace();
+                }
+            }
+        }, "city-index");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            ConnectivityManager manager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo network = manager == null ? null : manager.getActiveNetworkInfo();
+            if (network != null && network.isConnected()) {
+                MergeOutboxDispatcher.getInstance().drainNow();
+            }
+        }
+    };
+}
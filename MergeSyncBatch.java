@@ -0,0 +1,147 @@
+package ca.truxtrax.logbook;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Coalesces several pending merge pushes of one driver into one server request.
+ * <p>
+ * Operations are keyed by event id, the last one wins. An event created and removed
+ * inside the same batch was never seen by the server, so both operations are dropped.
+ */
+public final class MergeSyncBatch {
+
+    private static final int OP_NEW = 1;
+    private static final int OP_UPDATE = 2;
+    private static final int OP_REMOVE = 3;
+
+    private final Map<String, Integer> events = new LinkedHashMap<>();
+    private final Set<String> annotations = new LinkedHashSet<>();
+
+    private int operations;
+    private int cancelled;
+    private int records;
+
+    public void addRecord(List<String> newIds, List<String> updateIds, List<String> removeIds) {
+        records++;
+        for (String id : newIds) {
+            addNew(id);
+        }
+        for (String id : updateIds) {
+            addUpdate(id);
+        }
+        for (String id : removeIds) {
+            addRemove(id);
+        }
+    }
+
+    public void addAnnotation(String annotationId) {
+        records++;
+        operations++;
+        annotations.add(annotationId);
+    }
+
+    private void addNew(String id) {
+        operations++;
+        Integer prev = events.get(id);
+        if (prev == null) {
+            events.put(id, OP_NEW);
+        } else if (prev == OP_REMOVE) {
+            // recreated with the same id, server knows it
+            events.put(id, OP_UPDATE);
+        }
+    }
+
+    private void addUpdate(String id) {
+        operations++;
+        Integer prev = events.get(id);
+        if (prev == null || prev == OP_REMOVE) {
+            events.put(id, OP_UPDATE);
+        }
+        // NEW stays NEW, the event is sent with its latest state anyway
+    }
+
+    private void addRemove(String id) {
+        operations++;
+        Integer prev = events.get(id);
+        if (prev != null && prev == OP_NEW) {
+            // server never saw it
+            events.remove(id);
+            cancelled++;
+        } else {
+            events.put(id, OP_REMOVE);
+        }
+    }
+
+    /**
+     * events to send with their current state, NEW first in the order they were created
+     */
+    public List<String> mergeIds() {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, Integer> it : events.entrySet()) {
+            if (it.getValue() == OP_NEW) {
+                result.add(it.getKey());
+            }
+        }
+        for (Map.Entry<String, Integer> it : events.entrySet()) {
+            if (it.getValue() == OP_UPDATE) {
+                result.add(it.getKey());
+            }
+        }
+        return result;
+    }
+
+    public List<String> removeIds() {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, Integer> it : events.entrySet()) {
+            if (it.getValue() == OP_REMOVE) {
+                result.add(it.getKey());
+            }
+        }
+        return result;
+    }
+
+    public List<String> annotationIds() {
+        return new ArrayList<>(annotations);
+    }
+
+    public boolean hasEvents() {
+        return !events.isEmpty();
+    }
+
+    /**
+     * operations received from outbox records
+     */
+    public int getOperations() {
+        return operations;
+    }
+
+    /**
+     * operations left after coalescing
+     */
+    public int getCoalescedOperations() {
+        return events.size() + annotations.size();
+    }
+
+    /**
+     * NEW and REMOVED pairs dropped from the batch
+     */
+    public int getCancelled() {
+        return cancelled;
+    }
+
+    public int getRecords() {
+        return records;
+    }
+
+    /**
+     * one request for events plus one per annotation, the server takes annotations one by one
+     */
+    public int getRequests() {
+        return (events.isEmpty() ? 0 : 1) + annotations.size();
+    }
+}
@@ -0,0 +1,88 @@
+package ca.truxtrax.test.activiries.logbook;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import ca.truxtrax.logbook.MergeSyncBatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MergeSyncBatchTest {
+
+    private static final List<String> NONE = Collections.emptyList();
+
+    @Test
+    public void shouldCoalesceSameEvent() {
+
+        // given, slider dragged three times over the same event
+        MergeSyncBatch batch = new MergeSyncBatch();
+
+        // when
+        batch.addRecord(NONE, Arrays.asList("a"), NONE);
+        batch.addRecord(NONE, Arrays.asList("a"), NONE);
+        batch.addRecord(NONE, Arrays.asList("a"), NONE);
+
+        // then
+        assertEquals(Arrays.asList("a"), batch.mergeIds());
+        assertTrue(batch.removeIds().isEmpty());
+        assertEquals(3, batch.getRecords());
+        assertEquals(1, batch.getRequests());
+        assertEquals(1, batch.getCoalescedOperations());
+    }
+
+    @Test
+    public void shouldCancelNewAndRemove() {
+
+        // given
+        MergeSyncBatch batch = new MergeSyncBatch();
+
+        // when
+        batch.addRecord(Arrays.asList("new"), NONE, Arrays.asList("old"));
+        batch.addRecord(NONE, Arrays.asList("new"), NONE);
+        batch.addRecord(NONE, NONE, Arrays.asList("new"));
+
+        // then
+        // created and removed inside the batch, server never saw it
+        assertTrue(batch.mergeIds().isEmpty());
+        assertEquals(Arrays.asList("old"), batch.removeIds());
+        assertEquals(1, batch.getCancelled());
+    }
+
+    @Test
+    public void shouldKeepLastOperation() {
+
+        // given
+        MergeSyncBatch batch = new MergeSyncBatch();
+
+        // when
+        batch.addRecord(NONE, Arrays.asList("a", "b"), NONE);
+        batch.addRecord(NONE, NONE, Arrays.asList("a"));
+        batch.addRecord(Arrays.asList("c"), Arrays.asList("b"), NONE);
+
+        // then
+        // new events go first
+        assertEquals(Arrays.asList("c", "b"), batch.mergeIds());
+        assertEquals(Arrays.asList("a"), batch.removeIds());
+    }
+
+    @Test
+    public void shouldSendAnnotationsSeparately() {
+
+        // given
+        MergeSyncBatch batch = new MergeSyncBatch();
+
+        // when
+        batch.addAnnotation("an1");
+        batch.addAnnotation("an1");
+
+        // then
+        assertFalse(batch.hasEvents());
+        assertEquals(Arrays.asList("an1"), batch.annotationIds());
+        assertEquals(1, batch.getRequests());
+    }
+}
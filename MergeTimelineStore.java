@@ -0,0 +1,198 @@
+package ca.truxtrax.logbook;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+
+/**
+ * Versioned duty timelines of the drivers, published after every committed merge.
+ * <p>
+ * A snapshot is never changed once published, a merge builds the next one from the previous
+ * (untouched events are shared) and swaps it in atomically. Readers such as the graph view or
+ * the HOS clocks call {@link #get(long)} from any thread without locking and never see a
+ * half applied merge. Events of a snapshot are detached copies and must not be modified.
+ */
+public final class MergeTimelineStore {
+
+    private static final MergeTimelineStore instance = new MergeTimelineStore();
+
+    private final ConcurrentMap<Long, AtomicReference<Snapshot>> snapshots = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private MergeTimelineStore() {
+    }
+
+    public static MergeTimelineStore getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return latest snapshot of the driver, null if nothing was loaded or merged yet
+     */
+    public Snapshot get(long user) {
+        AtomicReference<Snapshot> ref = snapshots.get(user);
+        return ref == null ? null : ref.get();
+    }
+
+    /**
+     * Publishes the driver's events as read from the database, e.g. when the logbook screen opens.
+     * Must be called on the thread which owns {@code events}.
+     */
+    public Snapshot load(long user, List<EldEvent> events) {
+        DutyTimeline copies = MergePlanner.snapshot(events);
+        AtomicReference<Snapshot> ref = reference(user);
+        while (true) {
+            Snapshot previous = ref.get();
+            Snapshot next = new Snapshot(user, previous == null ? 1 : previous.version + 1, copies);
+            if (ref.compareAndSet(previous, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Copy of a merge result which stays readable after commit, removed Realm objects are gone by then.
+     * Call before the result is written.
+     */
+    static List<EventMergeWrapper> detach(List<EventMergeWrapper> diff) {
+        List<EventMergeWrapper> detached = new ArrayList<>(diff.size());
+        for (int i = 0; i < diff.size(); i++) {
+            EventMergeWrapper it = diff.get(i);
+            detached.add(new EventMergeWrapper(it.mergeResult, it.event.copy()));
+        }
+        return detached;
+    }
+
+    /**
+     * Called by the merge after commit, under the driver's merge lock.
+     * Listeners are called on the merging thread.
+     *
+     * @param diff {@link #detach detached} merge result
+     */
+    void publish(long user, List<EventMergeWrapper> diff) {
+        if (diff == null || diff.isEmpty()) {
+            return;
+        }
+
+        AtomicReference<Snapshot> ref = reference(user);
+        Snapshot next;
+        while (true) {
+            Snapshot previous = ref.get();
+            long version = previous == null ? 1 : previous.version + 1;
+            DutyTimeline events = previous == null || previous.events == null ? null : apply(previous.events, diff);
+            next = new Snapshot(user, version, events);
+            if (ref.compareAndSet(previous, next)) {
+                break;
+            }
+        }
+
+        List<EventMergeWrapper> unmodifiableDiff = Collections.unmodifiableList(diff);
+        for (Listener it : listeners) {
+            it.onMerged(user, next.version, unmodifiableDiff);
+        }
+    }
+
+    public void addListener(Listener listener) {
+        if (listener != null && !listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * forget the driver, e.g. on logout
+     */
+    public void clear(long user) {
+        snapshots.remove(user);
+    }
+
+    private AtomicReference<Snapshot> reference(long user) {
+        AtomicReference<Snapshot> ref = snapshots.get(user);
+        if (ref == null) {
+            AtomicReference<Snapshot> created = new AtomicReference<>();
+            ref = snapshots.putIfAbsent(user, created);
+            if (ref == null) {
+                ref = created;
+            }
+        }
+        return ref;
+    }
+
+    /**
+     * next timeline, idempotent so a diff already contained in a loaded snapshot does no harm
+     */
+    static DutyTimeline apply(DutyTimeline events, List<EventMergeWrapper> diff) {
+        MergeApplyBatch batch = MergeApplyBatch.of(diff);
+        if (batch.isEmpty()) {
+            return events;
+        }
+
+        Set<String> removeIds = new HashSet<>(batch.getRemoveIds());
+        Map<String, EldEvent> upserts = new LinkedHashMap<>();
+        for (EldEvent it : batch.getUpserts()) {
+            upserts.put(it.getId(), it);
+        }
+        for (EventMergeWrapper it : diff) {
+            // a rejected event leaves the driver's log
+            if (it.mergeResult == EventMergeWrapper.MERGE_RESULT_REJECTED) {
+                upserts.remove(it.event.getId());
+                removeIds.add(it.event.getId());
+            }
+        }
+
+        List<EldEvent> next = new ArrayList<>(events.size() + upserts.size());
+        for (int i = 0; i < events.size(); i++) {
+            EldEvent it = events.get(i);
+            if (removeIds.contains(it.getId())) {
+                continue;
+            }
+            EldEvent upsert = upserts.remove(it.getId());
+            next.add(upsert == null ? it : upsert);
+        }
+        next.addAll(upserts.values());
+        return DutyTimeline.of(next);
+    }
+
+    public static final class Snapshot {
+        public final long user;
+
+        /**
+         * grows by one with every published merge of the driver
+         */
+        public final long version;
+
+        /**
+         * sorted by datetime, null if the driver's events were never loaded
+         */
+        public final DutyTimeline events;
+
+        Snapshot(long user, long version, DutyTimeline events) {
+            this.user = user;
+            this.version = version;
+            this.events = events;
+        }
+    }
+
+    public interface Listener {
+
+        /**
+         * @param diff result of the merge, must not be modified
+         */
+        void onMerged(long user, long version, List<EventMergeWrapper> diff);
+    }
+}
@@ -0,0 +1,125 @@
+package ca.truxtrax.test.activiries.logbook;
+
+import org.junit.After;
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.reflect.internal.WhiteboxImpl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import ca.truxtrax.logbook.LogbookMergeUtils;
+import ca.truxtrax.logbook.MergeTimelineStore;
+import utils.BaseRealmRunner;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static utils.Utils.generateEvent;
+
+@PrepareForTest({LogbookMergeUtils.class, EventMergeWrapper.class})
+public class MergeTimelineStoreTest extends BaseRealmRunner {
+
+    private static final long USER = 424242;
+
+    @After
+    public void tearDown() {
+        MergeTimelineStore.getInstance().clear(USER);
+    }
+
+    @Test
+    public void shouldPublishNextVersion() throws Exception {
+
+        // given
+        // in [0](off), [10](on), [20](sb)
+        EldEvent off = generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0);
+        EldEvent on = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 10);
+        EldEvent sleeping = generateEvent(EldEvent.STATUS_SLEEPING, EldEvent.ORIGIN_DRIVER, 20);
+        MergeTimelineStore store = MergeTimelineStore.getInstance();
+        MergeTimelineStore.Snapshot loaded = store.load(USER, Arrays.asList(off, on, sleeping));
+
+        EldEvent edited = sleeping.copy();
+        edited.setLogbookStatus(EldEvent.STATUS_OFF_DUTY);
+        EldEvent created = generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_DRIVER, 15);
+        List<EventMergeWrapper> diff = Arrays.asList(
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_REMOVED, on),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_EDITED, edited),
+                new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_NEW, created));
+
+        // when
+        publish(store, diff);
+
+        // then
+        MergeTimelineStore.Snapshot merged = store.get(USER);
+        assertEquals(loaded.version + 1, merged.version);
+        assertEquals(3, merged.events.size());
+        assertEquals(off.getId(), merged.events.get(0).getId());
+        assertEquals(created.getId(), merged.events.get(1).getId());
+        assertEquals(EldEvent.STATUS_OFF_DUTY, merged.events.get(2).getLogbookStatus());
+        // untouched event is shared
+        assertSame(loaded.events.get(0), merged.events.get(0));
+        // previous snapshot is not changed
+        assertEquals(3, loaded.events.size());
+        assertEquals(EldEvent.STATUS_SLEEPING, loaded.events.get(2).getLogbookStatus());
+    }
+
+    @Test
+    public void shouldNotifyListeners() throws Exception {
+
+        // given
+        MergeTimelineStore store = MergeTimelineStore.getInstance();
+        final AtomicLong notifiedVersion = new AtomicLong();
+        final List<EventMergeWrapper> notifiedDiff = new ArrayList<>();
+        MergeTimelineStore.Listener listener = new MergeTimelineStore.Listener() {
+            @Override
+            public void onMerged(long user, long version, List<EventMergeWrapper> diff) {
+                if (user == USER) {
+                    notifiedVersion.set(version);
+                    notifiedDiff.addAll(diff);
+                }
+            }
+        };
+        store.addListener(listener);
+        EldEvent event = generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 10);
+
+        try {
+            // when
+            // nothing loaded, the version still counts
+            publish(store, Arrays.asList(new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_NEW, event)));
+
+            // then
+            assertEquals(1, notifiedVersion.get());
+            assertEquals(1, notifiedDiff.size());
+            assertEquals(event.getId(), notifiedDiff.get(0).event.getId());
+            assertNotSame(event, notifiedDiff.get(0).event);
+            assertNull(store.get(USER).events);
+        } finally {
+            store.removeListener(listener);
+        }
+    }
+
+    @Test
+    public void shouldDropRejectedEventFromLog() throws Exception {
+
+        // given
+        EldEvent driving = generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_AUTO, 0);
+        MergeTimelineStore store = MergeTimelineStore.getInstance();
+        store.load(USER, Arrays.asList(driving));
+
+        // when
+        publish(store, Arrays.asList(new EventMergeWrapper(EventMergeWrapper.MERGE_RESULT_REJECTED, driving.copy())));
+
+        // then
+        assertEquals(0, store.get(USER).events.size());
+    }
+
+    private static void publish(MergeTimelineStore store, List<EventMergeWrapper> diff) throws Exception {
+        List<EventMergeWrapper> detached = WhiteboxImpl.invokeMethod(MergeTimelineStore.class, "detach", diff);
+        WhiteboxImpl.invokeMethod(store, "publish", USER, detached);
+    }
+}
@@ -0,0 +1,57 @@
+package ca.truxtrax.logbook;
+
+import java.util.List;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import io.realm.RealmResults;
+
+/**
+ * Part of the driver's duty events a merge has to see.
+ * <p>
+ * Events before the last one strictly before the left dragger are neither covering nor
+ * edited by the merge, so the slice starts one more event to the left (the neighbour
+ * combineEquals compares with) and runs to the end of the log, checkNeedToMerge also
+ * checks the last event. For a merge of the last logbook interval it holds a few events,
+ * whatever the length of the history. Events before the slice are not re-combined.
+ */
+public final class MergeWindow {
+
+    private static final String FIELD_DATETIME = "datetime";
+
+    private MergeWindow() {
+    }
+
+    /**
+     * @param events events of the driver, a lazy Realm result is sliced by query
+     * @return the events the merge of {@code [leftDate, rightDate]} needs, all events for swapped draggers
+     */
+    public static List<EldEvent> slice(List<EldEvent> events, long leftDate, long rightDate) {
+        if (events == null || events.isEmpty() || rightDate <= leftDate) {
+            // swapped draggers check the whole log
+            return events;
+        }
+
+        if (events instanceof RealmResults) {
+            return slice((RealmResults<EldEvent>) events, leftDate);
+        }
+
+        DutyTimeline timeline = DutyTimeline.of(events);
+        int from = Math.max(0, timeline.lowerIndex(leftDate) - 1);
+        return from == 0 ? timeline : timeline.subList(from, timeline.size());
+    }
+
+    /**
+     * the results are not loaded, only the slice is read into Java objects by the merge
+     */
+    private static List<EldEvent> slice(RealmResults<EldEvent> events, long leftDate) {
+        Number before = events.where().lessThan(FIELD_DATETIME, leftDate).max(FIELD_DATETIME);
+        if (before == null) {
+            // nothing before the window
+            return events;
+        }
+
+        Number neighbour = events.where().lessThan(FIELD_DATETIME, before.longValue()).max(FIELD_DATETIME);
+        long from = neighbour == null ? before.longValue() : neighbour.longValue();
+        return events.where().greaterThanOrEqualTo(FIELD_DATETIME, from).findAll();
+    }
+}
@@ -0,0 +1,110 @@
+package ca.truxtrax.test.activiries.logbook;
+
+import org.junit.Test;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+import ca.truxtrax.logbook.LogbookMergeUtils;
+import ca.truxtrax.logbook.MergePlan;
+import ca.truxtrax.logbook.MergePlanner;
+import ca.truxtrax.logbook.MergeWindow;
+import utils.BaseRealmRunner;
+
+import static ca.truxtrax.logbook.LogbookMergeUtils.EventMergeWrapper;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static utils.Utils.generateEvent;
+
+@PrepareForTest({LogbookMergeUtils.class, EventMergeWrapper.class})
+public class MergeWindowTest extends BaseRealmRunner {
+
+    private static final int[] STATUSES = {
+            EldEvent.STATUS_OFF_DUTY,
+            EldEvent.STATUS_SLEEPING,
+            EldEvent.STATUS_DRIVING,
+            EldEvent.STATUS_ON_DUTY
+    };
+
+    @Test
+    public void shouldSliceFromLeftNeighbour() {
+
+        // given
+        // in [0](off), [10](sb), [20](on), [30](off), [40](dr)
+        List<EldEvent> events = Arrays.asList(
+                generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 0),
+                generateEvent(EldEvent.STATUS_SLEEPING, EldEvent.ORIGIN_DRIVER, 10),
+                generateEvent(EldEvent.STATUS_ON_DUTY, EldEvent.ORIGIN_DRIVER, 20),
+                generateEvent(EldEvent.STATUS_OFF_DUTY, EldEvent.ORIGIN_DRIVER, 30),
+                generateEvent(EldEvent.STATUS_DRIVING, EldEvent.ORIGIN_DRIVER, 40));
+
+        // when
+        // window [35-45]
+        List<EldEvent> slice = MergeWindow.slice(events, minutes(35), minutes(45));
+
+        // then
+        // [20](on) is the neighbour of [30](off), the last event before the window
+        assertEquals(3, slice.size());
+        assertSame(events.get(2), slice.get(0));
+        assertSame(events.get(4), slice.get(2));
+
+        // swapped draggers need the whole log
+        assertSame(events, MergeWindow.slice(events, minutes(35), minutes(30)));
+    }
+
+    @Test
+    public void shouldPlanSameAsFullHistory() {
+        Random random = new Random(11);
+        for (int round = 0; round < 300; round++) {
+
+            // given
+            List<EldEvent> events = randomLog(random, 1 + random.nextInt(40));
+            int left = random.nextInt(200);
+            EldEvent candidate = generateEvent(STATUSES[random.nextInt(STATUSES.length)], EldEvent.ORIGIN_DRIVER, left);
+            long rightDate = minutes(left + 1 + random.nextInt(30));
+            long theTime = rightDate + minutes(random.nextInt(2) * 15);
+
+            // when
+            MergePlan full = MergePlanner.plan(events, candidate, rightDate, theTime);
+            MergePlan windowed = MergePlanner.plan(MergeWindow.slice(events, candidate.getDatetime(), rightDate), candidate, rightDate, theTime);
+
+            // then
+            assertEquals("round " + round, full.results.size(), windowed.results.size());
+            for (int i = 0; i < full.results.size(); i++) {
+                EventMergeWrapper expected = full.results.get(i);
+                EventMergeWrapper actual = windowed.results.get(i);
+                assertEquals("round " + round, expected.mergeResult, actual.mergeResult);
+                assertEquals("round " + round, expected.event.getDatetime(), actual.event.getDatetime());
+                assertEquals("round " + round, expected.event.getLogbookStatus(), actual.event.getLogbookStatus());
+            }
+        }
+    }
+
+    /**
+     * combined log, no equal neighbours
+     */
+    private static List<EldEvent> randomLog(Random random, int size) {
+        List<EldEvent> events = new ArrayList<>();
+        int minute = random.nextInt(3);
+        int previous = -1;
+        for (int i = 0; i < size; i++) {
+            int status;
+            do {
+                status = STATUSES[random.nextInt(STATUSES.length)];
+            } while (status == previous);
+            previous = status;
+            events.add(generateEvent(status, EldEvent.ORIGIN_DRIVER, minute));
+            minute += 1 + random.nextInt(10);
+        }
+        return events;
+    }
+
+    private static long minutes(int minutes) {
+        return TimeUnit.MINUTES.toMillis(minutes);
+    }
+}
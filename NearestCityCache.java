@@ -0,0 +1,155 @@
+package ca.truxtrax.logbook;
+
+import android.content.Context;
+import android.location.Location;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ca.truxtrax.utils.LocationUtils;
+
+/**
+ * Nearest city strings of merge candidates.
+ * <p>
+ * Strings are kept in an LRU cache by location rounded to {@link #GRID_DEGREES}, about 100 m,
+ * so a parked truck gets the string of the previous interval. A miss is answered by the
+ * {@link CitySpatialIndex} once it is installed and by {@link LocationUtils} before that,
+ * the cache is in front of both. {@link MergeStartup} loads the index on start.
+ */
+public final class NearestCityCache {
+
+    static final double GRID_DEGREES = 0.001;
+    static final int CAPACITY = 256;
+
+    private static final NearestCityCache instance = new NearestCityCache();
+
+    private final Map<Long, String> cache = new LinkedHashMap<Long, String>(CAPACITY, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    private volatile CitySpatialIndex index;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private NearestCityCache() {
+    }
+
+    public static NearestCityCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Reads {@link CitySpatialIndex#ASSET}, call once on start off the main thread.
+     */
+    public void loadAsset(Context context) throws IOException {
+        InputStream in = context.getAssets().open(CitySpatialIndex.ASSET);
+        try {
+            install(CitySpatialIndex.read(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param index null goes back to {@link LocationUtils}
+     */
+    public void install(CitySpatialIndex index) {
+        synchronized (cache) {
+            this.index = index;
+            // strings of another source
+            cache.clear();
+        }
+    }
+
+    /**
+     * @return formatted nearest city, e.g. "5 mi NE Ottawa"
+     */
+    public String format(Context context, Location location) {
+        CitySpatialIndex index = this.index;
+        Long key = key(location.getLatitude(), location.getLongitude());
+        String formatted = cached(key);
+        if (formatted != null) {
+            return formatted;
+        }
+
+        if (index == null) {
+            formatted = LocationUtils.getNearestCityDirectionFormattedString(context, location);
+        } else {
+            formatted = nearest(index, location.getLatitude(), location.getLongitude());
+        }
+        remember(index, key, formatted);
+        return formatted;
+    }
+
+    /**
+     * @return null if no index is installed
+     */
+    public String format(double lat, double lon) {
+        CitySpatialIndex index = this.index;
+        if (index == null) {
+            return null;
+        }
+        Long key = key(lat, lon);
+        String formatted = cached(key);
+        if (formatted != null) {
+            return formatted;
+        }
+
+        formatted = nearest(index, lat, lon);
+        remember(index, key, formatted);
+        return formatted;
+    }
+
+    private String cached(Long key) {
+        String formatted;
+        synchronized (cache) {
+            formatted = cache.get(key);
+        }
+        if (formatted != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return formatted;
+    }
+
+    /**
+     * @param index source of the string, it's dropped if another one was installed meanwhile
+     */
+    private void remember(CitySpatialIndex index, Long key, String formatted) {
+        if (formatted == null) {
+            return;
+        }
+        synchronized (cache) {
+            if (this.index == index) {
+                cache.put(key, formatted);
+            }
+        }
+    }
+
+    private static String nearest(CitySpatialIndex index, double lat, double lon) {
+        CitySpatialIndex.Nearest nearest = index.nearest(lat, lon);
+        return nearest == null ? null : nearest.format();
+    }
+
+    static long key(double lat, double lon) {
+        long latCell = Math.round(lat / GRID_DEGREES);
+        long lonCell = Math.round(lon / GRID_DEGREES);
+        return (latCell << 32) | (lonCell & 0xffffffffL);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,25 @@
+package ca.truxtrax.logbook;
+
+import java.io.IOException;
+import java.util.List;
+
+import ca.truxtrax.database.realm_mapping.eld.EldEvent;
+
+/**
+ * Duty logs read and written by {@link LogbookReprocessor}, called from several threads at once
+ * but never for the same driver.
+ */
+public interface ReprocessStore {
+
+    List<Long> drivers() throws IOException;
+
+    /**
+     * @return events of the driver, any order
+     */
+    List<EldEvent> load(long driver) throws IOException;
+
+    /**
+     * replaces the log of the driver
+     */
+    void save(long driver, List<EldEvent> events) throws IOException;
+}